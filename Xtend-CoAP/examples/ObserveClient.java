@@ -83,9 +83,6 @@ public class ObserveClient extends MessageSender {
             throw Exceptions.sneakyThrow(_t);
           }
         }
-        int _nextMessageID = MessageSender.nextMessageID("C");
-        request.setID(_nextMessageID);
-        MessageSender.generateTokenForRequest(request);
         request.enableResponseQueue(true);
         try {
           request.execute();
@@ -60,9 +60,6 @@ public class SampleClient extends MessageSender {
           throw Exceptions.sneakyThrow(_t);
         }
       }
-      int msgID = MessageSender.nextMessageID("C");
-      requestDiscover.setID(msgID);
-      MessageSender.generateTokenForRequest(requestDiscover);
       requestDiscover.enableResponseQueue(true);
       try {
         requestDiscover.execute();
@@ -172,10 +169,6 @@ public class SampleClient extends MessageSender {
               throw Exceptions.sneakyThrow(_t);
             }
           }
-          int _nextMessageID = MessageSender.nextMessageID("C");
-          msgID = _nextMessageID;
-          request.setID(msgID);
-          MessageSender.generateTokenForRequest(request);
           String _get_1 = payloads.get(i);
           request.setPayload(((String) _get_1));
           request.enableResponseQueue(true);
@@ -78,9 +78,6 @@ public class SampleClient2 extends MessageSender {
           throw Exceptions.sneakyThrow(_t);
         }
       }
-      int _nextMessageID = MessageSender.nextMessageID("C");
-      request.setID(_nextMessageID);
-      MessageSender.generateTokenForRequest(request);
       request.setPayload(payload);
       request.enableResponseQueue(true);
       try {
@@ -2,6 +2,7 @@ package com.xtend.coap.endpoint
 
 import com.sun.net.httpserver.HttpExchange
 import com.sun.net.httpserver.HttpHandler
+import com.xtend.coap.layers.Communicator
 import com.xtend.coap.message.Message
 import com.xtend.coap.message.MessageHandler
 import com.xtend.coap.message.MessageReceiver
@@ -14,8 +15,12 @@ import com.xtend.coap.message.request.Request
 import com.xtend.coap.message.response.Response
 import com.xtend.coap.resource.DiscoveryResource
 import com.xtend.coap.resource.LocalResource
+import com.xtend.coap.resource.ObserveJournal
+import com.xtend.coap.resource.ObserveNotifier
+import com.xtend.coap.resource.ObserverRegistry
 import com.xtend.coap.resource.ReadOnlyResource
 import com.xtend.coap.resource.Resource
+import com.xtend.coap.resource.ResourceRouter
 import com.xtend.coap.utils.Code
 import com.xtend.coap.utils.HexUtils
 import com.xtend.coap.utils.MessageType
@@ -49,9 +54,17 @@ class EndPoint extends MessageSender implements MessageReceiver, MessageHandler
 	Resource rootResource
 	Resource wellKnownResource
 	DiscoveryResource discoveryResource
+	RequestDispatcher requestDispatcher
+	ResourceRouter router
+	ObserveNotifier observeNotifier
+	ObserveNotifier defaultNotifier
 	
 	new(int port, boolean daemon) throws SocketException {
-		super(port, daemon)
+		this(new Communicator(port, daemon))
+	}
+	
+	new(Communicator communicator) {
+		super(communicator)
 		this.communicator.registerReceiver(this)
 		this.rootResource = new EndPoint.RootResource(this)
 		this.wellKnownResource = new LocalResource(".well-known", true)
@@ -59,6 +72,11 @@ class EndPoint extends MessageSender implements MessageReceiver, MessageHandler
 		this.discoveryResource = new DiscoveryResource(rootResource)
 		rootResource.addSubResource(wellKnownResource)
 		wellKnownResource.addSubResource(discoveryResource)
+		this.router = new ResourceRouter
+		rootResource.setRouter(router)
+		this.observeNotifier = new ObserveNotifier(communicator.getTimer)
+		this.defaultNotifier = observeNotifier
+		rootResource.setNotifier(observeNotifier)
 	}
 	
 	new() throws SocketException {
@@ -130,8 +148,79 @@ class EndPoint extends MessageSender implements MessageReceiver, MessageHandler
 		}
 	}
 	
+	/**
+	 * Returns the resource targeted by a request, matching its Uri-Path options
+	 * against the routes of the resource tree.
+	 * 
+	 * @param request The request.
+	 * @return The resource, or null if there is none.
+	 */
+	def LocalResource getResource(Request request) {
+		return router.route(request) as LocalResource
+	}
+	
+	def getRouter() {
+		return router
+	}
+	
+	/**
+	 * Sets the notifier that sends the notifications of the observed resources of this endpoint.
+	 * The notifier created by the endpoint is shut down when it is replaced.
+	 * 
+	 * @param observeNotifier The notifier, or null to notify each observer by invoking performGet.
+	 */
+	def void setObserveNotifier(ObserveNotifier observeNotifier) {
+		if (defaultNotifier != null && defaultNotifier !== observeNotifier) {
+			defaultNotifier.shutdown
+			defaultNotifier = null
+		}
+		this.observeNotifier = observeNotifier
+		rootResource.setNotifier(observeNotifier)
+	}
+	
+	def getObserveNotifier() {
+		return observeNotifier
+	}
+	
+	/**
+	 * Restores the observers journaled before a restart and journals them from now on.
+	 * The resources must be added before, so that their observers are found.
+	 * 
+	 * @param observeJournal The journal.
+	 * @return The number of observers restored, or -1 if there is no notifier.
+	 */
+	def int setObserveJournal(ObserveJournal observeJournal) {
+		if (observeNotifier == null) {
+			System.err.println("[" + getClass.getName + "] ERROR: Observe journal requires a notifier")
+			return -1
+		}
+		var count = observeJournal.restore(rootResource, communicator)
+		observeNotifier.setJournal(observeJournal)
+		observeJournal.compact
+		return count
+	}
+	
+	/**
+	 * Sets the dispatcher that runs the request handlers off the receiver threads.
+	 * Without a dispatcher, requests are handled on the thread that received them.
+	 * 
+	 * @param requestDispatcher The dispatcher, or null to handle requests on the receiver threads.
+	 */
+	def void setRequestDispatcher(RequestDispatcher requestDispatcher) {
+		this.requestDispatcher = requestDispatcher
+	}
+	
+	def getRequestDispatcher() {
+		return requestDispatcher
+	}
+	
 	override void receiveMessage(Message msg) {
-		msg.handleBy(this)
+		var dispatcher = requestDispatcher
+		if (dispatcher != null && msg instanceof Request) {
+			dispatcher.submit(msg as Request, this)
+		} else {
+			msg.handleBy(this)
+		}
 	}
 
 	override void handleRequest(Request request) {
@@ -139,6 +228,9 @@ class EndPoint extends MessageSender implements MessageReceiver, MessageHandler
 	}
 
 	override void handleResponse(Response response) {
+		if (response.getRawCode == Code.EMPTY && response.getRequest == null && observeNotifier != null) {
+			observeNotifier.replyReceived(response)
+		}
 		response.handle
 	}
 	
@@ -209,10 +301,11 @@ class BaseCoAPServer extends EndPoint {
 	
 	override void execute(Request request) {
 		if (request != null) {
-			var resourceIdentifier = getResourceIdentifier(request);
-			var resource = getResource(resourceIdentifier);
+			var resource = getResource(request)
 			if (resource != null) {
 				request.dispat(resource)
+				// a resource with a template segment is observed per path
+				var path = if (resource.isTemplate) ObserverRegistry.pathOf(request) else null
 				if (request instanceof GetRequest && request.hasOption(Option.OBSERVE)) {
 					var obsVal = 0
 					try {
@@ -225,21 +318,21 @@ class BaseCoAPServer extends EndPoint {
 					if (obsVal == 0) {
 						resource.addObserveRequest(request as GetRequest)
 					} else if (obsVal == 1) {
-						resource.removeObserveRequest(request.endpointID)
+						resource.removeObserveRequest(request.getPeerAddress, path, request.getToken)
 						request.respond(Code.RESP_CONTENT, "Observation with resource " + resource.resourceName + " ended.")
 					} else {
 						System.out.println("[" + getClass.getName + "] Bad OBSERVE option value: " + obsVal)
 						request.respond(Code.RESP_BAD_OPTION)
 					}
-				} else if (resource.isObserved(request.endpointID)) {
+				} else if (resource.isObserved(request.getPeerAddress, path)) {
 					// terminate observation relationship on that resource
-					resource.removeObserveRequest(request.endpointID)
+					resource.removeObserveRequest(request.getPeerAddress, path)
 					request.respond(Code.RESP_CONTENT, "Observation with resource " + resource.resourceName + " ended.")
 				}
 			} else if (request instanceof PutRequest) {
 				createByPut(request as PutRequest)
 			} else {
-				System.out.println("[" + getClass.getName + "] Resource not found: " + resourceIdentifier)
+				System.out.println("[" + getClass.getName + "] Resource not found: " + getResourceIdentifier(request))
 				request.respond(Code.RESP_NOT_FOUND)
 			}
 		}
@@ -306,8 +399,6 @@ class BaseHTTP2CoAPProxy extends MessageSender implements HttpHandler {
     				code = 400
 				}
 				
-				request.setID(nextMessageID("P"))
-				generateTokenForRequest(request)
 				request.setPayload(payload)
 				request.enableResponseQueue(true)
 				try {
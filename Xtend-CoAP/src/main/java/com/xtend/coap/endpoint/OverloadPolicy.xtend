@@ -0,0 +1,12 @@
+package com.xtend.coap.endpoint
+
+/** 
+ * Enumeration for the actions taken on requests received while the dispatcher is full.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+enum OverloadPolicy {
+	DROP,
+	SERVICE_UNAVAILABLE
+}
\ No newline at end of file
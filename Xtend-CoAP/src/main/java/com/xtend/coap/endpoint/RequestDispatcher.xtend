@@ -0,0 +1,194 @@
+package com.xtend.coap.endpoint
+
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import com.xtend.coap.message.MessageHandler
+import com.xtend.coap.message.request.Request
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.NamedThreadFactory
+import com.xtend.coap.utils.Option
+
+/** 
+ * Class that hands received requests to an executor, so the receiver threads
+ * never run the resource handlers.
+ * 
+ * At most a given number of requests are pending (queued or running). Requests
+ * received while the dispatcher is full are dropped, or answered with
+ * 5.03 Service Unavailable and a Max-Age telling the client when to retry.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class RequestDispatcher {
+	
+	val public static DEFAULT_CAPACITY = 1024
+	val public static DEFAULT_RETRY_AFTER = 5
+	
+	Executor executor
+	int capacity
+	OverloadPolicy policy
+	int retryAfter
+	AtomicInteger pending
+	AtomicLong dispatched
+	AtomicLong rejected
+	
+	/**
+	 * Initializes a new RequestDispatcher object with a fixed pool of daemon threads.
+	 * 
+	 * @param threads The number of worker threads.
+	 * @param capacity The maximum number of pending requests.
+	 * @param policy The action taken on requests received while the dispatcher is full.
+	 */
+	new (int threads, int capacity, OverloadPolicy policy) {
+		this(Executors.newFixedThreadPool(threads, new NamedThreadFactory("RequestDispatcher")), capacity, policy)
+	}
+	
+	/**
+	 * Initializes a new RequestDispatcher object.
+	 * 
+	 * @param executor The executor that runs the request handlers.
+	 * @param capacity The maximum number of pending requests.
+	 * @param policy The action taken on requests received while the dispatcher is full.
+	 */
+	new (Executor executor, int capacity, OverloadPolicy policy) {
+		this.executor = executor
+		this.capacity = capacity
+		this.policy = policy
+		this.retryAfter = DEFAULT_RETRY_AFTER
+		this.pending = new AtomicInteger
+		this.dispatched = new AtomicLong
+		this.rejected = new AtomicLong
+	}
+	
+	/**
+	 * Creates a dispatcher that runs each request on its own virtual thread, so
+	 * that handlers may block, e.g. on a database, without holding a platform
+	 * thread. Virtual threads need Java 21 or later; on older runtimes each
+	 * request gets a pooled daemon thread instead. The capacity still bounds
+	 * the number of requests handled at the same time.
+	 * 
+	 * @param capacity The maximum number of pending requests.
+	 * @param policy The action taken on requests received while the dispatcher is full.
+	 * @return The new dispatcher.
+	 */
+	def static RequestDispatcher withVirtualThreads(int capacity, OverloadPolicy policy) {
+		var executor = newVirtualThreadExecutor
+		if (executor == null) {
+			System.err.println("[RequestDispatcher] Virtual threads not available, using a cached thread pool")
+			executor = Executors.newCachedThreadPool(new NamedThreadFactory("RequestDispatcher"))
+		}
+		return new RequestDispatcher(executor, capacity, policy)
+	}
+	
+	/**
+	 * Returns an executor that starts a virtual thread per task. It is looked up
+	 * by reflection, since the code is compiled for older runtimes.
+	 * 
+	 * @return The executor, or null if the runtime has no virtual threads.
+	 */
+	def static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return typeof(Executors).getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+		} catch (ReflectiveOperationException e) {
+			return null
+		}
+	}
+	
+	/**
+	 * Dispatches a request to the handler on the executor, or applies the
+	 * overload policy if the dispatcher is full.
+	 * 
+	 * @param request The request received.
+	 * @param handler The handler of the request.
+	 * @return True if the request was dispatched.
+	 */
+	def boolean submit(Request request, MessageHandler handler) {
+		if (pending.incrementAndGet > capacity) {
+			pending.decrementAndGet
+			reject(request)
+			return false
+		}
+		try {
+			executor.execute([|
+				try {
+					request.handleBy(handler)
+				} finally {
+					pending.decrementAndGet
+				}
+			])
+		} catch (RejectedExecutionException e) {
+			pending.decrementAndGet
+			reject(request)
+			return false
+		}
+		dispatched.incrementAndGet
+		return true
+	}
+	
+	/**
+	 * Applies the overload policy to a request that cannot be dispatched.
+	 * 
+	 * @param request The request rejected.
+	 */
+	def protected void reject(Request request) {
+		rejected.incrementAndGet
+		if (policy == OverloadPolicy.SERVICE_UNAVAILABLE) {
+			var response = new Response(Code.RESP_SERVICE_UNAVAILABLE)
+			response.setOption(new Option(retryAfter, Option.MAX_AGE))
+			request.respond(response)
+		}
+	}
+	
+	/**
+	 * Sets the Max-Age of the 5.03 responses sent while the dispatcher is full.
+	 * 
+	 * @param seconds The number of seconds the client should wait before retrying.
+	 */
+	def void setRetryAfter(int seconds) {
+		this.retryAfter = seconds
+	}
+	
+	def getRetryAfter() {
+		return retryAfter
+	}
+	
+	def getCapacity() {
+		return capacity
+	}
+	
+	def getPolicy() {
+		return policy
+	}
+	
+	/**
+	 * Returns the number of requests queued or running.
+	 * 
+	 * @return The number of pending requests.
+	 */
+	def getPending() {
+		return pending.get
+	}
+	
+	def getDispatched() {
+		return dispatched.get
+	}
+	
+	def getRejected() {
+		return rejected.get
+	}
+	
+	/**
+	 * Stops the executor if it is an ExecutorService. Pending requests are still handled.
+	 */
+	def void shutdown() {
+		if (executor instanceof ExecutorService) {
+			(executor as ExecutorService).shutdown()
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,238 @@
+package com.xtend.coap.layers
+
+import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+import com.xtend.coap.message.Message
+
+/** 
+ * Class that represents an adaptive retransmission policy in the spirit of
+ * CoCoA (draft-ietf-core-cocoa).
+ * 
+ * For every peer, a strong estimator is fed by replies to messages that were
+ * not retransmitted, and a weak estimator by replies to messages retransmitted
+ * once or twice, measured from the first transmission. Both follow rfc6298
+ * and are blended into the overall RTO of the peer. Retransmissions back off
+ * by a factor that depends on the RTO, and RTOs that were not updated for a
+ * while age towards the default. Peers without measurements for IDLE_TIME
+ * are forgotten, so that the table does not grow with every peer ever seen.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class CoCoARetransmissionPolicy implements RetransmissionPolicy {
+	
+	val public static DEFAULT_RTO = 2000
+	val public static MIN_RTO = 32
+	val public static MAX_RTO = 60000
+	val public static MAX_RETRANSMIT = 4
+	val public static AGING_TIME = 30000
+	val public static IDLE_TIME = 4 * AGING_TIME
+	
+	val static ALPHA = 0.125
+	val static BETA = 0.25
+	val static STRONG_K = 4
+	val static WEAK_K = 1
+	val static MAX_WEAK_RETRANSMIT = 2
+	
+	ConcurrentMap<Object, PeerState> peers
+	AtomicLong lastSweep
+	
+	new () {
+		this.peers = new ConcurrentHashMap<Object, PeerState>
+		this.lastSweep = new AtomicLong(System.currentTimeMillis)
+	}
+	
+	/** 
+	 * Inner class that holds the estimators of a peer.
+	 * 
+	 * @author César Estebas Gómez.
+	 * @version Xtend-CoAP_v1.0.
+	 */
+	static class PeerState {
+		
+		Estimator strong = new Estimator(STRONG_K)
+		Estimator weak = new Estimator(WEAK_K)
+		double rto = DEFAULT_RTO
+		long lastUpdate = System.currentTimeMillis
+		long lastMeasured = lastUpdate
+		ReentrantLock lock = new ReentrantLock
+		
+		def void update(long rtt, int numRetransmit) {
+			lock.lock
+			try {
+				if (numRetransmit == 0) {
+					rto = 0.5 * strong.update(rtt) + 0.5 * rto
+				} else if (numRetransmit <= MAX_WEAK_RETRANSMIT) {
+					rto = 0.25 * weak.update(rtt) + 0.75 * rto
+				} else {
+					return
+				}
+				lastUpdate = System.currentTimeMillis
+				lastMeasured = lastUpdate
+			} finally {
+				lock.unlock
+			}
+		}
+		
+		def double getRto() {
+			lock.lock
+			try {
+				var now = System.currentTimeMillis
+				if (now - lastUpdate > AGING_TIME) {
+					if (rto < 1000) {
+						rto = 2 * rto
+					} else if (rto > 3000) {
+						rto = 1000 + 0.5 * rto
+					}
+					lastUpdate = now
+				}
+				return rto
+			} finally {
+				lock.unlock
+			}
+		}
+		
+		def boolean isIdle(long now, long idleTime) {
+			lock.lock
+			try {
+				return now - lastMeasured > idleTime
+			} finally {
+				lock.unlock
+			}
+		}
+	}
+	
+	/** 
+	 * Inner class that represents an rfc6298 RTT estimator.
+	 * 
+	 * @author César Estebas Gómez.
+	 * @version Xtend-CoAP_v1.0.
+	 */
+	static class Estimator {
+		
+		int k
+		double srtt
+		double rttvar
+		boolean initialized
+		
+		new (int k) {
+			this.k = k
+		}
+		
+		/**
+		 * Updates the estimator with a new measurement.
+		 * 
+		 * @param rtt The round trip time measured.
+		 * @return The RTO of this estimator.
+		 */
+		def double update(long rtt) {
+			if (!initialized) {
+				srtt = rtt
+				rttvar = rtt / 2.0
+				initialized = true
+			} else {
+				rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt)
+				srtt = (1 - ALPHA) * srtt + ALPHA * rtt
+			}
+			return srtt + k * rttvar
+		}
+	}
+	
+	override initialTimeout(Message msg) {
+		var rto = getRTO(Message.peerIdentity(msg.getDestination))
+		// Dithering, as with ACK_RANDOM_FACTOR
+		return clamp(rto * (1 + Math.random * 0.5))
+	}
+	
+	override nextTimeout(Message msg, int timeout, int numRetransmit) {
+		var rto = getRTO(Message.peerIdentity(msg.getDestination))
+		var factor = 2.0
+		if (rto < 1000) {
+			factor = 3.0
+		} else if (rto > 3000) {
+			factor = 1.5
+		}
+		return clamp(timeout * factor)
+	}
+	
+	override getMaxRetransmit() {
+		return MAX_RETRANSMIT
+	}
+	
+	override replyReceived(Message msg, long rtt, int numRetransmit) {
+		var key = Message.peerIdentity(msg.getDestination)
+		var state = peers.get(key)
+		if (state == null) {
+			var newState = new PeerState
+			state = peers.putIfAbsent(key, newState)
+			if (state == null) {
+				state = newState
+			}
+		}
+		state.update(Math.max(rtt, 1), numRetransmit)
+		var now = System.currentTimeMillis
+		var last = lastSweep.get
+		if (now - last > AGING_TIME && lastSweep.compareAndSet(last, now)) {
+			removeIdlePeers(IDLE_TIME)
+		}
+	}
+	
+	/**
+	 * Returns the overall RTO of a peer.
+	 * 
+	 * @param peer The address of the peer.
+	 * @return The RTO in milliseconds, or the default RTO if the peer is unknown.
+	 */
+	def double getRTO(InetSocketAddress peer) {
+		return getRTO(Message.peerIdentity(peer))
+	}
+	
+	def private double getRTO(Object peer) {
+		var state = peers.get(peer)
+		if (state == null) {
+			return DEFAULT_RTO
+		}
+		return state.getRto
+	}
+	
+	/**
+	 * Forgets the estimators of a peer.
+	 * 
+	 * @param peer The address of the peer.
+	 */
+	def void removePeer(InetSocketAddress peer) {
+		peers.remove(Message.peerIdentity(peer))
+	}
+	
+	/**
+	 * Forgets the estimators of the peers without measurements for a while.
+	 * Called every AGING_TIME as replies are received.
+	 * 
+	 * @param idleTime The time in milliseconds since the last measurement.
+	 * @return The number of peers forgotten.
+	 */
+	def int removeIdlePeers(long idleTime) {
+		var now = System.currentTimeMillis
+		var removed = 0
+		var iterator = peers.entrySet.iterator
+		while (iterator.hasNext) {
+			var entry = iterator.next
+			if (entry.value.isIdle(now, idleTime) && peers.remove(entry.key, entry.value)) {
+				removed++
+			}
+		}
+		return removed
+	}
+	
+	def int peerCount() {
+		return peers.size
+	}
+	
+	def private static int clamp(double timeout) {
+		return Math.min(Math.max(timeout, MIN_RTO), MAX_RTO).intValue
+	}
+}
\ No newline at end of file
@@ -15,12 +15,13 @@ import com.xtend.coap.message.request.Request
  */ 
 class Communicator extends UpperLayer {
 
-	public final static int DEFAULT_PORT = UDPLayer.DEFAULT_PORT
-	public final static String URI_SCHEME_NAME = UDPLayer.URI_SCHEME_NAME
+	public final static int DEFAULT_PORT = TransportLayer.DEFAULT_PORT
+	public final static String URI_SCHEME_NAME = TransportLayer.URI_SCHEME_NAME
 	
 	protected TransactionLayer transactionLayer
 	protected MessageLayer messageLayer
-	protected UDPLayer udpLayer
+	protected TransportLayer transportLayer
+	protected IdentifierAllocator identifierAllocator
 
 	/**
 	 * Constructor for a new Communicator
@@ -28,9 +29,19 @@ class Communicator extends UpperLayer {
 	 * @param port The local UDP port to listen for incoming messages
 	 */	
 	new(int port, boolean daemon) throws SocketException {
-		transactionLayer = new TransactionLayer
-		messageLayer = new MessageLayer
-		udpLayer = new UDPLayer(port, daemon)
+		this(new UDPLayer(port, daemon))
+	}
+	
+	/**
+	 * Constructor for a new Communicator
+	 * 
+	 * @param transportLayer The layer that sends and receives the datagrams, e.g. a DatagramChannelLayer
+	 */	
+	new(TransportLayer transportLayer) {
+		this.messageLayer = new MessageLayer
+		this.transactionLayer = new TransactionLayer(messageLayer.getTimer)
+		this.transportLayer = transportLayer
+		this.identifierAllocator = new IdentifierAllocator(transactionLayer.getTokenStore)
 		buildStack
 	}
 
@@ -52,12 +63,13 @@ class Communicator extends UpperLayer {
 	def protected void buildStack() {
 		this.setLowerLayer(transactionLayer)
 		transactionLayer.setLowerLayer(messageLayer)
-		messageLayer.setLowerLayer(udpLayer)
+		messageLayer.setLowerLayer(transportLayer)
 		
 	}
 	
 	@Override
 	override protected void doSendMessage(Message msg) throws IOException {
+		identifierAllocator.assign(msg)
 		sendMessageOverLowerLayer(msg)
 	}	
 	
@@ -73,7 +85,50 @@ class Communicator extends UpperLayer {
 		deliverMessage(msg)
 	}
 	
+	/**
+	 * Sets the allocator of the message IDs and tokens of the messages sent without them
+	 * 
+	 * @param identifierAllocator The allocator, e.g. one with longer tokens
+	 */
+	def void setIdentifierAllocator(IdentifierAllocator identifierAllocator) {
+		this.identifierAllocator = identifierAllocator
+	}
+	
+	def getIdentifierAllocator() {
+		return identifierAllocator
+	}
+	
+	/**
+	 * Stops the exchange of a message sent: its retransmissions end and,
+	 * for a request, its token is released
+	 * 
+	 * @param msg The message sent
+	 */
+	def void cancel(Message msg) {
+		messageLayer.cancelTransmission(msg)
+		if (msg instanceof Request) {
+			transactionLayer.getTokenStore.remove(msg as Request)
+		}
+	}
+	
+	/**
+	 * Returns the timer of the stack, e.g. to watch the deadlines of requests
+	 * 
+	 * @return The timer
+	 */
+	def getTimer() {
+		return messageLayer.getTimer
+	}
+	
+	def getMessageLayer() {
+		return messageLayer
+	}
+	
+	def getTransactionLayer() {
+		return transactionLayer
+	}
+	
 	def port() {
-		return udpLayer.getPort
+		return transportLayer.getPort
 	}
 }
@@ -0,0 +1,305 @@
+package com.xtend.coap.layers
+
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.LongBuffer
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+
+import com.xtend.coap.message.Message
+
+/**
+ * Class that records the exchanges received for duplicate detection, together
+ * with the replies sent to them, during the lifetime of an exchange.
+ *
+ * Exchanges are identified by a long key packing the address and port of the
+ * peer with the message ID. The keys and their expiration times are kept in an
+ * open addressing table, optionally off-heap, split in stripes that are locked
+ * independently. Probing is bounded: when no slot is free, the entry closest
+ * to its expiration is evicted. The replies are kept on the heap, and so are
+ * the addresses of IPv6 peers, whose keys may be shared by other peers: an
+ * exchange only matches a message from the same full address.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class DeduplicationStore {
+
+	// EXCHANGE_LIFETIME of rfc7252, section 4.8.2
+	val public static DEFAULT_LIFETIME = 247000
+	val public static DEFAULT_CAPACITY = 65536
+	val public static BYTES_PER_ENTRY = 32
+	val public static MAX_PROBE = 16
+	val static STRIPES = 64
+
+	LongBuffer keys
+	LongBuffer expirations
+	Message[] replies
+	InetSocketAddress[] peers
+	ReentrantLock[] locks
+	int slotsPerStripe
+	long lifetime
+	AtomicLong evictions
+
+	/**
+	 * Initializes a new DeduplicationStore object with the default capacity and lifetime.
+	 */
+	new () {
+		this(DEFAULT_CAPACITY, DEFAULT_LIFETIME, false)
+	}
+
+	/**
+	 * Initializes a new DeduplicationStore object.
+	 *
+	 * @param capacity The number of exchanges kept, rounded up to a power of two.
+	 * @param lifetime The time an exchange is kept, in milliseconds.
+	 * @param direct True to keep the keys and expiration times off-heap.
+	 */
+	new (int capacity, long lifetime, boolean direct) {
+		var slots = MAX_PROBE
+		while (slots * STRIPES < capacity) {
+			slots = slots.operator_doubleLessThan(1)
+		}
+		this.slotsPerStripe = slots
+		var size = slots * STRIPES
+		if (direct) {
+			this.keys = ByteBuffer.allocateDirect(size * 8).asLongBuffer
+			this.expirations = ByteBuffer.allocateDirect(size * 8).asLongBuffer
+		} else {
+			this.keys = LongBuffer.allocate(size)
+			this.expirations = LongBuffer.allocate(size)
+		}
+		this.replies = newArrayOfSize(size)
+		this.peers = newArrayOfSize(size)
+		this.locks = newArrayOfSize(STRIPES)
+		for (var i = 0; i < STRIPES; i++) {
+			locks.set(i, new ReentrantLock)
+		}
+		this.lifetime = lifetime
+		this.evictions = new AtomicLong
+	}
+
+	/**
+	 * Creates a store that fits in a memory budget.
+	 *
+	 * @param bytes The memory budget in bytes.
+	 * @param lifetime The time an exchange is kept, in milliseconds.
+	 * @param direct True to keep the keys and expiration times off-heap.
+	 * @return The new store.
+	 */
+	def static DeduplicationStore withBudget(long bytes, long lifetime, boolean direct) {
+		var entries = Math.max(bytes / BYTES_PER_ENTRY, MAX_PROBE * STRIPES)
+		return new DeduplicationStore(Long.highestOneBit(Math.min(entries, 1 << 30)) as int, lifetime, direct)
+	}
+
+	/**
+	 * Returns the key of an exchange, as Message.exchangeKey.
+	 *
+	 * @param address The address of the peer.
+	 * @param port The port of the peer.
+	 * @param messageID The message ID.
+	 * @return The key packing the address and port of the peer and the message ID.
+	 */
+	def static long keyOf(InetAddress address, int port, int messageID) {
+		return Message.packPeer(address, port).operator_doubleLessThan(16).bitwiseOr(messageID.bitwiseAnd(0xFFFF))
+	}
+
+	/**
+	 * Checks whether an exchange is known, and records it otherwise.
+	 *
+	 * @param key The key of the exchange.
+	 * @return True if the exchange was already recorded, e.g. the message is a duplicate.
+	 */
+	def boolean checkAndAdd(long key) {
+		return checkAndAdd(key, null)
+	}
+
+	/**
+	 * Checks whether an exchange with a peer is known, and records it otherwise.
+	 *
+	 * @param key The key of the exchange.
+	 * @param peer The address of the peer, compared when its key may be shared.
+	 * @return True if the exchange was already recorded, e.g. the message is a duplicate.
+	 */
+	def boolean checkAndAdd(long key, InetSocketAddress peer) {
+		var now = System.currentTimeMillis
+		var hash = mix(key)
+		var lock = locks.get(stripe(hash))
+		lock.lock
+		try {
+			if (find(hash, key, peer, now) >= 0) {
+				return true
+			}
+			insert(hash, key, peer, now)
+			return false
+		} finally {
+			lock.unlock
+		}
+	}
+
+	/**
+	 * Returns the reply sent to an exchange.
+	 *
+	 * @param key The key of the exchange.
+	 * @return The reply, or null if there is none or the exchange expired.
+	 */
+	def Message getReply(long key) {
+		return getReply(key, null)
+	}
+
+	/**
+	 * Returns the reply sent to an exchange with a peer.
+	 *
+	 * @param key The key of the exchange.
+	 * @param peer The address of the peer, compared when its key may be shared.
+	 * @return The reply, or null if there is none or the exchange expired.
+	 */
+	def Message getReply(long key, InetSocketAddress peer) {
+		var now = System.currentTimeMillis
+		var hash = mix(key)
+		var lock = locks.get(stripe(hash))
+		lock.lock
+		try {
+			var index = find(hash, key, peer, now)
+			if (index < 0) {
+				return null
+			}
+			return replies.get(index)
+		} finally {
+			lock.unlock
+		}
+	}
+
+	/**
+	 * Records the reply sent to an exchange.
+	 *
+	 * @param key The key of the exchange.
+	 * @param reply The reply sent.
+	 */
+	def void putReply(long key, Message reply) {
+		putReply(key, reply.getPeerAddress, reply)
+	}
+
+	/**
+	 * Records the reply sent to an exchange with a peer.
+	 *
+	 * @param key The key of the exchange.
+	 * @param peer The address of the peer, compared when its key may be shared.
+	 * @param reply The reply sent.
+	 */
+	def void putReply(long key, InetSocketAddress peer, Message reply) {
+		var now = System.currentTimeMillis
+		var hash = mix(key)
+		var lock = locks.get(stripe(hash))
+		lock.lock
+		try {
+			var index = find(hash, key, peer, now)
+			if (index < 0) {
+				index = insert(hash, key, peer, now)
+			}
+			replies.set(index, reply)
+		} finally {
+			lock.unlock
+		}
+	}
+
+	def int getCapacity() {
+		return replies.length
+	}
+
+	def getLifetime() {
+		return lifetime
+	}
+
+	/**
+	 * Returns the number of exchanges evicted before they expired because the table was full.
+	 *
+	 * @return The number of evictions.
+	 */
+	def long getEvictions() {
+		return evictions.get
+	}
+
+	/**
+	 * Returns the position of a live exchange. Replies of expired exchanges
+	 * found on the way are released.
+	 *
+	 * @param hash The hash of the key.
+	 * @param key The key of the exchange.
+	 * @param peer The address of the peer.
+	 * @param now The current time.
+	 * @return The position of the exchange, or -1 if it is not recorded.
+	 */
+	def private int find(long hash, long key, InetSocketAddress peer, long now) {
+		var base = stripe(hash) * slotsPerStripe
+		var start = hash as int
+		for (var i = 0; i < MAX_PROBE; i++) {
+			var index = base + (start + i).bitwiseAnd(slotsPerStripe - 1)
+			if (expirations.get(index) > now) {
+				if (keys.get(index) == key && Message.samePeer(peers.get(index), peer)) {
+					return index
+				}
+			} else if (replies.get(index) != null || peers.get(index) != null) {
+				replies.set(index, null)
+				peers.set(index, null)
+			}
+		}
+		return -1
+	}
+
+	/**
+	 * Records an exchange in a free slot, or in place of the one closest to its expiration.
+	 *
+	 * @param hash The hash of the key.
+	 * @param key The key of the exchange.
+	 * @param peer The address of the peer.
+	 * @param now The current time.
+	 * @return The position of the exchange.
+	 */
+	def private int insert(long hash, long key, InetSocketAddress peer, long now) {
+		var base = stripe(hash) * slotsPerStripe
+		var start = hash as int
+		var slot = -1
+		var oldest = Long.MAX_VALUE
+		for (var i = 0; i < MAX_PROBE && slot < 0; i++) {
+			var index = base + (start + i).bitwiseAnd(slotsPerStripe - 1)
+			var expiration = expirations.get(index)
+			if (expiration <= now) {
+				slot = index
+			} else if (expiration < oldest) {
+				oldest = expiration
+				slot = -2 - index
+			}
+		}
+		if (slot < -1) {
+			slot = -2 - slot
+			evictions.incrementAndGet
+		}
+		keys.put(slot, key)
+		expirations.put(slot, now + lifetime)
+		replies.set(slot, null)
+		peers.set(slot, if (Message.isExactKey(peer)) null else peer)
+		return slot
+	}
+
+	def private int stripe(long hash) {
+		return (hash.operator_tripleGreaterThan(32) as int).bitwiseAnd(STRIPES - 1)
+	}
+
+	/**
+	 * Spreads the bits of a key, as the finalizer of MurmurHash3.
+	 *
+	 * @param key The key.
+	 * @return The hash of the key.
+	 */
+	def private static long mix(long key) {
+		var h = key
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		h = h * 0xff51afd7ed558ccd#L
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		h = h * 0xc4ceb9fe1a85ec53#L
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		return h
+	}
+}
\ No newline at end of file
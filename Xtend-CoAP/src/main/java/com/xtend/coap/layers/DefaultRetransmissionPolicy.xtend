@@ -0,0 +1,43 @@
+package com.xtend.coap.layers
+
+import com.xtend.coap.message.Message
+
+/** 
+ * Class that represents the retransmission policy of rfc7252, section 4.2:
+ * a random initial timeout between ACK_TIMEOUT and ACK_TIMEOUT * ACK_RANDOM_FACTOR,
+ * doubled on every retransmission.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class DefaultRetransmissionPolicy implements RetransmissionPolicy {
+	
+	val public static ACK_TIMEOUT = 2000
+	val public static ACK_RANDOM_FACTOR = 1.5
+	val public static MAX_RETRANSMIT = 4
+	
+	override initialTimeout(Message msg) {
+		return rnd(ACK_TIMEOUT, (ACK_TIMEOUT * ACK_RANDOM_FACTOR).intValue)
+	}
+	
+	override nextTimeout(Message msg, int timeout, int numRetransmit) {
+		return timeout * 2
+	}
+	
+	override getMaxRetransmit() {
+		return MAX_RETRANSMIT
+	}
+	
+	override replyReceived(Message msg, long rtt, int numRetransmit) { }
+	
+	/**
+	 * Returns a random number within a given range.
+	 * 
+	 * @param min The lower limit of the range
+	 * @param max The upper limit of the range, inclusive
+	 * @return A random number from the range [min, max]
+	 */
+	def protected static int rnd(int min, int max) {
+		return min + (Math.random * (max - min + 1)).intValue
+	}
+}
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.xtend.coap.layers
+
+import java.io.IOException
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.xtend.coap.message.Message
+
+/**
+ * Class that allocates the message IDs and the tokens of the messages sent by a Communicator.
+ *
+ * Message IDs come from an atomic counter that starts at a random value, as
+ * recommended in rfc7252, section 4.4. Tokens are random and are checked
+ * against the tokens of the requests still waiting for a response from the
+ * same peer. Allocation takes no locks. Tokens of one or two bytes are
+ * searched exhaustively when random ones keep colliding, and a live token is
+ * never handed out again.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class IdentifierAllocator {
+
+	val public static DEFAULT_TOKEN_LENGTH = 4
+	val static MAX_ATTEMPTS = 8
+
+	AtomicInteger messageID
+	TokenStore tokenStore
+	int tokenLength
+
+	/**
+	 * Initializes a new IdentifierAllocator object.
+	 *
+	 * @param tokenStore The store of the requests waiting for a response, or null to skip the check.
+	 */
+	new (TokenStore tokenStore) {
+		this(tokenStore, DEFAULT_TOKEN_LENGTH)
+	}
+
+	/**
+	 * Initializes a new IdentifierAllocator object.
+	 *
+	 * @param tokenStore The store of the requests waiting for a response, or null to skip the check.
+	 * @param tokenLength The length of the tokens in bytes, from 1 to 8.
+	 */
+	new (TokenStore tokenStore, int tokenLength) {
+		this.messageID = new AtomicInteger(ThreadLocalRandom.current.nextInt(Message.MAX_ID + 1))
+		this.tokenStore = tokenStore
+		this.tokenLength = tokenLength
+	}
+
+	/**
+	 * Returns the ID for a new message.
+	 *
+	 * @return The message ID, from 0 to Message.MAX_ID.
+	 */
+	def int nextMessageID() {
+		return messageID.getAndIncrement.bitwiseAnd(Message.MAX_ID)
+	}
+
+	/**
+	 * Returns a token for a new request that is not in use with the peer of the request.
+	 *
+	 * @param request The request.
+	 * @return The token.
+	 * @throws IOException If every token is in use with the peer.
+	 */
+	def long nextToken(Message request) throws IOException {
+		var token = randomToken(tokenLength)
+		if (tokenStore == null || tokenLength <= 0) {
+			return token
+		}
+		var peerKey = request.destinationKey
+		for (var i = 1; i < MAX_ATTEMPTS && tokenStore.contains(peerKey, token); i++) {
+			token = randomToken(tokenLength)
+		}
+		if (!tokenStore.contains(peerKey, token)) {
+			return token
+		}
+		if (tokenLength <= 2) {
+			// Small token space, search the rest of it from the last random token
+			var long space = 1L.operator_doubleLessThan(tokenLength * 8) - 1
+			for (var long i = 1; i < space; i++) {
+				var candidate = (token - 1 + i) % space + 1
+				if (!tokenStore.contains(peerKey, candidate)) {
+					return candidate
+				}
+			}
+		}
+		throw new IOException("No free token of " + tokenLength + " bytes for " + request.getDestination)
+	}
+
+	/**
+	 * Assigns a message ID to a message that has none, and a token to a request that has none.
+	 *
+	 * @param msg The message to be sent.
+	 * @throws IOException If every token is in use with the peer of a request.
+	 */
+	def void assign(Message msg) throws IOException {
+		if (msg.getID < 0) {
+			msg.setID(nextMessageID)
+		}
+		if (msg.isRequest && msg.getTokenLength == 0) {
+			msg.setToken(nextToken(msg), tokenLength)
+		}
+	}
+
+	def getTokenLength() {
+		return tokenLength
+	}
+
+	/**
+	 * Returns a random token that is never 0, unless the length is 0.
+	 *
+	 * @param length The length of the token in bytes.
+	 * @return The token.
+	 */
+	def static long randomToken(int length) {
+		if (length <= 0) {
+			return 0
+		}
+		var random = ThreadLocalRandom.current
+		var long token = 0
+		while (token == 0) {
+			token = random.nextLong
+			if (length < 8) {
+				token = token.operator_tripleGreaterThan(64 - length * 8)
+			}
+		}
+		return token
+	}
+}
\ No newline at end of file
@@ -1,7 +1,6 @@
 package com.xtend.coap.layers
 
 import java.util.List
-import java.util.ArrayList
 import java.io.IOException
 
 import com.xtend.coap.message.Message
@@ -13,14 +12,23 @@ import com.xtend.coap.message.response.Response
 import java.net.DatagramSocket
 import java.net.SocketException
 import java.net.DatagramPacket
-import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.channels.DatagramChannel
 import com.xtend.coap.utils.Option
 import java.net.URI
 import java.net.URISyntaxException
-import java.util.Arrays
-import java.util.TimerTask
-import java.util.LinkedHashMap
-import java.util.Timer
+import java.nio.ByteBuffer
+import com.xtend.coap.message.MessageCodec
+import com.xtend.coap.utils.BufferPool
+import java.util.ArrayDeque
+import com.xtend.coap.utils.ConcurrentLongMap
+import com.xtend.coap.utils.HashedWheelTimer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import java.net.SocketOption
 
 /** 
  * Abstract class that represents a Layer.
@@ -31,8 +39,8 @@ import java.util.Timer
 abstract class Layer implements MessageReceiver {
 		
 	List<MessageReceiver> receivers
-	int numMessagesSent
-	int numMessagesReceived
+	AtomicInteger numMessagesSent = new AtomicInteger
+	AtomicInteger numMessagesReceived = new AtomicInteger
 	
 	/**
 	 * Method to send a message
@@ -42,7 +50,7 @@ abstract class Layer implements MessageReceiver {
 	def sendMessage(Message msg) throws IOException {
 		if (msg != null) {
 			doSendMessage(msg)
-			numMessagesSent++
+			numMessagesSent.incrementAndGet
 		}
 	}
 	
@@ -53,7 +61,7 @@ abstract class Layer implements MessageReceiver {
 	 */
 	override void receiveMessage(Message msg) {
 		if (msg != null) {
-			numMessagesReceived++
+			numMessagesReceived.incrementAndGet
 			doReceiveMessage(msg)
 		}
 	}
@@ -79,7 +87,7 @@ abstract class Layer implements MessageReceiver {
 	def registerReceiver(MessageReceiver receiver) {
 		if (receiver != null && receiver != this) {
 			if (receivers == null) {
-				receivers = new ArrayList<MessageReceiver>
+				receivers = new CopyOnWriteArrayList<MessageReceiver>
 			}
 			receivers.add(receiver)
 		}
@@ -92,11 +100,11 @@ abstract class Layer implements MessageReceiver {
 	}
 	
 	def getNumMessagesSent() {
-		return numMessagesSent
+		return numMessagesSent.get
 	}
 	
 	def getNumMessagesReceived() {
-		return numMessagesReceived
+		return numMessagesReceived.get
 	}	
 }
 /** 
@@ -145,28 +153,49 @@ abstract class UpperLayer extends Layer {
  */
 class TransactionLayer extends UpperLayer {
 	
-	Map<Long, Request> tokenMap
+	TokenStore tokenStore
 	
 	new (){
-		tokenMap = new HashMap<Long, Request>
+		this(new HashedWheelTimer)
+	}
+	
+	/**
+	 * Constructor for a new Transaction layer
+	 * 
+	 * @param timer The timer that expires the pending requests, which may be shared with other layers
+	 */
+	new (HashedWheelTimer timer) {
+		tokenStore = new TokenStore(timer)
+	}
+	
+	/**
+	 * Sets the store that keeps the requests waiting for a response
+	 * 
+	 * @param tokenStore The store, e.g. one with a lower capacity
+	 */
+	def void setTokenStore(TokenStore tokenStore) {
+		this.tokenStore = tokenStore
+	}
+	
+	def getTokenStore() {
+		return tokenStore
 	}
 
 	@Override
 	override protected void doSendMessage(Message msg) throws IOException {
 		if (msg instanceof Request) {
-			var request = msg as Request
-			request.setToken(request.getToken, request.getTokenLength)
-			tokenMap.put(request.getToken, request)
+			if (!tokenStore.add(msg as Request)) {
+				throw new IOException("Token store is full (" + tokenStore.size + " requests pending) or the token is in use, request " + msg.key + " rejected")
+			}
 		}
 		sendMessageOverLowerLayer(msg)
 	}	
 	
 	@Override
 	override protected void doReceiveMessage(Message msg) {
-		var token = msg.getToken
 		if (msg instanceof Response) {
 			var response = msg as Response
-			var request = tokenMap.get(token)
+			var request = tokenStore.get(response)
 			if (request == null) {
 				if (response.getBuddy instanceof Request) {
 					request = response.getBuddy as Request
@@ -175,6 +204,10 @@ class TransactionLayer extends UpperLayer {
 			if (response.isConfirmable) {
 				try {
 					var reply = response.newReply(request != null)
+					if (response.hasOption(Option.OBSERVE)) {
+						// an empty ACK/RST to a notification carries no token
+						reply.setToken(0, 0)
+					}
 					sendMessageOverLowerLayer(reply)
 				} catch (IOException e) {
 					System.err.println("[" + getClass.getName + "] ERROR: Failed to reply to confirmable response: ")
@@ -182,12 +215,11 @@ class TransactionLayer extends UpperLayer {
 				}
 			}
 			if (request != null) {
+				if (!response.isEmptyACK) {
+					tokenStore.responseReceived(request, response)
+				}
 				response.setRequest(request)
 			}
-		} else if (msg instanceof Request) {
-			if (token != 0x0) {
-				tokenMap.put(token, msg as Request)
-			}
 		}
 		deliverMessage(msg)
 	}
@@ -201,75 +233,209 @@ class TransactionLayer extends UpperLayer {
  */
 class MessageLayer extends UpperLayer { 
 	
-	val static ACK_TIMEOUT = 2000
-	val static ACK_RANDOM_FACTOR = 1.5
-	val static MAX_RETRANSMIT = 4
-	val static MESSAGE_CACHE_SIZE = 100 
+	val public static DEFAULT_NSTART = 1
+	val public static DEFAULT_MAX_QUEUED = 128
 	
-	Timer timer
-	Map<Integer, TxContext> txTable
-	MessageCache dupCache
-	MessageCache replyCache
+	HashedWheelTimer timer
+	RetransmissionPolicy retransmissionPolicy
+	ConcurrentLongMap<TxContext> txTable
+	DeduplicationStore deduplicationStore
+	ConcurrentHashMap<Object, PeerQueue> peerQueues
+	Map<Object, Integer> peerNSTART
+	AtomicInteger nstart
+	AtomicInteger maxQueued
+	AtomicInteger queuedMessages
+	AtomicLong numMessagesQueued
+	AtomicLong numMessagesRejected
 	
  	new () {
- 		timer = new Timer(true) 
-		txTable = new HashMap<Integer, TxContext>
-		dupCache = new MessageCache
-		replyCache = new MessageCache
+ 		this(new HashedWheelTimer)
  	}
-	private static class TxContext { 
-		Message msg
-		RetransmitTask retransmitTask
-		int numRetransmit
-		int timeout
+ 	
+ 	/**
+ 	 * Constructor for a new Message layer
+ 	 * 
+ 	 * @param timer The timer that schedules the retransmissions, which may be shared with other layers
+ 	 */
+ 	new (HashedWheelTimer timer) {
+ 		this.timer = timer
+		txTable = new ConcurrentLongMap<TxContext>
+		deduplicationStore = new DeduplicationStore
+		retransmissionPolicy = new DefaultRetransmissionPolicy
+		peerQueues = new ConcurrentHashMap<Object, PeerQueue>
+		peerNSTART = new ConcurrentHashMap<Object, Integer>
+		nstart = new AtomicInteger(DEFAULT_NSTART)
+		maxQueued = new AtomicInteger(DEFAULT_MAX_QUEUED)
+		queuedMessages = new AtomicInteger
+		numMessagesQueued = new AtomicLong
+		numMessagesRejected = new AtomicLong
+ 	}
+ 	
+ 	/**
+ 	 * Sets the policy that decides the timeouts of Confirmable messages
+ 	 * 
+ 	 * @param retransmissionPolicy The retransmission policy, e.g. a CoCoARetransmissionPolicy
+ 	 */
+ 	def void setRetransmissionPolicy(RetransmissionPolicy retransmissionPolicy) {
+ 		this.retransmissionPolicy = retransmissionPolicy
+ 	}
+ 	
+ 	def getRetransmissionPolicy() {
+ 		return retransmissionPolicy
+ 	}
+ 	
+ 	/**
+ 	 * Sets the store used to detect duplicates and to resend the replies to them
+ 	 * 
+ 	 * @param deduplicationStore The store, e.g. one created with DeduplicationStore.withBudget
+ 	 */
+ 	def void setDeduplicationStore(DeduplicationStore deduplicationStore) {
+ 		this.deduplicationStore = deduplicationStore
+ 	}
+ 	
+ 	def getDeduplicationStore() {
+ 		return deduplicationStore
+ 	}
+ 	
+	/**
+	 * Sets the number of Confirmable messages that may be outstanding to a peer
+	 * at the same time (NSTART). Further messages wait in a queue for the peer.
+	 * 
+	 * @param nstart The maximum number of outstanding messages per peer
+	 */
+	def void setNSTART(int nstart) {
+		this.nstart.set(nstart)
 	}
+	
 	/**
-	 * Utility class used for duplicate detection and reply retransmissions
+	 * Sets NSTART for a peer known to handle more outstanding messages.
+	 * 
+	 * @param peer The address of the peer
+	 * @param nstart The maximum number of outstanding messages to the peer, or 0 to use the default
 	 */
-	@SuppressWarnings("serial")
-	private static class MessageCache extends LinkedHashMap<String, Message> {
-		@Override
-		override protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
-			return size > MESSAGE_CACHE_SIZE
+	def void setNSTART(InetSocketAddress peer, int nstart) {
+		if (nstart > 0) {
+			peerNSTART.put(Message.peerIdentity(peer), nstart)
+		} else {
+			peerNSTART.remove(Message.peerIdentity(peer))
 		}
 	}
 	
+	def int getNSTART() {
+		return nstart.get
+	}
+	
 	/**
-	 * Utility class used to notify the Communicator class 
-	 * about timed-out replies
+	 * Sets the maximum number of messages waiting for each peer. Messages
+	 * sent when the queue of the peer is full are rejected.
+	 * 
+	 * @param maxQueued The maximum number of queued messages per peer
 	 */
-	private static class RetransmitTask extends TimerTask {
-		
-		TxContext context
-		MessageLayer messageLayer
-		
-		new(TxContext ctx, MessageLayer messageLayer) {
-			this.context = ctx
-			this.messageLayer = messageLayer
+	def void setMaxQueued(int maxQueued) {
+		this.maxQueued.set(maxQueued)
+	}
+	
+	def int getMaxQueued() {
+		return maxQueued.get
+	}
+	
+	/**
+	 * Returns the number of messages currently waiting in the peer queues.
+	 * 
+	 * @return The number of queued messages
+	 */
+	def int getQueuedMessages() {
+		return queuedMessages.get
+	}
+	
+	/**
+	 * Returns the number of messages that had to wait in a peer queue.
+	 * 
+	 * @return The number of messages queued so far
+	 */
+	def long getNumMessagesQueued() {
+		return numMessagesQueued.get
+	}
+	
+	/**
+	 * Returns the number of messages rejected because the queue of their peer was full.
+	 * 
+	 * @return The number of messages rejected so far
+	 */
+	def long getNumMessagesRejected() {
+		return numMessagesRejected.get
+	}
+	
+	/**
+	 * Returns the number of Confirmable messages outstanding to a peer.
+	 * 
+	 * @param peer The address of the peer
+	 * @return The number of outstanding messages
+	 */
+	def int getOutstanding(InetSocketAddress peer) {
+		var queue = peerQueues.get(Message.peerIdentity(peer))
+		if (queue == null) {
+			return 0
 		}
-			
-		@Override
-		override run() {
-			messageLayer.handleResponseTimeout(context)
+		queue.lock.lock
+		try {
+			return queue.outstanding
+		} finally {
+			queue.lock.unlock
 		}
 	}
 	
+	/**
+	 * Messages outstanding and waiting for a peer, under a lock of their own so
+	 * that exchanges with different peers do not wait for each other. A queue
+	 * is removed from the map once idle, and marked so that a thread that found
+	 * it before takes a new one.
+	 */
+	private static class PeerQueue {
+		ReentrantLock lock = new ReentrantLock
+		int outstanding
+		boolean removed
+		ArrayDeque<Message> waiting = new ArrayDeque<Message>
+	}
+	
+	private static class TxContext { 
+		Message msg
+		long key
+		HashedWheelTimer.Timeout retransmitTimeout
+		int numRetransmit
+		int timeout
+		long firstTransmission
+	}
+	
 	@Override
 	override protected void doSendMessage(Message msg) throws IOException {
 		if (msg.isConfirmable) {
+			if (!acquireSlot(msg)) {
+				return
+			}
 			var ctx = addTransmission(msg)
 			scheduleRetransmission(ctx)
+			msg.transmitted
+			try {
+				sendMessageOverLowerLayer(msg)
+			} catch (IOException e) {
+				completeTransmission(ctx)
+				throw e
+			}
+			return
 		} else if (msg.isReply) {
-			replyCache.put(msg.key, msg)
+			deduplicationStore.putReply(msg.destinationExchangeKey, msg.getDestination, msg)
 		}
+		msg.transmitted
 		sendMessageOverLowerLayer(msg)
 	}
 	
 	@Override
 	override protected void doReceiveMessage(Message msg) {
-		if (dupCache.containsKey(msg.key)) {
-			if (msg.isConfirmable) {
-				var reply = replyCache.get(msg.key)
+		if (!msg.isReply) {
+			var key = msg.exchangeKey
+			if (deduplicationStore.checkAndAdd(key, msg.getPeerAddress)) {
+				var reply = if (msg.isConfirmable) deduplicationStore.getReply(key, msg.getPeerAddress) else null
 				if (reply != null) {
 					try {
 						sendMessageOverLowerLayer(reply)
@@ -277,119 +443,390 @@ class MessageLayer extends UpperLayer {
 						e.printStackTrace
 					}
 					System.out.println("[" + getClass.getName + "] Replied to duplicate Confirmable: " + msg.key)
-					return
+				} else {
+					System.out.println("[" + getClass.getName + "] Duplicate dropped: " + msg.key)
 				}
+				return
 			}
-		} else {
-			dupCache.put(msg.key, msg)
 		}
 		if (msg.isReply) {
-			var ctx = getTransmission(msg)
+			var ctx = takeTransmission(msg)
 			if (ctx != null) {
 				Message.matchBuddies(ctx.msg, msg)
-				removeTransmission(ctx)
-			} else {
+				retransmissionPolicy.replyReceived(ctx.msg, msg.getTimestamp - ctx.firstTransmission, ctx.numRetransmit)
+				sendNext(ctx.msg)
+			} else if (!msg.isReset) {
 				System.out.println("[" + getClass.getName + "] Unexpected reply dropped: " + msg.key)
 				msg.log
 				return
 			}
+			// a Reset may also answer a Non-confirmable message, e.g. a notification
 		}
 		deliverMessage(msg)
 	}	
 	
 	def handleResponseTimeout(TxContext ctx) {
-		if (ctx.numRetransmit < MAX_RETRANSMIT) {
+		if (txTable.get(ctx.key) !== ctx) {
+			return
+		}
+		var maxRetransmit = retransmissionPolicy.getMaxRetransmit
+		if (ctx.numRetransmit < maxRetransmit) {
 			ctx.numRetransmit++
-			System.out.println("[" + getClass.getName + "] Retransmitting " + ctx.msg.key + " (" + ctx.numRetransmit + " of " + MAX_RETRANSMIT + ")")
+			System.out.println("[" + getClass.getName + "] Retransmitting " + ctx.msg.key + " (" + ctx.numRetransmit + " of " + maxRetransmit + ")")
 			try {
 				sendMessageOverLowerLayer(ctx.msg)
 			} catch (IOException e) {
 				System.err.println("[" + getClass.getName + "] ERROR: Retransmission failed: " + e.getMessage)
-				removeTransmission(ctx)
+				completeTransmission(ctx)
 				return
 			}
 			scheduleRetransmission(ctx)
 		} else {
-			removeTransmission(ctx)
+			completeTransmission(ctx)
 			System.out.println("[" + getClass.getName + "] Transmission of " + ctx.msg.key + " cancelled")
 			ctx.msg.timedOut
 		}
 	}
 	
-	def private synchronized TxContext addTransmission(Message msg) {
+	/**
+	 * Records a transmission under the key of its exchange: the address it is
+	 * sent to, which is the proxy for a request with Proxy-Uri, and its message ID.
+	 * 
+	 * @param msg The Confirmable message sent
+	 * @return The transmission
+	 */
+	def private TxContext addTransmission(Message msg) {
 		if (msg != null) {
 			var ctx = new TxContext
 			ctx.msg = msg
+			ctx.key = msg.destinationExchangeKey
 			ctx.numRetransmit = 0
-			ctx.retransmitTask = null
-			txTable.put(msg.getID, ctx)
+			ctx.retransmitTimeout = null
+			ctx.firstTransmission = System.currentTimeMillis
+			txTable.put(ctx.key, ctx)
 			return ctx
 		}
 		return null
 	}
 	
-	def private synchronized TxContext getTransmission(Message msg) {
+	/**
+	 * Returns the transmission a reply belongs to. Replies only match the
+	 * transmissions to the address they come from, which is compared in full
+	 * when its key may be shared.
+	 * 
+	 * @param reply The reply received
+	 * @return The transmission, or null if there is none
+	 */
+	def private TxContext getTransmission(Message reply) {
 		var TxContext res = null
-		if(msg != null){
-			res = txTable.get(msg.getID)
+		if(reply != null){
+			res = txTable.get(reply.exchangeKey)
+			if (res != null && !Message.samePeer(res.msg.getDestination, reply.getPeerAddress)) {
+				res = null
+			}
 		}
 		return res
 	}
 	
-	def private synchronized void removeTransmission(TxContext ctx) {
+	def private boolean removeTransmission(TxContext ctx) {
 		if (ctx != null) {
-			ctx.retransmitTask.cancel
-			ctx.retransmitTask = null
-			txTable.remove(ctx.msg.getID)
+			var retransmitTimeout = ctx.retransmitTimeout
+			if (retransmitTimeout != null) {
+				retransmitTimeout.cancel
+			}
+			return txTable.remove(ctx.key, ctx)
 		}
+		return false
 	}	
 	
 	/**
-	 * Calculates the initial timeout for outgoing Confirmable messages.
+	 * Removes the transmission matched by a reply, so that only one
+	 * receiver thread handles it.
 	 * 
-	 * @Return The timeout in milliseconds
+	 * @param msg The reply received
+	 * @return The transmission, or null if there is none
 	 */
-	def private static int initialTimeout() {
-		return rnd(ACK_TIMEOUT, (ACK_TIMEOUT * ACK_RANDOM_FACTOR).intValue)
-	} 
+	def private TxContext takeTransmission(Message msg) {
+		var ctx = getTransmission(msg)
+		if (removeTransmission(ctx)) {
+			return ctx
+		}
+		return null
+	}
 	
 	/**
-	 * Returns a random number within a given range.
+	 * Stops the transmission of a Confirmable message, whether it is waiting
+	 * for a reply or queued for its peer.
 	 * 
-	 * @param min The lower limit of the range
-	 * @param max The upper limit of the range, inclusive
-	 * @return A random number from the range [min, max]
-	 *
+	 * @param msg The message sent
+	 * @return True if the message was pending
 	 */
-	def private static int rnd(int min, int max) {
-		return min + (Math.random * (max - min + 1)).intValue
+	def boolean cancelTransmission(Message msg) {
+		var ctx = txTable.get(msg.destinationExchangeKey)
+		if (ctx != null && ctx.msg === msg) {
+			if (removeTransmission(ctx)) {
+				sendNext(msg)
+				return true
+			}
+			return false
+		}
+		return dequeue(msg)
+	}
+	
+	/**
+	 * Returns the number of Confirmable messages waiting for a reply.
+	 * 
+	 * @return The number of pending transmissions
+	 */
+	def getPendingTransmissions() {
+		return txTable.size
+	}
+	
+	/**
+	 * Ends a transmission and sends the next message waiting for the same peer.
+	 * 
+	 * @param ctx The transmission
+	 */
+	def private void completeTransmission(TxContext ctx) {
+		if (removeTransmission(ctx)) {
+			sendNext(ctx.msg)
+		}
+	}
+	
+	/**
+	 * Takes a slot for a Confirmable message to its peer, or queues the message
+	 * if NSTART messages are already outstanding.
+	 * 
+	 * @param msg The Confirmable message to send
+	 * @return True if the message can be sent now, false if it was queued
+	 * @throws IOException If the queue of the peer is full
+	 */
+	def private boolean acquireSlot(Message msg) throws IOException {
+		var peer = Message.peerIdentity(msg.getDestination)
+		var queue = lockQueue(peer)
+		try {
+			var limit = peerNSTART.get(peer)
+			if (queue.outstanding < (if (limit != null) limit.intValue else nstart.get)) {
+				queue.outstanding++
+				return true
+			}
+			if (queue.waiting.size >= maxQueued.get) {
+				numMessagesRejected.incrementAndGet
+				throw new IOException("Queue for " + msg.endpointID + " is full, message " + msg.key + " rejected")
+			}
+			queue.waiting.add(msg)
+			queuedMessages.incrementAndGet
+			numMessagesQueued.incrementAndGet
+			return false
+		} finally {
+			if (queue.outstanding <= 0 && queue.waiting.isEmpty) {
+				retire(peer, queue)
+			}
+			queue.lock.unlock
+		}
+	}
+	
+	/**
+	 * Returns the queue of a peer, created if needed, with its lock held.
+	 * 
+	 * @param peer The identity of the peer
+	 * @return The queue, locked
+	 */
+	def private PeerQueue lockQueue(Object peer) {
+		while (true) {
+			var queue = peerQueues.get(peer)
+			if (queue == null) {
+				var created = new PeerQueue
+				queue = peerQueues.putIfAbsent(peer, created)
+				if (queue == null) {
+					queue = created
+				}
+			}
+			queue.lock.lock
+			if (!queue.removed) {
+				return queue
+			}
+			queue.lock.unlock
+		}
+	}
+	
+	/**
+	 * Removes the queue of a peer that has nothing outstanding. Its lock must be held.
+	 */
+	def private void retire(Object peer, PeerQueue queue) {
+		queue.removed = true
+		peerQueues.remove(peer, queue)
+	}
+	
+	/**
+	 * Releases the slot of a completed message and takes it for the next
+	 * message waiting for the same peer, if any.
+	 * 
+	 * @param msg The completed message
+	 * @return The next message to send, or null if there is none
+	 */
+	def private Message releaseSlot(Message msg) {
+		var peer = Message.peerIdentity(msg.getDestination)
+		var queue = peerQueues.get(peer)
+		if (queue == null) {
+			return null
+		}
+		queue.lock.lock
+		try {
+			if (queue.removed) {
+				return null
+			}
+			var next = queue.waiting.poll
+			if (next != null) {
+				queuedMessages.decrementAndGet
+				return next
+			}
+			queue.outstanding--
+			if (queue.outstanding <= 0) {
+				retire(peer, queue)
+			}
+			return null
+		} finally {
+			queue.lock.unlock
+		}
+	}
+	
+	/**
+	 * Removes a message waiting in the queue of its peer.
+	 * 
+	 * @param msg The message queued
+	 * @return True if the message was queued
+	 */
+	def private boolean dequeue(Message msg) {
+		var queue = peerQueues.get(Message.peerIdentity(msg.getDestination))
+		if (queue == null) {
+			return false
+		}
+		queue.lock.lock
+		try {
+			var iterator = queue.waiting.iterator
+			while (iterator.hasNext) {
+				if (iterator.next === msg) {
+					iterator.remove
+					queuedMessages.decrementAndGet
+					return true
+				}
+			}
+			return false
+		} finally {
+			queue.lock.unlock
+		}
+	}
+	
+	/**
+	 * Sends the next message waiting for the peer of a completed message.
+	 * 
+	 * @param msg The completed message
+	 */
+	def private void sendNext(Message msg) {
+		var next = releaseSlot(msg)
+		if (next != null) {
+			var ctx = addTransmission(next)
+			scheduleRetransmission(ctx)
+			next.transmitted
+			try {
+				sendMessageOverLowerLayer(next)
+			} catch (IOException e) {
+				System.err.println("[" + getClass.getName + "] ERROR: Failed to send queued message: " + e.getMessage)
+				completeTransmission(ctx)
+			}
+		}
 	}
 	
 	def private void scheduleRetransmission(TxContext ctx) {
-		if (ctx.retransmitTask != null) {
-			ctx.retransmitTask.cancel
+		if (ctx.retransmitTimeout != null) {
+			ctx.retransmitTimeout.cancel
 		}
-		ctx.retransmitTask = new RetransmitTask(ctx, this)
 		if (ctx.timeout == 0) {
-			ctx.timeout = initialTimeout
+			ctx.timeout = retransmissionPolicy.initialTimeout(ctx.msg)
 		} else {
-			ctx.timeout = ctx.timeout * 2
+			ctx.timeout = retransmissionPolicy.nextTimeout(ctx.msg, ctx.timeout, ctx.numRetransmit)
 		}
-		timer.schedule(ctx.retransmitTask, ctx.timeout)
+		ctx.retransmitTimeout = timer.newTimeout([| handleResponseTimeout(ctx)], ctx.timeout)
+	}
+	
+	def getTimer() {
+		return timer
 	}
 }
 
 /** 
- * Class that represents a UDP Layer.
+ * Abstract class that represents the transport layer at the bottom of the stack.
+ * It resolves the destination of outgoing messages and completes incoming ones.
  * 
  * @author César Estebas Gómez.
  * @version Xtend-CoAP_v1.0.
  */
-class UDPLayer extends Layer {
+abstract class TransportLayer extends Layer {
 	
-	val public static DEFAULT_PORT = 5683
+	val public static DEFAULT_PORT = Message.DEFAULT_PORT
 	val public static String URI_SCHEME_NAME = "coap"
 	
+	/**
+	 * Returns the local port the transport listens on
+	 * 
+	 * @return The local port
+	 */
+	def abstract int getPort()
+	
+	/**
+	 * Returns the address a message has to be sent to
+	 * 
+	 * @param msg The message to be sent
+	 * @return The destination address, or null if it cannot be resolved
+	 */
+	def protected InetSocketAddress getDestination(Message msg) throws IOException {
+		var destination = msg.getDestination
+		if (destination == null && msg.hasOption(Option.PROXY_URI)) {
+			throw new IOException("Unable to resolve the Proxy-Uri of " + msg.key)
+		}
+		return destination
+	}
+	
+	@Override
+	override protected void doReceiveMessage(Message msg) {
+		deliverMessage(msg)
+	}
+	
+	/**
+	 * Method that completes a decoded message with its source and passes it up.
+	 * 
+	 * @param msg The message received.
+	 * @param source The address of the sender.
+	 * @param timestamp The time at which the datagram was received.
+	 */
+	def protected void messageReceived(Message msg, InetSocketAddress source, long timestamp) {
+		msg.setTimestamp(timestamp)
+		var scheme = URI_SCHEME_NAME
+		var String 	userInfo 	= null
+		var host = source.getAddress.getHostAddress
+		var port = source.getPort
+		var String path = null
+		var String query = null
+		var String fragment = null
+		try {
+			msg.setURI(new URI(scheme, userInfo, host, port, path, query, fragment))
+		} catch (URISyntaxException e) {
+			System.out.println("[" + getClass.getName + "] Failed to build URI for incoming message: " +  e.getMessage)
+		}
+		msg.setPeerAddress(source)
+		receiveMessage(msg)
+	}
+}
+
+/** 
+ * Class that represents the UDP Layer.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class UDPLayer extends TransportLayer {
+	
 	DatagramSocket socket
 	ReceiverThread receiverThread	
 	
@@ -467,49 +904,22 @@ class UDPLayer extends Layer {
 		return receiverThread.isDaemon
 	}
 	
-	def getPort() {
+	override getPort() {
 		return socket.getLocalPort
 	}	
 
 	@Override
 	override protected void doSendMessage(Message msg) throws IOException {
-		var uri = msg.getURI
-		var InetAddress address = null
-		var port = DEFAULT_PORT
-		if (msg.hasOption(Option.PROXY_URI)) {
-			var URI proxyUri = null
-			try {
-				proxyUri = new URI(msg.getFirstOption(Option.PROXY_URI).displayValue)
-			} catch (URISyntaxException e) {
-				System.err.printf("[" + getClass.getName + "] Failed to set URI: " + e.getMessage)
-				return
-			}
-			address = InetAddress.getByName(proxyUri.getHost)
-			if (proxyUri != null) {
-				port = proxyUri.getPort
-			} else {
-				port = DEFAULT_PORT
-			}
-		} else {
-			address = msg.getAddress
-			if(uri != null){
-				port = uri.getPort
-			}
-		}
-		if (port < 0){
-			port = DEFAULT_PORT
+		var destination = getDestination(msg)
+		if (destination == null) {
+			return
 		}
 		var payload = msg.toByteArray
-		var datagram = new DatagramPacket(payload, payload.length, address, port)
+		var datagram = new DatagramPacket(payload, payload.length, destination)
 		msg.setTimestamp(System.currentTimeMillis)
 		socket.send(datagram)
 	}
 
-	@Override
-	override protected void doReceiveMessage(Message msg) {
-		deliverMessage(msg)
-	}
-
 	/**
 	 * Method that receive a datagram and analyzes it.
 	 * 
@@ -517,22 +927,231 @@ class UDPLayer extends Layer {
 	 */
 	def datagramReceived(DatagramPacket datagram) {
 		var timestamp = System.currentTimeMillis()
-		var data = Arrays.copyOfRange(datagram.getData, datagram.getOffset, datagram.getLength) 
-		var msg = Message.fromByteArray(data)
+		var msg = Message.fromByteBuffer(ByteBuffer.wrap(datagram.getData, datagram.getOffset, datagram.getLength), true)
+		if (msg == null) {
+			return
+		}
+		messageReceived(msg, datagram.getSocketAddress as InetSocketAddress, timestamp)
+	}
+}
+
+/** 
+ * Class that represents a UDP Layer backed by a DatagramChannel.
+ * 
+ * Datagrams are received into direct buffers taken from a pool, so no
+ * buffer is allocated per datagram. Datagrams longer than the maximum
+ * message size are dropped instead of truncated.
+ * 
+ * The layer can receive on several threads. Where the platform supports
+ * SO_REUSEPORT, each thread gets its own channel bound to the same port and
+ * the kernel spreads the peers among them; otherwise the threads share one
+ * channel and only the decoding and the upper layers run in parallel.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class DatagramChannelLayer extends TransportLayer {
+	
+	val public static DEFAULT_MAX_MESSAGE_SIZE = 1152
+	
+	DatagramChannel[] channels
+	BufferPool bufferPool
+	int maxMessageSize
+	ReceiverThread[] receiverThreads
+	
+	/**
+	 * Constructor for a new DatagramChannel layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the listener threads should not keep the application alive
+	 * @param maxMessageSize The maximum size of the messages sent and received
+	 * @param receivers The number of threads receiving datagrams
+	 */
+	new (int port, boolean daemon, int maxMessageSize, int receivers) throws IOException {
+		this.maxMessageSize = maxMessageSize
+		// One extra byte to detect datagrams longer than the maximum size
+		this.bufferPool = new BufferPool(maxMessageSize + 1, Math.max(BufferPool.DEFAULT_MAX_POOLED, receivers * 2))
+		var first = DatagramChannel.open
+		var reusePort = receivers > 1 && enableReusePort(first)
+		first.bind(new InetSocketAddress(port))
+		this.channels = newArrayOfSize(if (reusePort) receivers else 1)
+		this.channels.set(0, first)
+		for (var i = 1; i < channels.length; i++) {
+			var channel = DatagramChannel.open
+			enableReusePort(channel)
+			channel.bind(new InetSocketAddress(first.socket.getLocalPort))
+			this.channels.set(i, channel)
+		}
+		this.receiverThreads = newArrayOfSize(Math.max(receivers, 1))
+		for (var i = 0; i < receiverThreads.length; i++) {
+			var thread = new ReceiverThread(this, channels.get(i % channels.length))
+			thread.setDaemon(daemon)
+			receiverThreads.set(i, thread)
+			thread.start
+		}
+	}
+	
+	/**
+	 * Constructor for a new DatagramChannel layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the listener thread should not keep the application alive
+	 * @param maxMessageSize The maximum size of the messages sent and received
+	 */
+	new (int port, boolean daemon, int maxMessageSize) throws IOException {
+		this(port, daemon, maxMessageSize, 1)
+	}
+	
+	/**
+	 * Constructor for a new DatagramChannel layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the listener thread should not keep the application alive
+	 */
+	new (int port, boolean daemon) throws IOException {
+		this(port, daemon, DEFAULT_MAX_MESSAGE_SIZE)
+	}
+	
+	/** 
+	 * Inner class that represents a Receiver Thread.
+	 * 
+	 * @author César Estebas Gómez.
+	 * @version Xtend-CoAP_v1.0.
+	 */
+	static class ReceiverThread extends Thread {
 		
-		msg.setTimestamp(timestamp)
-		var scheme = URI_SCHEME_NAME
-		var String 	userInfo 	= null
-		var host = datagram.getAddress.getHostAddress
-		var port = datagram.getPort
-		var String path = null
-		var String query = null
-		var String fragment = null
+		DatagramChannelLayer channelLayer
+		DatagramChannel channel
+	
+		new(DatagramChannelLayer channelLayer, DatagramChannel channel){
+			this.channelLayer = channelLayer
+			this.channel = channel
+		}
+		
+		@Override
+		override public void run() {
+			while (channel.isOpen) {
+				var buffer = channelLayer.getBufferPool.acquire
+				try {
+					var source = channel.receive(buffer) as InetSocketAddress
+					buffer.flip
+					channelLayer.datagramReceived(buffer, source)
+				} catch (IOException e) {
+					if (channel.isOpen) {
+						e.printStackTrace
+					}
+				} finally {
+					channelLayer.getBufferPool.release(buffer)
+				}
+			}
+		}
+	}
+	
+	def getChannel() {
+		return channels.get(0)
+	}
+	
+	/**
+	 * Returns the number of channels bound to the local port
+	 * 
+	 * @return The number of channels, greater than one if SO_REUSEPORT is in use
+	 */
+	def getChannelCount() {
+		return channels.length
+	}
+	
+	/**
+	 * Returns the number of threads receiving datagrams
+	 * 
+	 * @return The number of receiver threads
+	 */
+	def getReceiverCount() {
+		return receiverThreads.length
+	}
+	
+	def getBufferPool() {
+		return bufferPool
+	}
+	
+	def getMaxMessageSize() {
+		return maxMessageSize
+	}
+	
+	def isDaemon() {
+		return receiverThreads.get(0).isDaemon
+	}
+	
+	override getPort() {
+		return getChannel.socket.getLocalPort
+	}
+	
+	/**
+	 * Closes the channels and stops the listener threads
+	 */
+	def void close() throws IOException {
+		for (DatagramChannel channel : channels) {
+			channel.close
+		}
+	}
+	
+	/**
+	 * Enables SO_REUSEPORT on a channel that is not bound yet. The option is
+	 * looked up by reflection since it is not available on every Java version.
+	 * 
+	 * @param channel The channel
+	 * @return True if the option was enabled
+	 */
+	def private static boolean enableReusePort(DatagramChannel channel) {
 		try {
-			msg.setURI(new URI(scheme, userInfo, host, port, path, query, fragment))
-		} catch (URISyntaxException e) {
-			System.out.println("[" + getClass.getName + "] Failed to build URI for incoming message: " +  e.getMessage)
+			var option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null) as SocketOption<Boolean>
+			channel.setOption(option, true)
+			return true
+		} catch (Exception e) {
+			return false
 		}
-		receiveMessage(msg)
+	}
+	
+	@Override
+	override protected void doSendMessage(Message msg) throws IOException {
+		var destination = getDestination(msg)
+		if (destination == null) {
+			return
+		}
+		var length = MessageCodec.encodedLength(msg)
+		if (length < 0 || length > maxMessageSize) {
+			System.err.println("[" + getClass.getName + "] Message too large to be sent: " + length + " Bytes")
+			return
+		}
+		var buffer = bufferPool.acquire
+		try {
+			if (MessageCodec.encode(msg, buffer) < 0) {
+				return
+			}
+			buffer.flip
+			msg.setTimestamp(System.currentTimeMillis)
+			getChannel.send(buffer, destination)
+		} finally {
+			bufferPool.release(buffer)
+		}
+	}
+	
+	/**
+	 * Method that decodes a datagram received into a pooled buffer.
+	 * The codec copies the options and payload out of the buffer, so it can be reused.
+	 * 
+	 * @param buffer The buffer holding the datagram, ready to be read.
+	 * @param source The address of the sender.
+	 */
+	def datagramReceived(ByteBuffer buffer, InetSocketAddress source) {
+		var timestamp = System.currentTimeMillis()
+		if (buffer.remaining > maxMessageSize) {
+			System.err.println("[" + getClass.getName + "] Dropped datagram larger than " + maxMessageSize + " Bytes")
+			return
+		}
+		var msg = Message.fromByteBuffer(buffer, false)
+		if (msg == null) {
+			return
+		}
+		messageReceived(msg, source, timestamp)
 	}
 }
\ No newline at end of file
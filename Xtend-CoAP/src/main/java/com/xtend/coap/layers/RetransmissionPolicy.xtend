@@ -0,0 +1,43 @@
+package com.xtend.coap.layers
+
+import com.xtend.coap.message.Message
+
+/** 
+ * Interface with the methods of a Retransmission Policy, which decides the
+ * timeouts of the Confirmable messages sent by the Message Layer.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+interface RetransmissionPolicy {
+	/**
+	 * Method to get the timeout of the first transmission of a message.
+	 * 
+	 * @param msg The Confirmable message sent.
+	 * @return The timeout in milliseconds.
+	 */
+	def int initialTimeout(Message msg)
+	/**
+	 * Method to get the timeout after a retransmission of a message.
+	 * 
+	 * @param msg The Confirmable message retransmitted.
+	 * @param timeout The previous timeout in milliseconds.
+	 * @param numRetransmit The number of retransmissions so far.
+	 * @return The timeout in milliseconds.
+	 */
+	def int nextTimeout(Message msg, int timeout, int numRetransmit)
+	/**
+	 * Method to get the maximum number of retransmissions of a message.
+	 * 
+	 * @return The maximum number of retransmissions.
+	 */
+	def int getMaxRetransmit()
+	/**
+	 * Method called when the reply to a Confirmable message is received.
+	 * 
+	 * @param msg The Confirmable message.
+	 * @param rtt The time from the first transmission to the reply in milliseconds.
+	 * @param numRetransmit The number of retransmissions of the message.
+	 */
+	def void replyReceived(Message msg, long rtt, int numRetransmit)
+}
\ No newline at end of file
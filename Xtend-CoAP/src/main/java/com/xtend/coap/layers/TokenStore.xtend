@@ -0,0 +1,220 @@
+package com.xtend.coap.layers
+
+import java.net.InetSocketAddress
+import java.util.concurrent.atomic.AtomicLong
+
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.Request
+import com.xtend.coap.utils.ConcurrentLongMap
+import com.xtend.coap.utils.HashedWheelTimer
+import com.xtend.coap.utils.Option
+
+/**
+ * Class that keeps the requests sent and waiting for a response, by peer and
+ * token. The peer of a request is the address it is sent to, which is the
+ * proxy for a request with Proxy-Uri, since the response comes from there.
+ *
+ * Entries are removed when the final response is received, or when they expire:
+ * after the exchange lifetime for ordinary requests, or after the notification
+ * lifetime since the last notification for Observe requests. The number of
+ * entries is bounded, so the memory used by the store has a ceiling. The
+ * key of an IPv6 peer may be shared by other peers, so responses are also
+ * matched against the full address of the peer.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class TokenStore {
+
+	// EXCHANGE_LIFETIME of rfc7252, section 4.8.2
+	val public static DEFAULT_LIFETIME = 247000
+	val public static DEFAULT_OBSERVE_LIFETIME = 600000
+	val public static DEFAULT_CAPACITY = 65536
+
+	ConcurrentLongMap<Entry> entries
+	HashedWheelTimer timer
+	int capacity
+	long lifetime
+	long observeLifetime
+	AtomicLong expirations
+
+	/**
+	 * Initializes a new TokenStore object with the default capacity and lifetimes.
+	 *
+	 * @param timer The timer that expires the entries.
+	 */
+	new (HashedWheelTimer timer) {
+		this(timer, DEFAULT_CAPACITY, DEFAULT_LIFETIME, DEFAULT_OBSERVE_LIFETIME)
+	}
+
+	/**
+	 * Initializes a new TokenStore object.
+	 *
+	 * @param timer The timer that expires the entries.
+	 * @param capacity The maximum number of requests kept.
+	 * @param lifetime The time a request waits for its response, in milliseconds.
+	 * @param observeLifetime The time an Observe request waits for its next notification, in milliseconds.
+	 */
+	new (HashedWheelTimer timer, int capacity, long lifetime, long observeLifetime) {
+		this.entries = new ConcurrentLongMap<Entry>
+		this.timer = timer
+		this.capacity = capacity
+		this.lifetime = lifetime
+		this.observeLifetime = observeLifetime
+		this.expirations = new AtomicLong
+	}
+
+	private static class Entry {
+		Request request
+		long peerKey
+		InetSocketAddress peer
+		long token
+		HashedWheelTimer.Timeout timeout
+	}
+
+	/**
+	 * Records a request sent. A pending request with the same peer and token
+	 * is replaced; one with the same token to another peer with the same key
+	 * is kept, and the request is not recorded.
+	 *
+	 * @param request The request sent.
+	 * @return True if the request was recorded, false if the store is full or the key is taken.
+	 */
+	def boolean add(Request request) {
+		if (entries.size >= capacity) {
+			return false
+		}
+		var entry = new Entry
+		entry.request = request
+		entry.peerKey = request.destinationKey
+		entry.peer = request.getDestination
+		entry.token = request.getToken
+		var key = keyOf(entry.peerKey, entry.token)
+		var old = entries.get(key)
+		if (old != null && (old.peerKey != entry.peerKey || !Message.samePeer(old.peer, entry.peer))) {
+			return false
+		}
+		schedule(entry, if (request.hasOption(Option.OBSERVE)) observeLifetime else lifetime)
+		old = entries.put(key, entry)
+		if (old != null) {
+			old.timeout.cancel
+		}
+		return true
+	}
+
+	/**
+	 * Returns the request a response belongs to, by the peer it comes from and its token.
+	 *
+	 * @param response The response received.
+	 * @return The request, or null if there is none.
+	 */
+	def Request get(Message response) {
+		var entry = find(response.peerKey, response.getPeerAddress, response.getToken)
+		if (entry == null) {
+			return null
+		}
+		return entry.request
+	}
+
+	/**
+	 * Updates the store with a response to a request. The request is removed
+	 * unless the response is a notification of an Observe request, which
+	 * renews its lifetime instead.
+	 *
+	 * @param request The request.
+	 * @param response The response received.
+	 */
+	def void responseReceived(Request request, Message response) {
+		var entry = find(request.destinationKey, request.getDestination, request.getToken)
+		if (entry == null || entry.request !== request) {
+			return
+		}
+		if (request.hasOption(Option.OBSERVE) && response.hasOption(Option.OBSERVE) && !response.isReset) {
+			entry.timeout.cancel
+			schedule(entry, observeLifetime)
+		} else {
+			remove(entry)
+		}
+	}
+
+	/**
+	 * Removes a request, e.g. when an observation is cancelled.
+	 *
+	 * @param request The request.
+	 * @return True if the request was in the store.
+	 */
+	def boolean remove(Request request) {
+		var entry = find(request.destinationKey, request.getDestination, request.getToken)
+		if (entry == null || entry.request !== request) {
+			return false
+		}
+		return remove(entry)
+	}
+
+	/**
+	 * Checks whether a token is in use with a peer, or with another peer with the same key.
+	 *
+	 * @param peerKey The key of the peer, as returned by Message.peerKey.
+	 * @param token The token.
+	 * @return True if a request to a peer with the key and the token is waiting for a response.
+	 */
+	def boolean contains(long peerKey, long token) {
+		var entry = entries.get(keyOf(peerKey, token))
+		return entry != null && entry.peerKey == peerKey && entry.token == token
+	}
+
+	/**
+	 * Returns the number of requests kept.
+	 *
+	 * @return The occupancy of the store.
+	 */
+	def int size() {
+		return entries.size
+	}
+
+	def getCapacity() {
+		return capacity
+	}
+
+	/**
+	 * Returns the number of requests removed because no final response arrived in time.
+	 *
+	 * @return The number of expired requests.
+	 */
+	def long getExpirations() {
+		return expirations.get
+	}
+
+	def private Entry find(long peerKey, InetSocketAddress peer, long token) {
+		var entry = entries.get(keyOf(peerKey, token))
+		if (entry == null || entry.peerKey != peerKey || entry.token != token || !Message.samePeer(entry.peer, peer)) {
+			return null
+		}
+		return entry
+	}
+
+	def private boolean remove(Entry entry) {
+		entry.timeout.cancel
+		return entries.remove(keyOf(entry.peerKey, entry.token), entry)
+	}
+
+	def private void schedule(Entry entry, long delay) {
+		entry.timeout = timer.newTimeout([|
+			if (entries.remove(keyOf(entry.peerKey, entry.token), entry)) {
+				expirations.incrementAndGet
+			}
+		], delay)
+	}
+
+	/**
+	 * Returns the key of a peer and a token. Tokens are spread with an odd
+	 * multiplier, so two tokens of the same peer never share a key.
+	 *
+	 * @param peerKey The key of the peer, as returned by Message.peerKey.
+	 * @param token The token.
+	 * @return The key in the store.
+	 */
+	def private static long keyOf(long peerKey, long token) {
+		return (token * 0x9e3779b97f4a7c15#L).bitwiseXor(peerKey)
+	}
+}
\ No newline at end of file
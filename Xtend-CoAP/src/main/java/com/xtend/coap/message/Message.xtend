@@ -1,20 +1,22 @@
 package com.xtend.coap.message
 
 import java.io.UnsupportedEncodingException
+import java.net.Inet4Address
 import java.net.InetAddress
+import java.net.InetSocketAddress
 import java.net.URI
 import java.net.URISyntaxException
 import java.net.UnknownHostException
 import java.util.ArrayList
-import java.util.List
-import java.util.Map
-import java.util.TreeMap
 import java.util.Arrays
+import java.util.List
+import java.util.concurrent.locks.Condition
+import java.util.concurrent.locks.ReentrantLock
+import java.nio.ByteBuffer
 
 import com.xtend.coap.utils.Option
 import com.xtend.coap.utils.MessageType
 import com.xtend.coap.utils.Code
-import com.xtend.coap.utils.DatagramUtils
 import com.xtend.coap.utils.ContentFormat
 import com.xtend.coap.utils.HexUtils
 
@@ -39,18 +41,26 @@ class Message {
 	val public static OPTION_EXT_13 = 8
 	val public static OPTION_EXT_14 = 16
 	val public static MAX_ID = 1.operator_doubleLessThan(ID) - 1
+	/** Port of a URI that has none. */
+	val public static DEFAULT_PORT = 5683
 	
-	byte[] payload_marker 
+	val static INIT_STRIPES = 64
+	val static ReentrantLock[] INIT_LOCKS = newInitLocks
 	
 	URI uri
+	InetSocketAddress peerAddress
+	long peerKey
+	InetSocketAddress proxyAddress
 	byte[] payload
+	ReentrantLock payloadLock
+	Condition payloadAvailable
 	boolean complete
 	int version
 	MessageType type
-	String code
+	int code
 	int messageID
 	Message buddy
-	Map<Integer, List<Option>> optionMap
+	OptionIndex optionIndex
 	long timestamp
 	long token
 	int tokenLength
@@ -78,9 +88,7 @@ class Message {
 	new() { 
 		this.version = 1
 		this.messageID = -1
-		this.optionMap = new TreeMap<Integer, List<Option>>
-		this.payload_marker = newByteArrayOfSize(1)
-		this.payload_marker.set(0, 0xFF.byteValue)
+		this.optionIndex = new OptionIndex
 	}
 
 	/**
@@ -92,7 +100,7 @@ class Message {
 	new(MessageType type, String code) {
 		this()
 		this.type = type
-		this.code = code
+		this.code = Code.parse(code)
 	}	
 	
 	/**
@@ -122,7 +130,7 @@ class Message {
 		reply.messageID = this.messageID
 		reply.setToken(getToken, getTokenLength)
 		reply.uri = this.uri
-		reply.code = Code.EMPTY_MESSAGE
+		reply.code = Code.EMPTY
 		return reply
 	}
 	
@@ -163,178 +171,78 @@ class Message {
 
 	/**
 	 * Encodes the message into its raw binary representation
-	 * as specified in draft-ietf-core-coap-05, section 3.1
+	 * as specified in rfc7252, section 3
 	 * 
 	 * @return A byte array containing the CoAP encoding of the message
 	 * 
 	 */
 	def toByteArray() {
-		var optWriter = new DatagramUtils(null)
-		var optionCount = 0
-		var lastOptionNumber = 0
-		for (Option opt : getOptionList) {
-			var optionDeltaExtended = -1
-			var optionDelta = opt.getOptionNumber - lastOptionNumber
-			if (optionDelta >= 0xD && optionDelta < 0x10D) {
-				optionDeltaExtended = optionDelta - 0xD
-				optionDelta = 0xD
-			} else if (optionDelta >= 0x10D && optionDelta <= 0xFFFF) {
-				optionDeltaExtended = optionDelta - 0x10D
-				optionDelta = 0xE
-			} else if (optionDelta > 0xFFFF) {
-				System.err.println("ERROR: Option number error.")
-				return null
-			}
-			
-			var optionLengthExtended = -1
-			var optionLength = opt.getLength
-			if (optionLength >= 0xD && optionLength < 0x10D) {
-				optionLengthExtended = optionLength - 0xD
-				optionLength = 0xD
-			} else if (optionLength >= 0x10D && optionLength <= 0xFFFF) {
-				optionLengthExtended = optionLength - 0x10D
-				optionLength = 0xE
-			} else if (optionLength > 0xFFFF) {
-				System.err.println("ERROR: Option length error.")
-				return null
-			}
-			
-			optWriter.write(optionDelta, OPTION_DELTA)
-			optWriter.write(optionLength, OPTION_LENGTH)
-			if (optionDeltaExtended != -1) {
-				if (optionDelta == 0xD) {
-					optWriter.write(optionDeltaExtended, OPTION_EXT_13)
-				} else if (optionDelta == 0xE) {
-					optWriter.write(optionDeltaExtended, OPTION_EXT_14)
-				}
-			}
-			if (optionLengthExtended != -1) {
-				if (optionLength == 0xD) {
-					optWriter.write(optionLengthExtended, OPTION_EXT_13)
-				} else if (optionLength == 0xE) {
-					optWriter.write(optionLengthExtended, OPTION_EXT_14)
-				}
-			}
-			
-			optWriter.writeBytes(opt.getRawValue)
-			optionCount++
-			lastOptionNumber = opt.getOptionNumber
-		}
-		var writer = new DatagramUtils(null)
-		writer.write(version, VER)
-		writer.write(type.ordinal, T)
-		writer.write(tokenLength, TKL)
-		writer.write(Code.codeClass(code), CODE_CLASS)
-		writer.write(Code.codeDetail(code), CODE_DETAIL)
-		writer.write(messageID, ID)
-		if (code == Code.EMPTY_MESSAGE) {
-			return writer.toByteArray
-		}
-		writer.writeBytes(HexUtils.longToBytes(token, tokenLength))
-		writer.writeBytes(optWriter.toByteArray)
-		if (payload != null && payload.length > 0) {
-			if (optionCount > 0) {
-				writer.writeBytes(payload_marker)
-			}
-			writer.writeBytes(payload)
-		}
-		return writer.toByteArray
+		return MessageCodec.encode(this)
+	}
+
+	/**
+	 * Encodes the message into the given buffer, starting at its current position
+	 * as specified in rfc7252, section 3
+	 * 
+	 * @param buffer The buffer to write to
+	 * @return The number of bytes written, or -1 if the message cannot be encoded
+	 */
+	def writeTo(ByteBuffer buffer) {
+		return MessageCodec.encode(this, buffer)
 	}
 
 	/**
 	 * Decodes the message from the its binary representation
-	 * as specified in draft-ietf-core-coap-05, section 3.1
+	 * as specified in rfc7252, section 3
 	 * 
 	 * @param byteArray A byte array containing the CoAP encoding of the message
 	 * 
 	 */
 	def static fromByteArray(byte[] byteArray) {
-		var datagram = new DatagramUtils(byteArray)
-		var version = datagram.read(VER)
-		var type = getTypeByID(datagram.read(T))
-		var tokLen = datagram.read(TKL)
-		var codeClass = datagram.read(CODE_CLASS)
-		var codeDetail = datagram.read(CODE_DETAIL)
-		var code = Code.genCode(codeClass, codeDetail)
-		if (!Code.isValid(code)) {
-			System.err.println("ERROR: Invalid message code: " + code)
-			return null
-		}
-		var Message msg
-		try {
-			msg = Code.getMessageClass(code).newInstance
-		} catch (InstantiationException e) {
-			e.printStackTrace
-			return null
-		} catch (IllegalAccessException e) {
-			e.printStackTrace
-			return null
-		}
-		msg.version = version
-		msg.type = type
-		msg.tokenLength = tokLen
-		msg.code = code
-		msg.messageID = datagram.read(ID)
-		msg.token = HexUtils.bytesToLong(datagram.readBytes(msg.tokenLength))  // Read the token
-		
-		if (code == Code.EMPTY_MESSAGE) {
-			if (msg.token != 0x0) {
-				System.err.println("ERROR: Message format error.")
-				return null
-			}
-		}
-		var currentOption = 0
-		
-		var end = false
-		var bytesLeft = datagram.readBytesLeft
-		var aux = new DatagramUtils(bytesLeft)
-		datagram = new DatagramUtils(bytesLeft)
-		while (!end){
-			var optionDelta = datagram.read(OPTION_DELTA)
-			var optionLength = datagram.read(OPTION_LENGTH)
-			if (optionDelta == 0xD) {
-				optionDelta = datagram.read(OPTION_EXT_13) + 0xD
-			} else if (optionDelta == 0xE) {
-				optionDelta = datagram.read(OPTION_EXT_14) + 0x10D
-			} else if(optionDelta == 0xF) {  // Reserverd for the payload_marker
-				if(optionDelta != optionLength) {
-					System.err.println("ERROR: Message format error.")
-					return null
-				}
-			}
-			if (optionLength == 0xD) {
-				optionLength = datagram.read(OPTION_EXT_13) + 0xD
-			} else if (optionDelta == 0xE) {
-				optionLength = datagram.read(OPTION_EXT_14) + 0x10D
-			} else if (optionLength == 0xF) {  // Reserverd for future use
-				System.err.println("ERROR: Message format error.")
-				return null
-			}
-			currentOption += optionDelta
-
-			var rB = datagram.readBytes(optionLength)
-			var opt = new Option (rB, currentOption)
-			msg.addOption(opt)
+		return MessageCodec.decode(ByteBuffer.wrap(byteArray))
+	}
 
-			
-			bytesLeft = datagram.readBytesLeft
-			if (bytesLeft.length == 0) {
-				end = true	
-			} else {
-				aux = new DatagramUtils(bytesLeft)
-				datagram = new DatagramUtils(bytesLeft)
-				if (Arrays.equals(aux.readBytes(msg.payload_marker.length), msg.payload_marker)) {	
-					datagram.readBytes(msg.payload_marker.length)
-					msg.payload = datagram.readBytesLeft
-					if (msg.payload.length == 0) {
-						System.err.println("ERROR: Message format error.")
-						return null
-					}
-				}
-			}
-		}
+	/**
+	 * Decodes the message from the bytes between the position and the limit of the buffer
+	 * as specified in rfc7252, section 3
+	 * 
+	 * @param buffer A buffer containing the CoAP encoding of the message
+	 * 
+	 */
+	def static fromByteBuffer(ByteBuffer buffer) {
+		return MessageCodec.decode(buffer)
+	}
 
-		return msg
+	/**
+	 * Decodes the message from the bytes between the position and the limit of the buffer
+	 * as specified in rfc7252, section 3
+	 * 
+	 * @param buffer A buffer containing the CoAP encoding of the message
+	 * @param wrap True if the message may keep a reference to the buffer's array
+	 *             instead of copying it
+	 * 
+	 */
+	def static fromByteBuffer(ByteBuffer buffer, boolean wrap) {
+		return MessageCodec.decode(buffer, wrap)
+	}
+	
+	/**
+	 * Sets the options of this CoAP message
+	 * 
+	 * @param optionIndex The options, sorted by option number
+	 */
+	def void setOptionIndex(OptionIndex optionIndex) {
+		contentChanged
+		this.optionIndex = optionIndex
+	}
+	
+	/**
+	 * Returns the options of this CoAP message
+	 * 
+	 * @return The options, sorted by option number
+	 */
+	def getOptionIndex() {
+		return optionIndex
 	}
 	
 	/**
@@ -374,6 +282,7 @@ class Message {
 				setOptions(Option.URI_QUERY, uriQuery)
 			}
 			this.uri = uri
+			this.peerAddress = null
 		}
 	}
 	
@@ -394,6 +303,7 @@ class Message {
 	 *                be set to
 	 */
 	def void setPayload(byte[] payload) {
+		contentChanged
 		this.payload = payload
 	}
 	
@@ -413,6 +323,16 @@ class Message {
 		setPayload(payload, ContentFormat.PLAIN)
 	}
 	
+	/**
+	 * This procedure sets the version of this CoAP message
+	 * 
+	 * @param version The version to which the current message version should
+	 *                be set to
+	 */
+	def void setVersion(int version) {
+		this.version = version
+	}
+	
 	/**
 	 * This procedure sets the type of this CoAP message
 	 * 
@@ -430,6 +350,16 @@ class Message {
 	 *             be set to
 	 */
 	def void setCode(String code) {
+		this.code = Code.parse(code)
+	}
+	
+	/**
+	 * This procedure sets the code of this CoAP message
+	 * 
+	 * @param code The integer message code to which the current message code
+	 *             should be set to
+	 */
+	def void setRawCode(int code) {
 		this.code = code
 	}
 	
@@ -498,6 +428,15 @@ class Message {
 	 * @return The current code.
 	 */
 	def getCode() {
+		return Code.valueOf(this.code)
+	}
+	
+	/**
+	 * This function returns the integer code of this CoAP message
+	 * 
+	 * @return The current code, as encoded in the message header.
+	 */
+	def getRawCode() {
 		return this.code
 	}
 	
@@ -518,23 +457,27 @@ class Message {
 	 *            current CoAP message
 	 */
 	def void addOption(Option opt) {
-		var list = optionMap.get(opt.getOptionNumber)
-		if (list == null) {
-			list = new ArrayList<Option>
-			optionMap.put(opt.getOptionNumber, list)
-		}
-		
-		list.add(opt)
+		contentChanged
+		optionIndex.add(opt)
 	}	
 	
 	/**
 	 * This function returns all options with the given option number
 	 * 
 	 * @param optionNumber The option number
-	 * @return A list containing the options with the given number
+	 * @return A list containing the options with the given number, or null
 	 */
 	def getOptions(int optionNumber) {
-		return optionMap.get(optionNumber)
+		var first = optionIndex.indexOf(optionNumber)
+		if (first < 0) {
+			return null
+		}
+		var count = optionIndex.count(optionNumber)
+		var list = new ArrayList<Option>(count)
+		for (var i = first; i < first + count; i++) {
+			list.add(optionIndex.getOption(i))
+		}
+		return list
 	}
 
 	/**
@@ -544,7 +487,13 @@ class Message {
 	 * @param opt The list of the options
 	 */
 	def void setOptions(int optionNumber, List<Option> opt) {
-		optionMap.put(optionNumber, opt)
+		contentChanged
+		optionIndex.remove(optionNumber)
+		if (opt != null) {
+			for (Option o : opt) {
+				optionIndex.add(o)
+			}
+		}
 	}
 	
 	/**
@@ -554,9 +503,9 @@ class Message {
 	 * @return The first option with the specified number, or null
 	 */
 	def getFirstOption(int optionNumber) {
-		var list = getOptions(optionNumber)
-		if (list != null && !list.isEmpty) {
-			return list.get(0)
+		var index = optionIndex.indexOf(optionNumber)
+		if (index >= 0) {
+			return optionIndex.getOption(index)
 		} else{
 			return null
 		}
@@ -569,9 +518,9 @@ class Message {
 	 */
 	def void setOption(Option opt) {
 		if (opt != null) {
-			var options = new ArrayList<Option>
-			options.add(opt)
-			setOptions(opt.getOptionNumber, options)
+			contentChanged
+			optionIndex.remove(opt.getOptionNumber)
+			optionIndex.add(opt)
 		}
 	}
 
@@ -581,12 +530,10 @@ class Message {
 	 * @return A sorted list of all options (copy)
 	 */
 	def getOptionList() {
-		var list = new ArrayList<Option>
-		for (List<Option> option : optionMap.values) {
-			for (Option opt : option) {
-				if (opt.getRawValue.length != 0) {
-					list.add(opt)
-				}
+		var list = new ArrayList<Option>(optionIndex.size)
+		for (var i = 0; i < optionIndex.size; i++) {
+			if (optionIndex.getLength(i) != 0) {
+				list.add(optionIndex.getOption(i))
 			}
 		}
 		return list
@@ -598,7 +545,13 @@ class Message {
 	 * @return The current number of options.
 	 */
 	def getOptionCount() {
-		return getOptionList.size
+		var count = 0
+		for (var i = 0; i < optionIndex.size; i++) {
+			if (optionIndex.getLength(i) != 0) {
+				count++
+			}
+		}
+		return count
 	}
 	
 	/**
@@ -606,17 +559,24 @@ class Message {
 	 * 
 	 * @param block The byte array containing the data to append
 	 */
-	def synchronized void appendPayload(byte[] block) {
+	def void appendPayload(byte[] block) {
 		if (block != null) {
-			if (payload != null) {
-				var oldPayload = payload
-				payload = newByteArrayOfSize(oldPayload.length + block.length)
-				System.arraycopy(oldPayload, 0,	payload, 0, oldPayload.length)
-				System.arraycopy(block, 0, payload, oldPayload.length, block.length)
-			} else {
-				payload = block.clone
+			var lock = getPayloadLock
+			lock.lock
+			try {
+				contentChanged
+				if (payload != null) {
+					var oldPayload = payload
+					payload = newByteArrayOfSize(oldPayload.length + block.length)
+					System.arraycopy(oldPayload, 0,	payload, 0, oldPayload.length)
+					System.arraycopy(block, 0, payload, oldPayload.length, block.length)
+				} else {
+					payload = block.clone
+				}
+				payloadAvailable.signalAll
+			} finally {
+				lock.unlock
 			}
-			notifyAll
 			payloadAppended(block)
 		}		
 	}
@@ -628,17 +588,53 @@ class Message {
 	 * @pos The position of the byte to read
 	 * @return The byte at the given position, or -1 if it does not exist
 	 */
-     def synchronized readPayload(int pos) {
-		while (pos >= payload.length) {
-			if (complete) {
-				return -1
-			} else try {
-				wait
-			} catch (InterruptedException e) {
-				return -1
+	def int readPayload(int pos) {
+		var lock = getPayloadLock
+		lock.lock
+		try {
+			while (pos >= payloadSize) {
+				if (complete) {
+					return -1
+				} else try {
+					payloadAvailable.await
+				} catch (InterruptedException e) {
+					return -1
+				}
 			}
+			return payload.get(pos)
+		} finally {
+			lock.unlock
+		}
+	}
+	
+	/**
+	 * Returns the lock that guards the payload while it is streamed, creating
+	 * it on first use. Messages that are never streamed do not allocate one.
+	 * The lock is created and read under a lock shared by a stripe of
+	 * messages, so that every thread sees the same lock and condition.
+	 * 
+	 * @return The payload lock.
+	 */
+	def private ReentrantLock getPayloadLock() {
+		var stripe = INIT_LOCKS.get(System.identityHashCode(this).bitwiseAnd(INIT_STRIPES - 1))
+		stripe.lock
+		try {
+			if (payloadLock == null) {
+				payloadLock = new ReentrantLock
+				payloadAvailable = payloadLock.newCondition
+			}
+			return payloadLock
+		} finally {
+			stripe.unlock
+		}
+	}
+	
+	def private static ReentrantLock[] newInitLocks() {
+		var ReentrantLock[] locks = newArrayOfSize(INIT_STRIPES)
+		for (var i = 0; i < INIT_STRIPES; i++) {
+			locks.set(i, new ReentrantLock)
 		}
-		return payload.get(pos)		
+		return locks
 	}
 	
 	def payloadSize() {
@@ -665,7 +661,14 @@ class Message {
 	 * @param complete The value of the complete flag
 	 */
 	def void setComplete(boolean complete) {
-		this.complete = complete
+		var lock = getPayloadLock
+		lock.lock
+		try {
+			this.complete = complete
+			payloadAvailable.signalAll
+		} finally {
+			lock.unlock
+		}
 		if (complete) {
 			completed
 		}
@@ -705,6 +708,15 @@ class Message {
 	 */
 	def void timedOut() { }
 	
+	/**
+	 * Notification method that is called when this message is handed to the
+	 * transport for the first time, which may be after waiting for other
+	 * messages to the same peer.
+	 * 
+	 *  Subclasses may override this method to add custom handling code.
+	 */
+	def void transmitted() { }
+	
 	/**
 	 * Notification method that is called whenever payload was appended
 	 * using the appendPayload() method.
@@ -715,6 +727,26 @@ class Message {
 	 */
 	def void payloadAppended(byte[] block) { }
 	
+	/**
+	 * Notification method that is called before the options or the payload
+	 * of this message are modified.
+	 * 
+	 * Subclasses may override this method to add custom handling code.
+	 */
+	def protected void contentChanged() { }
+	
+	/**
+	 * Returns the encoded options and payload of this message, if they are cached.
+	 * 
+	 * Subclasses may override this method to reuse the encoded form of the
+	 * message, so only the header and the token are encoded again.
+	 * 
+	 * @return The encoded options and payload, or null if they are not cached
+	 */
+	def byte[] getEncodedBody() {
+		return null
+	}
+	
 	/**
 	 * This function returns the buddy of this CoAP message
 	 * Two messages are buddies iif they have the same message ID
@@ -869,19 +901,193 @@ class Message {
 		return ret
 	}
 	
-	def endpointID() {
-		var InetAddress address = null
-		try {
-			address = getAddress
-		} catch (UnknownHostException e) {
+	/**
+	 * Sets the address of the remote endpoint: the sender of a received message
+	 * or the destination of a message to be sent
+	 * 
+	 * @param peerAddress The address of the remote endpoint
+	 */
+	def void setPeerAddress(InetSocketAddress peerAddress) {
+		this.peerKey = packPeer(peerAddress)
+		this.peerAddress = peerAddress
+	}
+	
+	/**
+	 * Returns the address of the remote endpoint. Received messages carry the
+	 * address they were received from; for other messages it is resolved once
+	 * from the URI
+	 * 
+	 * @return The address of the remote endpoint, or null if it cannot be resolved
+	 */
+	def InetSocketAddress getPeerAddress() {
+		if (peerAddress == null && uri != null) {
+			try {
+				var port = uri.getPort
+				if (port < 0) {
+					port = DEFAULT_PORT
+				}
+				setPeerAddress(new InetSocketAddress(getAddress, port))
+			} catch (UnknownHostException e) {
+				return null
+			}
 		}
-		var host = "NULL"
-		if (address != null) {
-			host = address.getHostAddress
+		return peerAddress
+	}
+	
+	/**
+	 * Returns a key identifying the remote endpoint, packing its IPv4 address
+	 * and its port. IPv6 addresses are folded into 32 bits, so the key of an
+	 * IPv6 endpoint only narrows the search: see samePeer
+	 * 
+	 * @return The key of the remote endpoint, or 0 if it is unknown
+	 */
+	def long peerKey() {
+		if (peerAddress == null) {
+			getPeerAddress
+		}
+		return peerKey
+	}
+	
+	/**
+	 * Returns a key identifying the exchange of this message, packing
+	 * the key of the remote endpoint and the message ID
+	 * 
+	 * @return The key of the exchange
+	 */
+	def long exchangeKey() {
+		return peerKey().operator_doubleLessThan(16).bitwiseOr(messageID.bitwiseAnd(0xFFFF))
+	}
+	
+	/**
+	 * Returns the address an outgoing message is sent to: the host of its
+	 * Proxy-Uri option if it has one, the remote endpoint otherwise. The
+	 * replies come from that address
+	 * 
+	 * @return The destination, or null if it cannot be resolved
+	 */
+	def InetSocketAddress getDestination() {
+		if (!hasOption(Option.PROXY_URI)) {
+			return getPeerAddress
+		}
+		if (proxyAddress == null) {
+			try {
+				var proxyUri = new URI(getFirstOption(Option.PROXY_URI).displayValue)
+				var port = proxyUri.getPort
+				if (port < 0) {
+					port = DEFAULT_PORT
+				}
+				proxyAddress = new InetSocketAddress(InetAddress.getByName(proxyUri.getHost), port)
+			} catch (URISyntaxException e) {
+				System.err.println("[" + getClass.getName + "] Failed to parse Proxy-Uri: " + e.getMessage)
+				return null
+			} catch (UnknownHostException e) {
+				return null
+			}
+		}
+		return proxyAddress
+	}
+	
+	/**
+	 * Returns the key of the destination of an outgoing message
+	 * 
+	 * @return The key of the destination, or 0 if it is unknown
+	 */
+	def long destinationKey() {
+		if (!hasOption(Option.PROXY_URI)) {
+			return peerKey()
 		}
+		return packPeer(getDestination)
+	}
+	
+	/**
+	 * Returns the key of the exchange of an outgoing message, which its replies match
+	 * 
+	 * @return The key packing the key of the destination and the message ID
+	 */
+	def long destinationExchangeKey() {
+		return destinationKey.operator_doubleLessThan(16).bitwiseOr(messageID.bitwiseAnd(0xFFFF))
+	}
+	
+	/**
+	 * Returns the key of a remote endpoint
+	 * 
+	 * @param address The address of the remote endpoint
+	 * @return The key packing the address and the port
+	 */
+	def static long packPeer(InetSocketAddress address) {
+		if (address == null) {
+			return 0
+		}
+		return packPeer(address.getAddress, address.getPort)
+	}
+	
+	/**
+	 * Returns the key of a remote endpoint
+	 * 
+	 * @param address The IP address of the remote endpoint
+	 * @param port The port of the remote endpoint
+	 * @return The key packing the address and the port
+	 */
+	def static long packPeer(InetAddress address, int port) {
+		var long host = 0
+		if (address instanceof Inet4Address) {
+			var bytes = address.getAddress
+			host = ByteBuffer.wrap(bytes).getInt.bitwiseAnd(0xFFFFFFFF#L)
+		} else if (address != null) {
+			host = Arrays.hashCode(address.getAddress).bitwiseAnd(0xFFFFFFFF#L)
+		}
+		return host.operator_doubleLessThan(16).bitwiseOr(port.bitwiseAnd(0xFFFF))
+	}
+	
+	/**
+	 * Checks whether the key of a remote endpoint identifies it alone, which
+	 * is the case of IPv4 endpoints
+	 * 
+	 * @param address The address of the remote endpoint
+	 * @return True if no other endpoint has the same key
+	 */
+	def static boolean isExactKey(InetSocketAddress address) {
+		return address == null || address.getAddress instanceof Inet4Address
+	}
+	
+	/**
+	 * Checks whether two addresses with the same key are the same remote
+	 * endpoint. Only the addresses of IPv6 endpoints are compared
+	 * 
+	 * @param address The address of a remote endpoint
+	 * @param other The address of a remote endpoint with the same key
+	 * @return True if they are the same endpoint
+	 */
+	def static boolean samePeer(InetSocketAddress address, InetSocketAddress other) {
+		if (address === other || (isExactKey(address) && isExactKey(other))) {
+			return true
+		}
+		return address != null && address.equals(other)
+	}
+	
+	/**
+	 * Returns an object identifying a remote endpoint in a hash map: its key
+	 * for IPv4 endpoints, and its address for the others
+	 * 
+	 * @param address The address of the remote endpoint
+	 * @return The identity of the endpoint
+	 */
+	def static Object peerIdentity(InetSocketAddress address) {
+		if (isExactKey(address)) {
+			return packPeer(address)
+		}
+		return address
+	}
+	
+	def endpointID() {
+		var peer = getPeerAddress
+		var host = "NULL"
 		var port = -1
-		if (uri != null) {
-			port = uri.getPort
+		if (peer != null) {
+			if (peer.getAddress != null) {
+				host = peer.getAddress.getHostAddress
+			}
+			port = peer.getPort
 		}
 		return host + ":" + port
 	}
@@ -0,0 +1,341 @@
+package com.xtend.coap.message
+
+import java.nio.ByteBuffer
+
+import com.xtend.coap.utils.Code
+
+/**
+ * Class that encodes and decodes CoAP messages as specified in rfc7252, section 3.
+ *
+ * The codec works on whole bytes over a ByteBuffer, so it can read from and
+ * write into heap or direct buffers supplied by the caller.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class MessageCodec {
+
+	val public static HEADER_LENGTH = 4
+	val public static PAYLOAD_MARKER = 0xFF
+	val public static MAX_TOKEN_LENGTH = 8
+
+	/**
+	 * Returns the number of bytes needed to encode the message.
+	 *
+	 * @param msg The message to measure.
+	 * @return The length of the encoded message, or -1 if it cannot be encoded.
+	 */
+	def static int encodedLength(Message msg) {
+		var length = HEADER_LENGTH
+		if (msg.getRawCode == Code.EMPTY) {
+			return length
+		}
+		length += msg.getTokenLength
+		var body = msg.getEncodedBody
+		if (body != null) {
+			return length + body.length
+		}
+		var bodyLength = bodyLength(msg)
+		if (bodyLength < 0) {
+			return -1
+		}
+		return length + bodyLength
+	}
+
+	/**
+	 * Encodes the message into the buffer, starting at its current position.
+	 * If the message has its options and payload cached, they are copied as they are.
+	 *
+	 * @param msg The message to encode.
+	 * @param buffer The buffer to write to. It must have enough space left.
+	 * @return The number of bytes written, or -1 if the message cannot be encoded.
+	 */
+	def static int encode(Message msg, ByteBuffer buffer) {
+		if (!Code.isValid(msg.getRawCode)) {
+			System.err.println("ERROR: Invalid message code: " + msg.getRawCode)
+			return -1
+		}
+		var start = buffer.position
+		buffer.put(msg.getVersion.bitwiseAnd(0x03).operator_doubleLessThan(6)
+			.bitwiseOr(msg.getType.ordinal.operator_doubleLessThan(4))
+			.bitwiseOr(msg.getTokenLength.bitwiseAnd(0x0F)) as byte)
+		buffer.put(msg.getRawCode as byte)
+		buffer.putShort(msg.getID as short)
+		if (msg.getRawCode == Code.EMPTY) {
+			return buffer.position - start
+		}
+		for (var i = msg.getTokenLength - 1; i >= 0; i--) {
+			buffer.put(msg.getToken.operator_doubleGreaterThan(i * 8) as byte)
+		}
+		var body = msg.getEncodedBody
+		if (body != null) {
+			buffer.put(body)
+		} else if (!encodeBody(msg, buffer)) {
+			return -1
+		}
+		return buffer.position - start
+	}
+
+	/**
+	 * Encodes the message into a new byte array of the exact encoded length.
+	 *
+	 * @param msg The message to encode.
+	 * @return The encoded message, or null if it cannot be encoded.
+	 */
+	def static byte[] encode(Message msg) {
+		var length = encodedLength(msg)
+		if (length < 0) {
+			System.err.println("ERROR: Option number or length error.")
+			return null
+		}
+		var data = newByteArrayOfSize(length)
+		encode(msg, ByteBuffer.wrap(data))
+		return data
+	}
+
+	/**
+	 * Encodes the options and the payload of the message into a new byte array.
+	 * The result can be cached and reused for messages that only differ in their header and token.
+	 *
+	 * @param msg The message to encode.
+	 * @return The encoded options and payload, or null if they cannot be encoded.
+	 */
+	def static byte[] encodeBody(Message msg) {
+		var length = bodyLength(msg)
+		if (length < 0) {
+			System.err.println("ERROR: Option number or length error.")
+			return null
+		}
+		var data = newByteArrayOfSize(length)
+		encodeBody(msg, ByteBuffer.wrap(data))
+		return data
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the options and the payload of the message.
+	 *
+	 * @param msg The message to measure.
+	 * @return The length of the options and payload, or -1 if they cannot be encoded.
+	 */
+	def private static int bodyLength(Message msg) {
+		var length = 0
+		var options = msg.getOptionIndex
+		var lastOptionNumber = 0
+		for (var i = 0; i < options.size; i++) {
+			var optionLength = options.getLength(i)
+			if (optionLength != 0) {
+				var optionDelta = options.getNumber(i) - lastOptionNumber
+				if (optionDelta > 0xFFFF || optionLength > 0xFFFF) {
+					return -1
+				}
+				length += 1 + extendedLength(optionDelta) + extendedLength(optionLength) + optionLength
+				lastOptionNumber = options.getNumber(i)
+			}
+		}
+		if (msg.payloadSize > 0) {
+			length += 1 + msg.payloadSize
+		}
+		return length
+	}
+
+	/**
+	 * Encodes the options and the payload of the message into the buffer.
+	 *
+	 * @param msg The message to encode.
+	 * @param buffer The buffer to write to. It must have enough space left.
+	 * @return True if the options and payload were encoded.
+	 */
+	def private static boolean encodeBody(Message msg, ByteBuffer buffer) {
+		var options = msg.getOptionIndex
+		var lastOptionNumber = 0
+		for (var i = 0; i < options.size; i++) {
+			var optionLength = options.getLength(i)
+			if (optionLength != 0) {
+				var optionDelta = options.getNumber(i) - lastOptionNumber
+				if (optionDelta > 0xFFFF) {
+					System.err.println("ERROR: Option number error.")
+					return false
+				}
+				if (optionLength > 0xFFFF) {
+					System.err.println("ERROR: Option length error.")
+					return false
+				}
+				buffer.put(nibble(optionDelta).operator_doubleLessThan(4).bitwiseOr(nibble(optionLength)) as byte)
+				putExtended(buffer, optionDelta)
+				putExtended(buffer, optionLength)
+				options.writeValue(i, buffer)
+				lastOptionNumber = options.getNumber(i)
+			}
+		}
+		if (msg.payloadSize > 0) {
+			buffer.put(PAYLOAD_MARKER as byte)
+			buffer.put(msg.getPayload)
+		}
+		return true
+	}
+
+	/**
+	 * Decodes a message from the bytes between the position and the limit of the buffer.
+	 * The position of the buffer is moved to its limit.
+	 *
+	 * @param buffer The buffer holding the encoded message.
+	 * @return The decoded message, or null if the datagram is malformed.
+	 */
+	def static Message decode(ByteBuffer buffer) {
+		return decode(buffer, false)
+	}
+
+	/**
+	 * Decodes a message from the bytes between the position and the limit of the buffer.
+	 * The position of the buffer is moved to its limit.
+	 *
+	 * Options are only indexed, and their values are read from the datagram
+	 * when they are first accessed. If wrap is true and the buffer is backed by
+	 * an array, the message keeps a reference to that array, so the caller must
+	 * not reuse it. Otherwise the options and payload are copied once.
+	 *
+	 * @param buffer The buffer holding the encoded message.
+	 * @param wrap True if the message may keep a reference to the buffer's array.
+	 * @return The decoded message, or null if the datagram is malformed.
+	 */
+	def static Message decode(ByteBuffer buffer, boolean wrap) {
+		if (buffer.remaining < HEADER_LENGTH) {
+			System.err.println("ERROR: Message format error.")
+			return null
+		}
+		var first = buffer.get.bitwiseAnd(0xFF)
+		var version = first.operator_doubleGreaterThan(6)
+		var type = Message.getTypeByID(first.operator_doubleGreaterThan(4).bitwiseAnd(0x03))
+		var tokLen = first.bitwiseAnd(0x0F)
+		var code = buffer.get.bitwiseAnd(0xFF)
+		if (tokLen > MAX_TOKEN_LENGTH || buffer.remaining < tokLen + 2) {
+			System.err.println("ERROR: Message format error.")
+			return null
+		}
+		var msg = Code.newMessage(code)
+		msg.setVersion(version)
+		msg.setType(type)
+		msg.setID(buffer.getShort.bitwiseAnd(0xFFFF))
+		var long token = 0
+		for (var i = 0; i < tokLen; i++) {
+			token = token.operator_doubleLessThan(8).bitwiseOr(buffer.get.bitwiseAnd(0xFF))
+		}
+		msg.setToken(token, tokLen)
+
+		if (code == Code.EMPTY) {
+			if (tokLen != 0 || buffer.hasRemaining) {
+				System.err.println("ERROR: Message format error.")
+				return null
+			}
+			return msg
+		}
+		var ByteBuffer source
+		var base = 0
+		if (wrap && buffer.hasArray) {
+			source = buffer
+			base = buffer.arrayOffset
+		} else {
+			var data = newByteArrayOfSize(buffer.remaining)
+			buffer.get(data)
+			source = ByteBuffer.wrap(data)
+		}
+		var options = new OptionIndex(source.array)
+		var currentOption = 0
+		while (source.hasRemaining) {
+			var header = source.get.bitwiseAnd(0xFF)
+			if (header == PAYLOAD_MARKER) {
+				if (!source.hasRemaining) {
+					System.err.println("ERROR: Message format error.")
+					return null
+				}
+				var payload = newByteArrayOfSize(source.remaining)
+				source.get(payload)
+				msg.setPayload(payload)
+			} else {
+				var optionDelta = getExtended(source, header.operator_doubleGreaterThan(4))
+				var optionLength = getExtended(source, header.bitwiseAnd(0x0F))
+				if (optionDelta < 0 || optionLength < 0 || source.remaining < optionLength) {
+					System.err.println("ERROR: Message format error.")
+					return null
+				}
+				currentOption += optionDelta
+				options.add(currentOption, base + source.position, optionLength)
+				source.position(source.position + optionLength)
+			}
+		}
+		if (options.size > 0) {
+			msg.setOptionIndex(options)
+		}
+		return msg
+	}
+
+	/**
+	 * Returns the 4-bit field value used for an option delta or length.
+	 *
+	 * @param value The option delta or length.
+	 * @return The value of the 4-bit field.
+	 */
+	def private static int nibble(int value) {
+		if (value < 0xD) {
+			return value
+		} else if (value < 0x10D) {
+			return 0xD
+		} else {
+			return 0xE
+		}
+	}
+
+	/**
+	 * Returns the number of extended bytes used for an option delta or length.
+	 *
+	 * @param value The option delta or length.
+	 * @return The number of extended bytes.
+	 */
+	def private static int extendedLength(int value) {
+		if (value < 0xD) {
+			return 0
+		} else if (value < 0x10D) {
+			return 1
+		} else {
+			return 2
+		}
+	}
+
+	/**
+	 * Writes the extended bytes of an option delta or length, if any.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @param value The option delta or length.
+	 */
+	def private static void putExtended(ByteBuffer buffer, int value) {
+		if (value >= 0x10D) {
+			buffer.putShort((value - 0x10D) as short)
+		} else if (value >= 0xD) {
+			buffer.put((value - 0xD) as byte)
+		}
+	}
+
+	/**
+	 * Reads the value of an option delta or length given its 4-bit field.
+	 *
+	 * @param buffer The buffer to read the extended bytes from.
+	 * @param nibble The value of the 4-bit field.
+	 * @return The option delta or length, or -1 if it is malformed.
+	 */
+	def private static int getExtended(ByteBuffer buffer, int nibble) {
+		if (nibble == 0xD) {
+			if (buffer.remaining < 1) {
+				return -1
+			}
+			return buffer.get.bitwiseAnd(0xFF) + 0xD
+		} else if (nibble == 0xE) {
+			if (buffer.remaining < 2) {
+				return -1
+			}
+			return buffer.getShort.bitwiseAnd(0xFFFF) + 0x10D
+		} else if (nibble == 0xF) {
+			return -1
+		}
+		return nibble
+	}
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.xtend.coap.message
+
+/** 
+ * Interface with the methods of a Message factory.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+interface MessageFactory {
+	/**
+	 * Method to create a new Message.
+	 * 
+	 * @return The new message.
+	 */
+	def Message newMessage()
+}
\ No newline at end of file
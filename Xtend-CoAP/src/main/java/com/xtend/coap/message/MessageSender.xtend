@@ -1,9 +1,11 @@
 package com.xtend.coap.message
 
-import java.util.Random
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicInteger
 
 import com.xtend.coap.message.request.Request
 import com.xtend.coap.layers.Communicator
+import com.xtend.coap.layers.IdentifierAllocator
 import java.net.SocketException
 
 /** 
@@ -14,7 +16,7 @@ import java.net.SocketException
  */
 class MessageSender {
 	
-	static int messageID = 0
+	val static messageID = new AtomicInteger
 	val public static DEFAULT_PORT = Communicator.DEFAULT_PORT
 	
 	protected Communicator communicator
@@ -23,39 +25,47 @@ class MessageSender {
 		this.communicator = new Communicator(port, daemon)
 	}
 	
+	new (Communicator communicator) {
+		this.communicator = communicator
+	}
+	
 	def getCommunicator() {
 		return this.communicator
 	}
 	
 	/** 
-	 * This method gets the ID for a new message.
+	 * This method gets the ID for a new message. The counter is shared by the whole JVM
+	 * and does not know which IDs are in flight.
 	 * 
 	 * @param typeEndpoint The type of End Point. It must be C for Client, S for Server and P for Proxy.
 	 * 
 	 * @return The ID for a new message.
+	 * @deprecated Leave the ID of a message unset: its Communicator assigns one from its IdentifierAllocator.
 	 */
+	@Deprecated
 	def static int nextMessageID(String typeEndpoint) {
-		if (messageID == 0) {
-			resetMessageID(typeEndpoint)
+		while (true) {
+			var current = messageID.get
+			var id = current
+			if (id == 0 || id > Message.MAX_ID) {
+				id = firstMessageID(typeEndpoint)
+			}
+			if (messageID.compareAndSet(current, id + 1)) {
+				return id
+			}
 		}
-		var id = messageID
-		messageID++
-		if (messageID > Message.MAX_ID) {
-			resetMessageID(typeEndpoint)
-		}
-		return id
 	}
 	
-	def private static void resetMessageID(String typeEndpoint) {
+	def private static int firstMessageID(String typeEndpoint) {
 		switch (typeEndpoint) {
 			case ("C"):
-				messageID = 0x1001
+				return 0x1001
 			case ("S"):
-				messageID = 0x2001	
+				return 0x2001	
 			case ("P"):
-				messageID = 0x3001
+				return 0x3001
 			default:
-				messageID = 0x4001
+				return 0x4001
 		}
 	}
 	
@@ -67,23 +77,20 @@ class MessageSender {
 	 * @return The Token generated.
 	 */
 	def static long generateToken(int length) {
-		var random = new Random
-		var long token = 0
-		for (var i = 0; i < length * 8; i++) {
-			var rndDigit =  random.nextInt(2)
-			token += rndDigit * Math.pow(2, i).longValue
-		}
-		return token
+		return IdentifierAllocator.randomToken(length)
 	}
 	
 	/** 
-	 * This method generates a new Token for a Request.
+	 * This method generates a new Token for a Request, without checking that
+	 * it is not in use with the peer.
 	 * 
 	 * @param request The request that takes the Token.
+	 * @deprecated Leave the token of a request unset: its Communicator assigns
+	 * one that is not in use with the peer from its IdentifierAllocator.
 	 */
+	@Deprecated
 	def static void generateTokenForRequest(Request request) {
-		var random = new Random
-		var length = random.nextInt(3) + 5
+		var length = ThreadLocalRandom.current.nextInt(3) + 5
 		var token = generateToken(length)
 		request.setToken(token, length)
 	}
@@ -0,0 +1,266 @@
+package com.xtend.coap.message
+
+import java.nio.ByteBuffer
+import java.util.Arrays
+
+import com.xtend.coap.utils.Option
+
+/**
+ * Class that stores the options of a message, sorted by option number.
+ *
+ * Options are kept in parallel arrays of option number, offset and length.
+ * The values of received options stay in the raw datagram and Option objects
+ * are only created on demand; options added locally are stored as Option objects.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class OptionIndex {
+
+	val static INITIAL_CAPACITY = 4
+
+	byte[] data
+	int[] numbers
+	int[] offsets
+	int[] lengths
+	Option[] values
+	int size
+
+	/**
+	 * Initializes a new empty OptionIndex object.
+	 */
+	new () {
+		this(null)
+	}
+
+	/**
+	 * Initializes a new OptionIndex object.
+	 *
+	 * @param data The raw datagram holding the option values.
+	 */
+	new (byte[] data) {
+		this.data = data
+		this.size = 0
+	}
+
+	/**
+	 * Adds an option whose value is in the datagram.
+	 * Options must be added in option number order.
+	 *
+	 * @param number The option number.
+	 * @param offset The offset of the option value in the datagram.
+	 * @param length The length of the option value.
+	 */
+	def void add(int number, int offset, int length) {
+		ensureCapacity
+		numbers.set(size, number)
+		offsets.set(size, offset)
+		lengths.set(size, length)
+		values.set(size, null)
+		size++
+	}
+
+	/**
+	 * Adds an option after the options with the same or lower option number.
+	 *
+	 * @param opt The option to add.
+	 */
+	def void add(Option opt) {
+		ensureCapacity
+		var index = indexAfter(opt.getOptionNumber)
+		if (index < size) {
+			System.arraycopy(numbers, index, numbers, index + 1, size - index)
+			System.arraycopy(offsets, index, offsets, index + 1, size - index)
+			System.arraycopy(lengths, index, lengths, index + 1, size - index)
+			System.arraycopy(values, index, values, index + 1, size - index)
+		}
+		numbers.set(index, opt.getOptionNumber)
+		offsets.set(index, -1)
+		lengths.set(index, opt.getLength)
+		values.set(index, opt)
+		size++
+	}
+
+	/**
+	 * Removes all the options with the given option number.
+	 *
+	 * @param number The option number.
+	 */
+	def void remove(int number) {
+		var first = indexOf(number)
+		if (first >= 0) {
+			var last = indexAfter(number)
+			System.arraycopy(numbers, last, numbers, first, size - last)
+			System.arraycopy(offsets, last, offsets, first, size - last)
+			System.arraycopy(lengths, last, lengths, first, size - last)
+			System.arraycopy(values, last, values, first, size - last)
+			for (var i = size - last + first; i < size; i++) {
+				values.set(i, null)
+			}
+			size -= last - first
+		}
+	}
+
+	/**
+	 * Returns the position of the first option with the given option number.
+	 *
+	 * @param number The option number.
+	 * @return The position of the option, or -1 if there is none.
+	 */
+	def int indexOf(int number) {
+		var index = lowerBound(number)
+		if (index < size && numbers.get(index) == number) {
+			return index
+		}
+		return -1
+	}
+
+	/**
+	 * Returns the number of options with the given option number.
+	 *
+	 * @param number The option number.
+	 * @return The number of options.
+	 */
+	def int count(int number) {
+		return indexAfter(number) - lowerBound(number)
+	}
+
+	/**
+	 * Returns the option at the given position, creating it if its value
+	 * is still in the datagram.
+	 *
+	 * @param index The position of the option.
+	 * @return The option.
+	 */
+	def Option getOption(int index) {
+		var opt = values.get(index)
+		if (opt == null) {
+			var offset = offsets.get(index)
+			opt = new Option(Arrays.copyOfRange(data, offset, offset + lengths.get(index)), numbers.get(index))
+			values.set(index, opt)
+		}
+		return opt
+	}
+
+	/**
+	 * Writes the value of the option at the given position to the buffer.
+	 *
+	 * @param index The position of the option.
+	 * @param buffer The buffer to write to.
+	 */
+	def void writeValue(int index, ByteBuffer buffer) {
+		var opt = values.get(index)
+		if (opt != null) {
+			buffer.put(opt.getRawValue)
+		} else {
+			buffer.put(data, offsets.get(index), lengths.get(index))
+		}
+	}
+
+	/**
+	 * Returns a copy of this index that can be modified independently.
+	 * The option values and the datagram are shared.
+	 *
+	 * @return The copy of the index.
+	 */
+	def OptionIndex copy() {
+		var copy = new OptionIndex(data)
+		if (numbers != null) {
+			copy.numbers = numbers.clone
+			copy.offsets = offsets.clone
+			copy.lengths = lengths.clone
+			copy.values = values.clone
+		}
+		copy.size = size
+		return copy
+	}
+
+	def int getNumber(int index) {
+		return numbers.get(index)
+	}
+
+	def int getLength(int index) {
+		var opt = values.get(index)
+		if (opt != null) {
+			return opt.getLength
+		}
+		return lengths.get(index)
+	}
+
+	/**
+	 * Returns the array holding the value of the option at the given position,
+	 * so that it can be read in place from getValueOffset, for getLength bytes.
+	 *
+	 * @param index The position of the option.
+	 * @return The array holding the value.
+	 */
+	def byte[] getValueArray(int index) {
+		var opt = values.get(index)
+		if (opt != null) {
+			return opt.getRawValue
+		}
+		return data
+	}
+
+	def int getValueOffset(int index) {
+		if (values.get(index) != null) {
+			return 0
+		}
+		return offsets.get(index)
+	}
+
+	def getData() {
+		return data
+	}
+
+	def int size() {
+		return size
+	}
+
+	/**
+	 * Returns the position of the first option with a number equal or higher than the given one.
+	 *
+	 * @param number The option number.
+	 * @return The position found.
+	 */
+	def private int lowerBound(int number) {
+		var low = 0
+		var high = size
+		while (low < high) {
+			var mid = (low + high).operator_tripleGreaterThan(1)
+			if (numbers.get(mid) < number) {
+				low = mid + 1
+			} else {
+				high = mid
+			}
+		}
+		return low
+	}
+
+	/**
+	 * Returns the position of the first option with a number higher than the given one.
+	 *
+	 * @param number The option number.
+	 * @return The position found.
+	 */
+	def private int indexAfter(int number) {
+		return lowerBound(number + 1)
+	}
+
+	/**
+	 * Makes room for one more option.
+	 */
+	def private void ensureCapacity() {
+		if (numbers == null) {
+			numbers = newIntArrayOfSize(INITIAL_CAPACITY)
+			offsets = newIntArrayOfSize(INITIAL_CAPACITY)
+			lengths = newIntArrayOfSize(INITIAL_CAPACITY)
+			values = newArrayOfSize(INITIAL_CAPACITY)
+		} else if (size == numbers.length) {
+			numbers = Arrays.copyOf(numbers, size * 2)
+			offsets = Arrays.copyOf(offsets, size * 2)
+			lengths = Arrays.copyOf(lengths, size * 2)
+			values = Arrays.copyOf(values, size * 2)
+		}
+	}
+}
\ No newline at end of file
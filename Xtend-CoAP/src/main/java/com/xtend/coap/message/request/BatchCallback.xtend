@@ -0,0 +1,34 @@
+package com.xtend.coap.message.request
+
+import com.xtend.coap.message.response.Response
+
+/** 
+ * Interface with the methods of a Batch Callback, notified as the requests of a batch end.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+public interface BatchCallback {
+	/**
+	 * Method called when the response to a request of the batch is received.
+	 * 
+	 * @param request The request.
+	 * @param response The response received.
+	 */
+	def void completed(Request request, Response response)
+	
+	/**
+	 * Method called when a request of the batch ends without a response.
+	 * 
+	 * @param request The request.
+	 * @param cause The reason, as passed to ResponseCallback.failed.
+	 */
+	def void failed(Request request, Throwable cause)
+	
+	/**
+	 * Method called once all the requests of the batch have ended.
+	 * 
+	 * @param batch The batch, holding the statistics of the sweep.
+	 */
+	def void finished(RequestBatch batch)
+}
\ No newline at end of file
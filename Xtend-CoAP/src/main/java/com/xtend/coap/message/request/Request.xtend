@@ -6,6 +6,7 @@ import java.util.ArrayList
 import java.util.List
 import java.util.concurrent.BlockingQueue
 import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeoutException
 
 import com.xtend.coap.message.Message
 import com.xtend.coap.message.response.Response
@@ -31,6 +32,7 @@ class Request extends Message {
 	Communicator communicator
 	List<ResponseHandler> responseHandlers
 	BlockingQueue<Response> responseQueue
+	ResponseFuture responseFuture
 	int responseCount
 
 	/**
@@ -53,17 +55,64 @@ class Request extends Message {
 	 * 
 	 */
 	def void execute() throws IOException {
-		var Communicator comm = null
-		if (communicator != null){
-			comm = communicator
-		}else{
-			comm = defaultCommunicator
-		}
+		var comm = executingCommunicator
 		if (comm != null) {
 			comm.sendMessage(this)
 		}
 	}
 	
+	/**
+	 * Executes the request on the endpoint specified by the URI without waiting for the response
+	 * 
+	 * @return The future completed by the first response, failed with a TimeoutException if the request times out
+	 */
+	def ResponseFuture executeAsync() {
+		return send(new ResponseFuture(this))
+	}
+	
+	def private ResponseFuture send(ResponseFuture future) {
+		this.responseFuture = future
+		var comm = executingCommunicator
+		if (comm == null) {
+			future.fail(new IOException("No communicator available"))
+			return future
+		}
+		try {
+			comm.sendMessage(this)
+		} catch (IOException e) {
+			future.fail(e)
+		}
+		return future
+	}
+	
+	/**
+	 * Executes the request on the endpoint specified by the URI without waiting for the response
+	 * 
+	 * @param timeout The deadline for the response in milliseconds from the transmission of the request, after which the request is aborted
+	 * @return The future completed by the first response, failed with a TimeoutException if no response arrives in time
+	 */
+	def ResponseFuture executeAsync(long timeout) {
+		var future = new ResponseFuture(this)
+		var comm = executingCommunicator
+		if (comm != null) {
+			// the deadline runs from the transmission, not from the time spent waiting for NSTART
+			future.setDeadlineOnTransmission(comm.getTimer, timeout)
+		}
+		return send(future)
+	}
+	
+	/**
+	 * Stops waiting for a response: the retransmissions of the request end
+	 * and its token is released
+	 */
+	def void abort() {
+		// a request without a communicator was executed on the default one, if it exists
+		var comm = if (communicator != null) communicator else DEFAULT_COMM
+		if (comm != null) {
+			comm.cancel(this)
+		}
+	}
+	
 	/**
 	 * Places a new response to this request, e.g. to answer it
 	 * 
@@ -72,6 +121,7 @@ class Request extends Message {
 	def void respond(Response response) {
 		response.setRequest(this)
 		response.setURI(getURI)
+		response.setPeerAddress(getPeerAddress)
 		response.setToken(getToken, getTokenLength)
 		if (responseCount == 0 && isConfirmable) {
 			response.setID(getID)
@@ -87,10 +137,7 @@ class Request extends Message {
 		var observeOpt = getFirstOption(Option.OBSERVE)
 		if (observeOpt != null && !response.hasOption(Option.OBSERVE)) {
 			
-			// 16-bit second counter
-			var secs = ((System.currentTimeMillis - startTime) / 1000).intValue.bitwiseAnd(0xFFFF)
-			
-			response.setOption(new Option(secs, Option.OBSERVE))
+			response.setOption(new Option(observeClock, Option.OBSERVE))
 			
 			if (response.isConfirmable()) {
 				response.setType(MessageType.NON_CONFIRMABLE)
@@ -132,6 +179,15 @@ class Request extends Message {
 		respond(code, null)
 	}
 	
+	/**
+	 * Returns the Observe option value of a response sent now
+	 * 
+	 * @return The seconds elapsed since the class was loaded, on 24 bits
+	 */
+	def static int observeClock() {
+		return ((System.currentTimeMillis - startTime) / 1000).intValue.bitwiseAnd(0xFFFFFF)
+	}
+	
 	def void accept() {
 		if (isConfirmable) {
 			var ack = new Response(Code.EMPTY_MESSAGE)
@@ -152,6 +208,26 @@ class Request extends Message {
 		this.communicator = communicator
 	}
 	
+	/**
+	 * Returns the communicator set on the request
+	 * 
+	 * @return The communicator, or null if the request is executed on the default communicator
+	 */
+	def Communicator getCommunicator() {
+		return communicator
+	}
+	
+	/**
+	 * Returns the communicator set, or else the default one, which is created
+	 * the first time a request is executed without a communicator
+	 */
+	def private Communicator executingCommunicator() {
+		if (communicator != null) {
+			return communicator
+		}
+		return defaultCommunicator
+	}
+	
 	/**
 	 * Returns a response that was placed using respond() and
 	 * blocks until such a response is available.
@@ -176,6 +252,20 @@ class Request extends Message {
 		if (responseQueueEnabled) {
 			responseQueue.offer(TIMEOUT_RESPONSE)
 		}
+		if (responseFuture != null) {
+			responseFuture.fail(new TimeoutException("Transmission of " + key + " timed out"))
+		}
+	}
+	
+	@Override
+	override void transmitted() {
+		if (responseFuture != null) {
+			responseFuture.transmitted
+		}
+	}
+	
+	def getResponseFuture() {
+		return responseFuture
 	}
 
 	/**
@@ -233,7 +323,7 @@ class Request extends Message {
 	 * 
 	 * @param response The response to handle
 	 */
-	def handleResponse(Response response) {
+	def void handleResponse(Response response) {
 		if (responseQueueEnabled) {
 			if (!responseQueue.offer(response)) {
 				System.err.println("ERROR: Failed to enqueue response to request")
@@ -244,6 +334,13 @@ class Request extends Message {
 				handler.handleResponse(response)
 			}
 		}
+		if (responseFuture != null) {
+			if (response.isReset) {
+				responseFuture.fail(new IOException("Request " + key + " reset by the peer"))
+			} else if (!response.isEmptyACK) {
+				responseFuture.complete(response)
+			}
+		}
 	}
 	
 	def responsePayloadAppended(Response response, byte[] block) { }
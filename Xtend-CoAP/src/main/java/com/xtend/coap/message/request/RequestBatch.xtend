@@ -0,0 +1,377 @@
+package com.xtend.coap.message.request
+
+import java.util.ArrayDeque
+import java.util.HashMap
+import java.util.Map
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import com.xtend.coap.layers.Communicator
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.message.response.ResponseCallback
+
+/**
+ * Class that executes many requests at once, e.g. to poll a set of devices.
+ *
+ * Up to a window of requests are in flight at the same time; each one that
+ * ends lets the next one go. Each peer also has a window of its own, so that
+ * a batch aimed at a single gateway or proxy does not overflow the NSTART
+ * queue of the message layer: the requests beyond it wait in the batch. The
+ * deadline of a request runs from its transmission. Results are passed to a
+ * callback as they arrive, so a sweep takes about the latency of the slowest
+ * peer rather than the sum of all of them. The batch keeps the statistics of
+ * the sweep.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class RequestBatch {
+
+	val public static DEFAULT_WINDOW = 1024
+	val public static DEFAULT_PEER_WINDOW = 16
+
+	Communicator communicator
+	long timeout
+	int window
+	int peerWindow
+	ConcurrentLinkedQueue<Request> pending
+	Map<Request, Throwable> invalid
+	Map<Object, Peer> peers
+	ConcurrentLinkedQueue<Peer> released
+	BatchCallback callback
+	AtomicBoolean started
+	AtomicInteger wip
+	AtomicInteger inFlight
+	AtomicInteger remaining
+	AtomicInteger succeeded
+	AtomicInteger failed
+	AtomicLong totalRTT
+	AtomicLong minRTT
+	AtomicLong maxRTT
+	CountDownLatch done
+	long startTime
+	long elapsed
+
+	/**
+	 * Initializes a new RequestBatch object with the default window.
+	 *
+	 * @param communicator The communicator the requests are executed on.
+	 * @param timeout The deadline of each request in milliseconds.
+	 */
+	new (Communicator communicator, long timeout) {
+		this(communicator, timeout, DEFAULT_WINDOW)
+	}
+
+	/**
+	 * Initializes a new RequestBatch object.
+	 *
+	 * @param communicator The communicator the requests are executed on.
+	 * @param timeout The deadline of each request in milliseconds.
+	 * @param window The maximum number of requests in flight at the same time.
+	 */
+	new (Communicator communicator, long timeout, int window) {
+		this(communicator, timeout, window, DEFAULT_PEER_WINDOW)
+	}
+
+	/**
+	 * Initializes a new RequestBatch object.
+	 *
+	 * @param communicator The communicator the requests are executed on.
+	 * @param timeout The deadline of each request in milliseconds.
+	 * @param window The maximum number of requests in flight at the same time.
+	 * @param peerWindow The maximum number of requests in flight to the same peer.
+	 */
+	new (Communicator communicator, long timeout, int window, int peerWindow) {
+		this.communicator = communicator
+		this.timeout = timeout
+		this.window = window
+		this.peerWindow = peerWindow
+		this.pending = new ConcurrentLinkedQueue<Request>
+		this.invalid = new ConcurrentHashMap<Request, Throwable>
+		this.peers = new HashMap<Object, Peer>
+		this.released = new ConcurrentLinkedQueue<Peer>
+		this.started = new AtomicBoolean
+		this.wip = new AtomicInteger
+		this.inFlight = new AtomicInteger
+		this.remaining = new AtomicInteger
+		this.succeeded = new AtomicInteger
+		this.failed = new AtomicInteger
+		this.totalRTT = new AtomicLong
+		this.minRTT = new AtomicLong(Long.MAX_VALUE)
+		this.maxRTT = new AtomicLong
+		this.done = new CountDownLatch(1)
+	}
+
+	/**
+	 * Adds a request to the batch.
+	 *
+	 * @param request The request, with its URI set.
+	 * @return This batch.
+	 */
+	def RequestBatch add(Request request) {
+		if (started.get) {
+			throw new IllegalStateException("Batch already executed")
+		}
+		pending.add(request)
+		remaining.incrementAndGet
+		return this
+	}
+
+	/**
+	 * Adds a GET request to the batch. A request with an invalid URI counts
+	 * as failed, with an IllegalArgumentException.
+	 *
+	 * @param uri The URI of the resource.
+	 * @return This batch.
+	 */
+	def RequestBatch add(String uri) {
+		var request = new GetRequest
+		if (!request.setURI(uri)) {
+			invalid.put(request, new IllegalArgumentException("Invalid URI: " + uri))
+		}
+		return add(request)
+	}
+
+	/**
+	 * Adds a GET request to the batch for each URI.
+	 *
+	 * @param uris The URIs of the resources.
+	 * @return This batch.
+	 */
+	def RequestBatch addAll(Iterable<String> uris) {
+		for (uri : uris) {
+			add(uri)
+		}
+		return this
+	}
+
+	/**
+	 * Starts executing the requests of the batch. It returns immediately.
+	 *
+	 * @param callback The callback notified of the results, or null.
+	 */
+	def void execute(BatchCallback callback) {
+		if (!started.compareAndSet(false, true)) {
+			throw new IllegalStateException("Batch already executed")
+		}
+		this.callback = callback
+		this.startTime = System.nanoTime
+		if (remaining.get == 0) {
+			finish
+			return
+		}
+		pump
+	}
+
+	/**
+	 * Waits until all the requests of the batch have ended.
+	 *
+	 * @param timeout The maximum time to wait.
+	 * @param unit The unit of the timeout.
+	 * @return True if the batch finished, false if the time elapsed.
+	 */
+	def boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit)
+	}
+
+	def int size() {
+		return succeeded.get + failed.get + remaining.get
+	}
+
+	def int getSucceeded() {
+		return succeeded.get
+	}
+
+	def int getFailed() {
+		return failed.get
+	}
+
+	/**
+	 * Returns the shortest round trip time of the requests answered.
+	 *
+	 * @return The time in milliseconds, or 0 if no request was answered.
+	 */
+	def double getMinRTT() {
+		if (succeeded.get == 0) {
+			return 0
+		}
+		return minRTT.get / 1000000.0
+	}
+
+	def double getMaxRTT() {
+		return maxRTT.get / 1000000.0
+	}
+
+	def double getMeanRTT() {
+		if (succeeded.get == 0) {
+			return 0
+		}
+		return totalRTT.get / 1000000.0 / succeeded.get
+	}
+
+	/**
+	 * Returns the time the whole batch took.
+	 *
+	 * @return The time in milliseconds, or 0 if the batch has not finished.
+	 */
+	def double getElapsed() {
+		if (done.getCount > 0) {
+			return 0
+		}
+		return elapsed / 1000000.0
+	}
+
+	/**
+	 * Starts pending requests while the window allows it. Only one thread
+	 * starts requests at a time; the others leave the work to it, so that
+	 * requests failing right away do not nest calls. The requests waiting
+	 * for their peer go first.
+	 */
+	def private void pump() {
+		if (wip.getAndIncrement != 0) {
+			return
+		}
+		var missed = 1
+		while (missed != 0) {
+			var progress = true
+			while (progress && inFlight.get < window) {
+				progress = startNext
+			}
+			missed = wip.addAndGet(-missed)
+		}
+	}
+
+	/**
+	 * Starts a request, or parks it until its peer has room. Only pump calls it.
+	 *
+	 * @return False if there is nothing left to start.
+	 */
+	def private boolean startNext() {
+		var peer = released.peek
+		if (peer != null) {
+			if (!peer.waiting.isEmpty && peer.inFlight.get < peerWindow) {
+				launch(peer.waiting.poll, peer)
+			} else {
+				released.poll
+			}
+			return true
+		}
+		var request = pending.poll
+		if (request == null) {
+			return false
+		}
+		var cause = invalid.remove(request)
+		if (cause != null) {
+			inFlight.incrementAndGet
+			fail(request, cause, null)
+			return true
+		}
+		var address = request.getPeerAddress
+		if (address == null) {
+			launch(request, null)
+			return true
+		}
+		var key = Message.peerIdentity(address)
+		peer = peers.get(key)
+		if (peer == null) {
+			peer = new Peer
+			peers.put(key, peer)
+		}
+		if (peer.inFlight.get < peerWindow) {
+			launch(request, peer)
+		} else {
+			peer.waiting.add(request)
+		}
+		return true
+	}
+
+	def private void launch(Request request, Peer peer) {
+		inFlight.incrementAndGet
+		if (peer != null) {
+			peer.inFlight.incrementAndGet
+		}
+		val start = System.nanoTime
+		request.setCommunicator(communicator)
+		request.executeAsync(timeout).addCallback(new ResponseCallback {
+			override completed(Response response) {
+				var rtt = System.nanoTime - start
+				totalRTT.addAndGet(rtt)
+				updateMin(rtt)
+				updateMax(rtt)
+				succeeded.incrementAndGet
+				try {
+					if (callback != null) {
+						callback.completed(request, response)
+					}
+				} finally {
+					// A failing callback must not stall the batch
+					ended(peer)
+				}
+			}
+			override failed(Throwable cause) {
+				fail(request, cause, peer)
+			}
+		})
+	}
+
+	def private void fail(Request request, Throwable cause, Peer peer) {
+		failed.incrementAndGet
+		try {
+			if (callback != null) {
+				callback.failed(request, cause)
+			}
+		} finally {
+			ended(peer)
+		}
+	}
+
+	def private void ended(Peer peer) {
+		if (peer != null) {
+			peer.inFlight.decrementAndGet
+			released.add(peer)
+		}
+		inFlight.decrementAndGet
+		if (remaining.decrementAndGet == 0) {
+			finish
+		} else {
+			pump
+		}
+	}
+
+	def private void finish() {
+		elapsed = System.nanoTime - startTime
+		done.countDown
+		if (callback != null) {
+			callback.finished(this)
+		}
+	}
+
+	def private void updateMin(long rtt) {
+		var current = minRTT.get
+		while (rtt < current && !minRTT.compareAndSet(current, rtt)) {
+			current = minRTT.get
+		}
+	}
+
+	def private void updateMax(long rtt) {
+		var current = maxRTT.get
+		while (rtt > current && !maxRTT.compareAndSet(current, rtt)) {
+			current = maxRTT.get
+		}
+	}
+
+	/**
+	 * Requests in flight to a peer, and the ones waiting for room. Only pump
+	 * touches the waiting requests.
+	 */
+	private static class Peer {
+		AtomicInteger inFlight = new AtomicInteger
+		ArrayDeque<Request> waiting = new ArrayDeque<Request>
+	}
+}
\ No newline at end of file
@@ -0,0 +1,217 @@
+package com.xtend.coap.message.request
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.message.response.ResponseCallback
+import com.xtend.coap.utils.HashedWheelTimer
+
+/**
+ * Class that represents the pending response to a request executed asynchronously.
+ *
+ * The future is completed by the first response to the request, or fails when
+ * the request times out, its deadline passes or it is cancelled. Callbacks are
+ * run by the thread that completes the future, or by the caller if the future
+ * is already done, so no thread waits for the response.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ResponseFuture implements Future<Response> {
+
+	val static PENDING = 0
+	val static COMPLETED = 1
+	val static FAILED = 2
+	val static CANCELLED = 3
+
+	Request request
+	AtomicInteger state
+	CountDownLatch done
+	Response response
+	Throwable cause
+	ConcurrentLinkedQueue<ResponseCallback> callbacks
+	HashedWheelTimer.Timeout deadline
+	HashedWheelTimer deadlineTimer
+	long deadlineTimeout
+
+	/**
+	 * Initializes a new ResponseFuture object.
+	 *
+	 * @param request The request whose response is awaited.
+	 */
+	new (Request request) {
+		this.request = request
+		this.state = new AtomicInteger(PENDING)
+		this.done = new CountDownLatch(1)
+		this.callbacks = new ConcurrentLinkedQueue<ResponseCallback>
+	}
+
+	/**
+	 * Registers a callback, run when the future is done.
+	 *
+	 * @param callback The callback.
+	 * @return This future.
+	 */
+	def ResponseFuture addCallback(ResponseCallback callback) {
+		callbacks.add(callback)
+		if (done.getCount == 0) {
+			runCallbacks
+		}
+		return this
+	}
+
+	/**
+	 * Completes the future with a response.
+	 *
+	 * @param response The response received.
+	 * @return True if the future was pending.
+	 */
+	def boolean complete(Response response) {
+		if (!state.compareAndSet(PENDING, COMPLETED)) {
+			return false
+		}
+		this.response = response
+		finish
+		return true
+	}
+
+	/**
+	 * Fails the future.
+	 *
+	 * @param cause The reason why no response is expected.
+	 * @return True if the future was pending.
+	 */
+	def boolean fail(Throwable cause) {
+		if (!state.compareAndSet(PENDING, FAILED)) {
+			return false
+		}
+		this.cause = cause
+		finish
+		return true
+	}
+
+	/**
+	 * Cancels the request. Its transmission and its token are released.
+	 *
+	 * @param mayInterruptIfRunning Ignored, no thread runs the request.
+	 * @return True if the future was pending.
+	 */
+	override cancel(boolean mayInterruptIfRunning) {
+		if (!state.compareAndSet(PENDING, CANCELLED)) {
+			return false
+		}
+		this.cause = new CancellationException("Request " + request.key + " cancelled")
+		// released before the waiting threads see the future done
+		request.abort
+		finish
+		return true
+	}
+
+	/**
+	 * Fails the future with a TimeoutException if it is not done before a deadline.
+	 * The request is aborted as if it was cancelled.
+	 *
+	 * @param timer The timer that watches the deadline.
+	 * @param timeout The time left in milliseconds.
+	 */
+	def void setDeadline(HashedWheelTimer timer, long timeout) {
+		deadline = timer.newTimeout([|
+			if (state.compareAndSet(PENDING, FAILED)) {
+				this.cause = new TimeoutException("No response to " + request.key + " in " + timeout + " ms")
+				request.abort
+				finish
+			}
+		], timeout)
+		if (isDone) {
+			deadline.cancel
+		}
+	}
+
+	/**
+	 * Sets a deadline that starts once the request is transmitted, which is
+	 * later than now if the request waits for other messages to its peer.
+	 *
+	 * @param timer The timer that watches the deadline.
+	 * @param timeout The time left in milliseconds from the transmission.
+	 */
+	def void setDeadlineOnTransmission(HashedWheelTimer timer, long timeout) {
+		this.deadlineTimer = timer
+		this.deadlineTimeout = timeout
+	}
+
+	/**
+	 * Starts the deadline set by setDeadlineOnTransmission. The request calls
+	 * it when it is transmitted.
+	 */
+	def void transmitted() {
+		var timer = deadlineTimer
+		if (timer != null && !isDone) {
+			deadlineTimer = null
+			setDeadline(timer, deadlineTimeout)
+		}
+	}
+
+	override isCancelled() {
+		return state.get == CANCELLED
+	}
+
+	override isDone() {
+		return state.get != PENDING
+	}
+
+	override get() throws InterruptedException, ExecutionException {
+		done.await
+		return result
+	}
+
+	override get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException
+		}
+		return result
+	}
+
+	def getRequest() {
+		return request
+	}
+
+	def private Response result() throws ExecutionException {
+		if (state.get == CANCELLED) {
+			throw cause as CancellationException
+		} else if (state.get == FAILED) {
+			throw new ExecutionException(cause)
+		}
+		return response
+	}
+
+	def private void finish() {
+		if (deadline != null) {
+			deadline.cancel
+		}
+		done.countDown
+		runCallbacks
+	}
+
+	def private void runCallbacks() {
+		var callback = callbacks.poll
+		while (callback != null) {
+			try {
+				if (state.get == COMPLETED) {
+					callback.completed(response)
+				} else {
+					callback.failed(cause)
+				}
+			} catch (RuntimeException e) {
+				System.err.println("[" + getClass.getName + "] ERROR: Response callback failed: " + e.getMessage)
+			}
+			callback = callbacks.poll
+		}
+	}
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.xtend.coap.message.response
 
 import com.xtend.coap.message.Message
+import com.xtend.coap.message.MessageCodec
 import com.xtend.coap.message.MessageHandler
 import com.xtend.coap.message.request.Request
 import com.xtend.coap.utils.Code
@@ -14,6 +15,9 @@ import com.xtend.coap.utils.Code
 class Response extends Message {
 	
 	private Request request
+	boolean cacheable
+	boolean sharedOptions
+	byte[] encodedBody
 	
 	/**
 	 * Initializes a new Response object.
@@ -49,6 +53,82 @@ class Response extends Message {
 		return request
 	}
 	
+	/**
+	 * Sets whether the encoded options and payload of this response are cached.
+	 * A cacheable response is encoded once, and later sends only encode its header and token.
+	 * 
+	 * @param cacheable True to cache the encoded options and payload.
+	 */
+	def void setCacheable(boolean cacheable) {
+		this.cacheable = cacheable
+		if (!cacheable) {
+			encodedBody = null
+		}
+	}
+	
+	/**
+	 * Checks whether the encoded options and payload of this response are cached.
+	 * 
+	 * @return True if the encoded options and payload are cached.
+	 */
+	def isCacheable() {
+		return cacheable
+	}
+	
+	/**
+	 * Creates a new cacheable response from this one, to be used as a template.
+	 * The new response has the same code, options and payload and shares their
+	 * encoded form, so sending it only encodes the type, message ID and token.
+	 * The options are copied the first time the new response is modified.
+	 * 
+	 * @return The new response.
+	 */
+	def copy() {
+		var response = new Response
+		copyTo(response)
+		return response
+	}
+	
+	/**
+	 * Makes a response, e.g. of a subclass, a copy of this one, as copy() does.
+	 * 
+	 * @param response The response to be filled.
+	 */
+	def void copyTo(Response response) {
+		setCacheable(true)
+		sharedOptions = true
+		response.setRawCode(getRawCode)
+		response.setOptionIndex(getOptionIndex)
+		response.setPayload(getPayload)
+		response.cacheable = true
+		response.sharedOptions = true
+		response.encodedBody = getEncodedBody
+	}
+	
+	/**
+	 * Override method. Returns the cached encoded options and payload, encoding them if needed.
+	 * 
+	 * @return The encoded options and payload, or null if the response is not cacheable.
+	 */
+	override byte[] getEncodedBody() {
+		if (cacheable && encodedBody == null) {
+			encodedBody = MessageCodec.encodeBody(this)
+		}
+		return encodedBody
+	}
+	
+	/**
+	 * Override method. Drops the cached encoded options and payload, and copies
+	 * the options if they are shared with a template.
+	 */
+	override protected void contentChanged() {
+		encodedBody = null
+		if (sharedOptions) {
+			sharedOptions = false
+			setOptionIndex(getOptionIndex.copy)
+		}
+	}
+	
 	/**
 	 * Method to be invoked to respond the request matched with the actual response.
 	 */	
@@ -115,7 +195,7 @@ class Response extends Message {
 	 * @return True if code is not EMPTY_MESSAGE and the response is an acknowledgement.
 	 */
 	def isPiggyBacked() {
-		return isAcknowledgement && getCode != Code.EMPTY_MESSAGE
+		return isAcknowledgement && getRawCode != Code.EMPTY
 	}
 
 	/**
@@ -124,6 +204,6 @@ class Response extends Message {
 	 * @return True if code is EMPTY_MESSAGE and the response is an acknowledgement.
 	 */
 	def isEmptyACK() {
-		return isAcknowledgement && getCode == Code.EMPTY_MESSAGE
+		return isAcknowledgement && getRawCode == Code.EMPTY
 	}
 }
@@ -0,0 +1,24 @@
+package com.xtend.coap.message.response
+
+/** 
+ * Interface with the methods of a Response Callback, notified when an asynchronous request ends.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+public interface ResponseCallback {
+	/**
+	 * Method called when the response to the request is received.
+	 * 
+	 * @param response The response received.
+	 */
+	def void completed(Response response)
+	
+	/**
+	 * Method called when the request ends without a response.
+	 * 
+	 * @param cause A TimeoutException if no response arrived in time, a CancellationException
+	 * if the request was cancelled, or the error raised when it was sent.
+	 */
+	def void failed(Throwable cause)
+}
\ No newline at end of file
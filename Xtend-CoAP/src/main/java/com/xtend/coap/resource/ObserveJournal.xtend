@@ -0,0 +1,580 @@
+package com.xtend.coap.resource
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.util.LinkedHashMap
+import java.util.Map
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+
+import com.xtend.coap.layers.Communicator
+import com.xtend.coap.utils.NamedThreadFactory
+
+/**
+ * Class that journals the observers of the resources in memory-mapped files,
+ * so that they are restored when the endpoint restarts and the clients do
+ * not need to register again.
+ *
+ * Registrations, removals and the Observe sequence number of each resource
+ * are appended as records. Registrations and removals carry the path
+ * observed when the resource has a template segment. A record takes its place in the file by
+ * increasing a counter, and is written into the mapping directly: there is
+ * no lock and no call to force, the operating system writes the pages
+ * back. Each record carries a checksum, so that a record left half-written
+ * by a crash ends the replay instead of being read.
+ *
+ * The journal alternates between two files. When the current one is full,
+ * the observers still registered are written as a snapshot into the other,
+ * which then becomes the current one. If the snapshot does not fit, that
+ * file is mapped again twice as large and the snapshot written again; a
+ * file is only valid once it holds a whole snapshot. The file with the
+ * highest epoch in its header is replayed on startup. The default capacity
+ * holds a snapshot of about two million registrations.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ObserveJournal {
+
+	val public static DEFAULT_CAPACITY = 128 * 1024 * 1024
+	/** Largest size a file grows to for a snapshot to fit. */
+	val public static MAX_CAPACITY = 1024 * 1024 * 1024
+	/** Added to the sequence numbers restored, in case the last ones were not journaled. */
+	val public static SEQUENCE_MARGIN = 1024
+
+	val static MAGIC = 0x434F4A32
+	val static HEADER_SIZE = 16
+	val static RECORD_HEADER_SIZE = 13
+	val static byte REGISTER = 1 as byte
+	val static byte REMOVE = 2 as byte
+	val static byte SEQUENCE = 3 as byte
+
+	Segment[] segments
+	AtomicReference<Segment> active
+	AtomicBoolean compacting
+	AtomicLong written
+	AtomicLong lost
+	Resource root
+
+	/**
+	 * Initializes a new ObserveJournal object with files of the default capacity.
+	 *
+	 * @param directory The directory of the files, created if needed.
+	 * @throws IOException If the files cannot be mapped.
+	 */
+	new (File directory) throws IOException {
+		this(directory, DEFAULT_CAPACITY)
+	}
+
+	/**
+	 * Initializes a new ObserveJournal object.
+	 *
+	 * @param directory The directory of the files, created if needed.
+	 * @param capacity The initial size of each of the two files in bytes. A file grown by a compaction keeps its size.
+	 * @throws IOException If the files cannot be mapped.
+	 */
+	new (File directory, int capacity) throws IOException {
+		if (!directory.isDirectory && !directory.mkdirs) {
+			throw new IOException("Unable to create " + directory)
+		}
+		this.segments = newArrayOfSize(2)
+		for (var i = 0; i < 2; i++) {
+			segments.set(i, new Segment(new File(directory, "observe." + i), i, capacity))
+		}
+		var current = segments.get(0)
+		if (segments.get(1).epoch > current.epoch) {
+			current = segments.get(1)
+		}
+		if (current.epoch == 0) {
+			current.reset(1)
+			current.commit
+		}
+		this.active = new AtomicReference<Segment>(current)
+		this.compacting = new AtomicBoolean
+		this.written = new AtomicLong
+		this.lost = new AtomicLong
+	}
+
+	/**
+	 * Registers again the observers journaled in the current file. The
+	 * journal must not be in use by a notifier yet; once it is, compact
+	 * starts a new file with the observers restored.
+	 *
+	 * @param root The root resource of the endpoint, searched for the resources observed.
+	 * @param communicator The communicator the notifications are sent through.
+	 * @return The number of observers restored.
+	 */
+	def int restore(Resource root, Communicator communicator) {
+		this.root = root
+		var observers = new LinkedHashMap<String, Map<String, Entry>>
+		var sequences = new LinkedHashMap<String, Integer>
+		var segment = active.get
+		var buffer = segment.buffer.duplicate
+		var position = HEADER_SIZE
+		var length = segment.recordLength(position)
+		while (length > 0) {
+			buffer.position(position + RECORD_HEADER_SIZE)
+			var type = buffer.get(position + RECORD_HEADER_SIZE - 1)
+			var path = readPath(buffer)
+			var entries = observers.get(path)
+			if (entries == null) {
+				entries = new LinkedHashMap<String, Entry>
+				observers.put(path, entries)
+			}
+			if (type == REGISTER) {
+				var entry = readEntry(buffer, true)
+				entries.put(entry.key, entry)
+			} else if (type == REMOVE) {
+				entries.remove(readEntry(buffer, false).key)
+			} else if (type == SEQUENCE) {
+				sequences.put(path, buffer.getInt)
+			}
+			position += length
+			length = segment.recordLength(position)
+		}
+		segment.position.set(position)
+
+		var count = 0
+		for (path : observers.keySet) {
+			var resource = root.getResource(path)
+			if (resource instanceof LocalResource) {
+				var registry = (resource as LocalResource).getObserverRegistry
+				for (entry : observers.get(path).values) {
+					registry.add(entry.peerKey, entry.address, entry.path, entry.token, entry.tokenLength, entry.accept, communicator)
+					count++
+				}
+				var sequence = sequences.get(path)
+				if (sequence != null) {
+					(resource as LocalResource).restoreObserveSequence(sequence + SEQUENCE_MARGIN)
+				}
+				var notifier = resource.getNotifier
+				if (notifier != null) {
+					notifier.observerAdded(resource as LocalResource)
+				}
+			} else if (!observers.get(path).isEmpty) {
+				System.err.println("[" + getClass.getName + "] ERROR: Observed resource " + path + " no longer exists")
+			}
+		}
+		System.out.println("[" + getClass.getName + "] Restored " + count + " observers")
+		return count
+	}
+
+	/**
+	 * Journals the registration of an observer. The registry calls it while
+	 * adding the observer.
+	 *
+	 * @param resource The resource observed.
+	 * @param peerKey The key of the remote endpoint.
+	 * @param address The address of the remote endpoint if it is not IPv4, or null.
+	 * @param observed The path observed, or null for the path of the resource.
+	 * @param token The token of the registration.
+	 * @param tokenLength The length of the token.
+	 * @param accept The Accept option of the registration, or ObserverRegistry.NO_ACCEPT.
+	 */
+	def void registered(LocalResource resource, long peerKey, InetSocketAddress address, String observed, long token, int tokenLength, int accept) {
+		var host = if (address != null) address.getAddress.getAddress else newByteArrayOfSize(0)
+		var observedPath = if (observed != null) observed.getBytes(StandardCharsets.UTF_8) else newByteArrayOfSize(0)
+		var record = newRecord(REGISTER, path(resource), 8 + 1 + host.length + 2 + 2 + observedPath.length + 8 + 1 + 4)
+		putObserver(record, peerKey, host, address, observedPath)
+		record.putLong(token)
+		record.put(tokenLength as byte)
+		record.putInt(accept)
+		append(record)
+	}
+
+	/**
+	 * Journals the removal of an observer. The registry calls it while
+	 * removing the observer.
+	 *
+	 * @param resource The resource observed.
+	 * @param peerKey The key of the remote endpoint.
+	 * @param address The address of the remote endpoint if it is not IPv4, or null.
+	 * @param observed The path observed, or null for the path of the resource.
+	 */
+	def void removed(LocalResource resource, long peerKey, InetSocketAddress address, String observed) {
+		var host = if (address != null) address.getAddress.getAddress else newByteArrayOfSize(0)
+		var observedPath = if (observed != null) observed.getBytes(StandardCharsets.UTF_8) else newByteArrayOfSize(0)
+		var record = newRecord(REMOVE, path(resource), 8 + 1 + host.length + 2 + 2 + observedPath.length)
+		putObserver(record, peerKey, host, address, observedPath)
+		append(record)
+	}
+
+	/**
+	 * Journals the Observe sequence number of the last notification of a resource.
+	 *
+	 * @param resource The resource observed.
+	 * @param sequence The sequence number.
+	 */
+	def void sequence(LocalResource resource, int sequence) {
+		var record = newRecord(SEQUENCE, path(resource), 4)
+		record.putInt(sequence)
+		append(record)
+	}
+
+	/**
+	 * Writes the observers registered into the other file, which becomes the
+	 * current one. It does nothing before restore, or while another
+	 * compaction runs.
+	 *
+	 * @return True if the journal was compacted.
+	 */
+	def boolean compact() {
+		if (root == null || !compacting.compareAndSet(false, true)) {
+			return false
+		}
+		try {
+			return doCompact
+		} finally {
+			compacting.set(false)
+		}
+	}
+
+	/**
+	 * Checks whether a compaction is running.
+	 *
+	 * @return True while the snapshot is being written.
+	 */
+	def boolean isCompacting() {
+		return compacting.get
+	}
+
+	/**
+	 * Writes the snapshot into the other file, growing it until the snapshot
+	 * fits. On failure the file is left invalid, the other one is replayed on
+	 * startup, and the next record that does not fit starts another
+	 * compaction.
+	 */
+	def private boolean doCompact() {
+		try {
+			var current = active.get
+			// after a failed compaction the current file is written again, the other one is still valid
+			var next = if (current.isCommitted) segments.get(1 - current.index) else current
+			awaitWriters(next)
+			if (next.capacity < current.capacity) {
+				next = grow(next, current.capacity)
+			}
+			var epoch = current.epoch + 1
+			while (true) {
+				next.reset(epoch)
+				// records appended from now on follow the snapshot of their registry
+				active.set(next)
+				snapshot(root)
+				if (next.position.get <= next.capacity) {
+					next.commit
+					return true
+				}
+				if (next.capacity >= MAX_CAPACITY) {
+					System.err.println("[" + getClass.getName + "] ERROR: Snapshot of " + next.position.get + " bytes exceeds " + MAX_CAPACITY + " bytes")
+					return false
+				}
+				System.err.println("[" + getClass.getName + "] ERROR: Snapshot of " + next.position.get + " bytes exceeds " + next.capacity + " bytes, growing " + next.path)
+				// the full file stays current until it is mapped again: appends to it fail without writing
+				epoch = next.epoch + 1
+				next = grow(next, Math.min(MAX_CAPACITY as long, 2L * next.capacity) as int)
+			}
+		} catch (IOException e) {
+			System.err.println("[" + getClass.getName + "] ERROR: Failed to compact: " + e.getMessage)
+			return false
+		}
+	}
+
+	/**
+	 * Maps a file again with a larger size, in place of its segment, once the
+	 * appends still writing to the segment are done.
+	 */
+	def private Segment grow(Segment segment, int capacity) throws IOException {
+		awaitWriters(segment)
+		var grown = new Segment(segment.path, segment.index, capacity)
+		segments.set(segment.index, grown)
+		segment.file.close
+		return grown
+	}
+
+	/**
+	 * Waits for the appends that took space in a segment that is no longer
+	 * the current one, or is full, so that none of them writes over the next
+	 * snapshot.
+	 */
+	def private static void awaitWriters(Segment segment) {
+		while (segment.writers.get > 0) {
+			Thread.yield
+		}
+	}
+
+	/**
+	 * Writes the files back to the disk.
+	 */
+	def void force() {
+		for (segment : segments) {
+			segment.buffer.force
+		}
+	}
+
+	/**
+	 * Writes the files back to the disk and closes them.
+	 */
+	def void close() {
+		force
+		for (segment : segments) {
+			try {
+				segment.file.close
+			} catch (IOException e) {
+				System.err.println("[" + getClass.getName + "] ERROR: " + e.getMessage)
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of records written.
+	 *
+	 * @return The number of records written.
+	 */
+	def long getWritten() {
+		return written.get
+	}
+
+	/**
+	 * Returns the number of records that did not fit in a full file. The
+	 * compaction that follows includes the state they held.
+	 *
+	 * @return The number of records lost.
+	 */
+	def long getLost() {
+		return lost.get
+	}
+
+	/**
+	 * Returns the size of the current file, larger than the capacity given if
+	 * a snapshot did not fit.
+	 *
+	 * @return The size of the current file in bytes.
+	 */
+	def int getCapacity() {
+		return active.get.capacity
+	}
+
+	def private void snapshot(Resource resource) {
+		if (resource instanceof LocalResource) {
+			var local = resource as LocalResource
+			local.getObserverRegistry.journal(this)
+			if (local.getObserveSequence != 0) {
+				sequence(local, local.getObserveSequence)
+			}
+		}
+		if (resource.subResources != null) {
+			for (sub : resource.subResources.values) {
+				snapshot(sub)
+			}
+		}
+	}
+
+	/**
+	 * Takes the space of a record in the current file and writes it there.
+	 * The length goes last, so that a record is not read before it is whole.
+	 */
+	def private boolean append(ByteBuffer record) {
+		var segment = enter
+		try {
+			var length = record.capacity
+			var position = segment.position.getAndAdd(length)
+			if (position + length > segment.capacity) {
+				lost.incrementAndGet
+				// one compaction at a time, and another one if it failed
+				if (root != null && compacting.compareAndSet(false, true)) {
+					new NamedThreadFactory("ObserveJournal").newThread([|
+						try {
+							doCompact
+						} finally {
+							compacting.set(false)
+						}
+					]).start
+				}
+				return false
+			}
+			record.putInt(8, segment.epoch)
+			record.putInt(4, checksum(record.array, 8, length))
+			var view = segment.buffer.duplicate
+			view.position(position as int + 4)
+			view.put(record.array, 4, length - 4)
+			segment.buffer.putInt(position as int, length)
+			written.incrementAndGet
+			return true
+		} finally {
+			segment.writers.decrementAndGet
+		}
+	}
+
+	/**
+	 * Returns the current file, counted as written to until the append ends.
+	 */
+	def private Segment enter() {
+		var Segment segment = null
+		do {
+			if (segment != null) {
+				segment.writers.decrementAndGet
+			}
+			segment = active.get
+			segment.writers.incrementAndGet
+		} while (active.get !== segment)
+		return segment
+	}
+
+	def private ByteBuffer newRecord(byte type, byte[] path, int size) {
+		var record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 2 + path.length + size)
+		record.position(RECORD_HEADER_SIZE - 1)
+		record.put(type)
+		record.putShort(path.length as short)
+		record.put(path)
+		return record
+	}
+
+	/**
+	 * Writes what identifies an observer: its peer and the path it observes.
+	 */
+	def private static void putObserver(ByteBuffer record, long peerKey, byte[] host, InetSocketAddress address, byte[] observedPath) {
+		record.putLong(peerKey)
+		record.put(host.length as byte)
+		record.put(host)
+		record.putShort(if (address != null) address.getPort as short else 0 as short)
+		record.putShort(observedPath.length as short)
+		record.put(observedPath)
+	}
+
+	def private static byte[] path(LocalResource resource) {
+		return resource.getResourceIdentifier(true).getBytes(StandardCharsets.UTF_8)
+	}
+
+	def private static String readPath(ByteBuffer buffer) {
+		var path = newByteArrayOfSize(buffer.getShort.bitwiseAnd(0xFFFF))
+		buffer.get(path)
+		return new String(path, StandardCharsets.UTF_8)
+	}
+
+	/**
+	 * Reads the observer of a registration, or of a removal, which has no token or Accept.
+	 */
+	def private static Entry readEntry(ByteBuffer buffer, boolean registration) {
+		var entry = new Entry
+		entry.peerKey = buffer.getLong
+		var host = newByteArrayOfSize(buffer.get)
+		buffer.get(host)
+		var port = buffer.getShort.bitwiseAnd(0xFFFF)
+		if (host.length > 0) {
+			try {
+				entry.address = new InetSocketAddress(InetAddress.getByAddress(host), port)
+			} catch (IOException e) {
+				entry.address = null
+			}
+		}
+		var observed = readPath(buffer)
+		entry.path = if (observed.isEmpty) null else observed
+		entry.key = entry.peerKey + "|" + entry.address + "|" + observed
+		if (registration) {
+			entry.token = buffer.getLong
+			entry.tokenLength = buffer.get
+			entry.accept = buffer.getInt
+		}
+		return entry
+	}
+
+	def private static int checksum(byte[] bytes, int from, int to) {
+		var hash = 0x811C9DC5
+		for (var i = from; i < to; i++) {
+			hash = (hash.bitwiseXor(bytes.get(i).bitwiseAnd(0xFF))) * 0x01000193
+		}
+		return hash
+	}
+
+	/**
+	 * Observer read from a file.
+	 */
+	private static class Entry {
+		String key
+		long peerKey
+		InetSocketAddress address
+		String path
+		long token
+		int tokenLength
+		int accept
+	}
+
+	/**
+	 * One of the two files, mapped whole. The header holds a magic number
+	 * and the epoch, written once the file holds a complete snapshot; every
+	 * record repeats the epoch, so that the records left from the previous
+	 * use of the file are not read.
+	 */
+	private static class Segment {
+		File path
+		RandomAccessFile file
+		MappedByteBuffer buffer
+		int index
+		int capacity
+		int epoch
+		AtomicLong position
+		AtomicInteger writers
+
+		/**
+		 * Maps a file whole, at least with the capacity given.
+		 */
+		new (File path, int index, int capacity) throws IOException {
+			this.path = path
+			this.file = new RandomAccessFile(path, "rw")
+			this.capacity = Math.max(capacity as long, Math.min(file.length, MAX_CAPACITY as long)) as int
+			this.buffer = file.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity)
+			this.index = index
+			this.epoch = if (buffer.getInt(0) == MAGIC) buffer.getInt(4) else 0
+			this.position = new AtomicLong(HEADER_SIZE)
+			this.writers = new AtomicInteger
+		}
+
+		/**
+		 * Empties the file for a new epoch. It is not valid until commit.
+		 */
+		def void reset(int epoch) {
+			buffer.putInt(0, 0)
+			this.epoch = epoch
+			position.set(HEADER_SIZE)
+		}
+
+		def boolean isCommitted() {
+			return buffer.getInt(0) == MAGIC
+		}
+
+		def void commit() throws IOException {
+			buffer.putInt(4, epoch)
+			buffer.putInt(0, MAGIC)
+			buffer.force
+		}
+
+		/**
+		 * Returns the length of a whole record of this epoch, or 0 if there is none at the position.
+		 */
+		def int recordLength(int position) {
+			if (position + RECORD_HEADER_SIZE > capacity) {
+				return 0
+			}
+			var length = buffer.getInt(position)
+			if (length < RECORD_HEADER_SIZE || length > capacity - position || buffer.getInt(position + 8) != epoch) {
+				return 0
+			}
+			var bytes = newByteArrayOfSize(length)
+			var view = buffer.duplicate
+			view.position(position)
+			view.get(bytes)
+			if (checksum(bytes, 8, length) != buffer.getInt(position + 4)) {
+				return 0
+			}
+			return length
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,466 @@
+package com.xtend.coap.resource
+
+import java.io.IOException
+import java.util.ArrayList
+import java.util.Collections
+import java.util.LinkedHashMap
+import java.util.List
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicLong
+
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.ConcurrentLongMap
+import com.xtend.coap.utils.HashedWheelTimer
+import com.xtend.coap.utils.MessageType
+import com.xtend.coap.utils.NamedThreadFactory
+import com.xtend.coap.utils.Option
+
+/**
+ * Class that sends the notifications of observed resources, as specified in rfc7641.
+ *
+ * When a resource changes, its representation is built by a single call to
+ * performGet and encoded once; each observer gets a copy that shares the
+ * encoded options and payload, so only its header and token are encoded.
+ * Observers are notified in batches run in parallel by an executor.
+ * Notifications are Non-confirmable, except that each observer gets a
+ * Confirmable one at least once in a given interval, 24 hours by default.
+ * An observer is dropped when it answers a notification with a Reset, or
+ * when a Confirmable notification times out.
+ *
+ * Each observer has at most one notification in flight: a Confirmable one
+ * until it is acknowledged, and none sooner than the minimum notification
+ * interval of the resource after the previous one. Meanwhile, changes only
+ * replace the state waiting to be sent, so a slow observer gets the latest
+ * state and no backlog builds up. When a resource has a maximum notification
+ * interval, its state is sent again if it does not change for that long.
+ * With a journal, the sequence number of each change is journaled, so that
+ * the observers restored after a restart take the next ones for newer.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ObserveNotifier {
+
+	val public static DEFAULT_BATCH_SIZE = 256
+	val public static long DEFAULT_CONFIRMABLE_INTERVAL = 24 * 60 * 60 * 1000
+
+	Executor executor
+	ExecutorService ownedExecutor
+	HashedWheelTimer timer
+	int batchSize
+	long confirmableInterval
+	ConcurrentLongMap<ObserverRegistry> exchanges
+	AtomicLong sent
+	AtomicLong dropped
+	ConcurrentMap<LocalResource, HashedWheelTimer.Timeout> refreshes
+	ObserveJournal journal
+
+	/**
+	 * Initializes a new ObserveNotifier object with a pool of daemon threads,
+	 * one per processor, that is shut down by shutdown.
+	 *
+	 * @param timer The timer that delays the notifications, e.g. the one of the communicator.
+	 */
+	new (HashedWheelTimer timer) {
+		this(Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors, new NamedThreadFactory("ObserveNotifier")), timer)
+		this.ownedExecutor = executor as ExecutorService
+	}
+
+	/**
+	 * Initializes a new ObserveNotifier object.
+	 *
+	 * @param executor The executor that sends the batches of notifications, or null to send them on the caller's thread.
+	 * @param timer The timer that delays the notifications, e.g. the one of the communicator.
+	 */
+	new (Executor executor, HashedWheelTimer timer) {
+		this.executor = executor
+		this.timer = timer
+		this.batchSize = DEFAULT_BATCH_SIZE
+		this.confirmableInterval = DEFAULT_CONFIRMABLE_INTERVAL
+		this.exchanges = new ConcurrentLongMap<ObserverRegistry>
+		this.sent = new AtomicLong
+		this.dropped = new AtomicLong
+		this.refreshes = new ConcurrentHashMap<LocalResource, HashedWheelTimer.Timeout>
+	}
+
+	/**
+	 * Sets the number of observers notified by each task of the executor.
+	 *
+	 * @param batchSize The number of observers per batch.
+	 */
+	def void setBatchSize(int batchSize) {
+		this.batchSize = batchSize
+	}
+
+	def getBatchSize() {
+		return batchSize
+	}
+
+	/**
+	 * Sets the maximum time between two Confirmable notifications to an observer.
+	 *
+	 * @param confirmableInterval The interval in milliseconds, 0 to send every notification as Confirmable.
+	 */
+	def void setConfirmableInterval(long confirmableInterval) {
+		this.confirmableInterval = confirmableInterval
+	}
+
+	def getConfirmableInterval() {
+		return confirmableInterval
+	}
+
+	/**
+	 * Sets the journal the observers and sequence numbers are written to.
+	 *
+	 * @param journal The journal, or null for none.
+	 */
+	def void setJournal(ObserveJournal journal) {
+		this.journal = journal
+	}
+
+	def getJournal() {
+		return journal
+	}
+
+	/**
+	 * Sends the current representation of a resource to all its observers.
+	 * Observers are grouped by the path they observe, for resources with a
+	 * template segment, and by the content format they asked for; each group
+	 * gets the representation built for its first observer.
+	 * It returns once the batches are handed to the executor.
+	 *
+	 * @param resource The resource that changed.
+	 * @return The number of observers notified.
+	 */
+	def int notifyObservers(LocalResource resource) {
+		val registry = resource.getObserverRegistry
+		var slots = registry.slots
+		scheduleRefresh(resource, slots.length > 0)
+		if (slots.length == 0) {
+			return 0
+		}
+		var sequence = resource.nextObserveSequence
+		if (journal != null) {
+			journal.sequence(resource, sequence)
+		}
+		var notified = 0
+		for (group : groupByRepresentation(registry, slots)) {
+			var template = representation(resource, registry.toRequest(group.get(0)))
+			if (template == null) {
+				System.err.println("[" + getClass.getName + "] ERROR: No representation of " + resource.getResourceIdentifier(true) + " to notify")
+			} else {
+				template.setOption(new Option(sequence, Option.OBSERVE))
+				template.setCacheable(true)
+				// encodes the options and payload once, before the copies share them
+				template.getEncodedBody
+				queue(registry, group, template)
+				notified += group.length
+			}
+		}
+		return notified
+	}
+
+	/**
+	 * Handles a reply to a notification: an acknowledgement lets the next
+	 * notification go, a Reset drops the observer.
+	 *
+	 * @param reply The Acknowledgement or Reset message received.
+	 * @return True if the reply answers the last notification sent to an observer.
+	 */
+	def boolean replyReceived(Message reply) {
+		var key = reply.exchangeKey
+		var registry = exchanges.get(key)
+		if (registry == null) {
+			return false
+		}
+		var slot = registry.slotOfExchange(reply.getPeerAddress, key)
+		if (slot < 0 || registry.getExchangeKey(slot) != key) {
+			exchanges.remove(key, registry)
+			return false
+		}
+		var generation = registry.getGeneration(slot)
+		if (reply.isReset) {
+			System.out.println("[" + getClass.getName + "] Notification rejected by " + reply.endpointID)
+			drop(registry, slot, generation)
+		} else {
+			registry.release(slot, generation)
+			drain(registry, slot)
+		}
+		return true
+	}
+
+	/**
+	 * Starts sending the state of a resource again after its maximum
+	 * notification interval, if that is not already pending, so that the
+	 * first observer of a resource that never changes is refreshed too.
+	 *
+	 * @param resource The resource an observer was added to.
+	 */
+	def void observerAdded(LocalResource resource) {
+		var interval = resource.getMaxNotificationInterval
+		if (interval > 0 && timer != null && !refreshes.containsKey(resource)) {
+			val observed = resource
+			var timeout = timer.newTimeout([| notifyObservers(observed)], interval)
+			if (refreshes.putIfAbsent(resource, timeout) != null) {
+				timeout.cancel
+			}
+		}
+	}
+
+	/**
+	 * Forgets the last notification sent to an observer removed.
+	 *
+	 * @param registry The registry the observer was in.
+	 * @param exchangeKey The exchange key of the notification, as returned by ObserverRegistry.remove.
+	 */
+	def void forget(ObserverRegistry registry, long exchangeKey) {
+		if (exchangeKey > 0) {
+			exchanges.remove(exchangeKey, registry)
+		}
+	}
+
+	/**
+	 * Cancels the pending refreshes and shuts down the executor if it was
+	 * created by the notifier. Batches already handed to it are still sent.
+	 */
+	def void shutdown() {
+		for (timeout : refreshes.values) {
+			timeout.cancel
+		}
+		refreshes.clear
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown()
+		}
+	}
+
+	/**
+	 * Returns the number of notifications sent.
+	 *
+	 * @return The number of notifications sent.
+	 */
+	def long getSent() {
+		return sent.get
+	}
+
+	/**
+	 * Returns the number of observers dropped after a Reset or a timeout.
+	 *
+	 * @return The number of observers dropped.
+	 */
+	def long getDropped() {
+		return dropped.get
+	}
+
+	def private void drop(ObserverRegistry registry, int slot, int generation) {
+		if (registry.getResource.removeObserver(slot, generation)) {
+			dropped.incrementAndGet
+		}
+	}
+
+	/**
+	 * Builds the representation of a resource by running its GET handler once,
+	 * on a request that captures the response instead of sending it.
+	 */
+	def private Response representation(LocalResource resource, GetRequest observed) {
+		var capture = new CaptureRequest
+		capture.setPeerAddress(observed.getPeerAddress)
+		capture.setOptionIndex(observed.getOptionIndex)
+		resource.performGet(capture)
+		return capture.response
+	}
+
+	/**
+	 * Sends the state again after the maximum notification interval of the
+	 * resource, unless it changes before.
+	 */
+	def private void scheduleRefresh(LocalResource resource, boolean observed) {
+		var interval = resource.getMaxNotificationInterval
+		var HashedWheelTimer.Timeout previous = null
+		if (observed && interval > 0 && timer != null) {
+			previous = refreshes.put(resource, timer.newTimeout([| notifyObservers(resource)], interval))
+		} else {
+			previous = refreshes.remove(resource)
+		}
+		if (previous != null) {
+			previous.cancel
+		}
+	}
+
+	/**
+	 * Splits the observers by their path and Accept option. Usually they all
+	 * have the same, and the slots are returned as a single group.
+	 */
+	def private static List<int[]> groupByRepresentation(ObserverRegistry registry, int[] slots) {
+		var first = representationKey(registry, slots.get(0))
+		var uniform = true
+		for (var i = 1; i < slots.length && uniform; i++) {
+			uniform = representationKey(registry, slots.get(i)) == first
+		}
+		if (uniform) {
+			return Collections.singletonList(slots)
+		}
+		var groups = new LinkedHashMap<Long, List<Integer>>
+		for (slot : slots) {
+			var key = representationKey(registry, slot)
+			var group = groups.get(key)
+			if (group == null) {
+				group = new ArrayList<Integer>
+				groups.put(key, group)
+			}
+			group.add(slot)
+		}
+		var result = new ArrayList<int[]>(groups.size)
+		for (group : groups.values) {
+			var int[] array = newIntArrayOfSize(group.size)
+			for (var i = 0; i < array.length; i++) {
+				array.set(i, group.get(i))
+			}
+			result.add(array)
+		}
+		return result
+	}
+
+	def private static long representationKey(ObserverRegistry registry, int slot) {
+		return (registry.getPathId(slot) as long).operator_doubleLessThan(32).bitwiseOr(registry.getAccept(slot).bitwiseAnd(0xFFFFFFFF#L))
+	}
+
+	/**
+	 * Queues a notification for a group of observers, in batches run by the
+	 * executor when the group is larger than a batch.
+	 */
+	def private void queue(ObserverRegistry registry, int[] slots, Response template) {
+		if (executor == null || slots.length <= batchSize) {
+			offer(registry, slots, 0, slots.length, template)
+			return
+		}
+		for (var start = 0; start < slots.length; start += batchSize) {
+			val from = start
+			val to = Math.min(start + batchSize, slots.length)
+			try {
+				executor.execute([| offer(registry, slots, from, to, template)])
+			} catch (RejectedExecutionException e) {
+				offer(registry, slots, from, to, template)
+			}
+		}
+	}
+
+	def private void offer(ObserverRegistry registry, int[] slots, int from, int to, Response template) {
+		for (var i = from; i < to; i++) {
+			registry.offer(slots.get(i), template)
+			drain(registry, slots.get(i))
+		}
+	}
+
+	/**
+	 * Sends the notification waiting for an observer, if the previous one is
+	 * not in flight. A Confirmable notification keeps the observer busy until
+	 * it is acknowledged. A notification due before the minimum interval is
+	 * put back and sent by the timer.
+	 */
+	def private void drain(ObserverRegistry registry, int slot) {
+		while (registry.hasPending(slot) && registry.acquire(slot)) {
+			val generation = registry.getGeneration(slot)
+			var template = registry.takePending(slot)
+			if (template == null) {
+				registry.release(slot, generation)
+			} else {
+				var now = System.currentTimeMillis
+				var delay = registry.getLastSent(slot) + registry.getResource.getMinNotificationInterval - now
+				if (delay > 0 && timer != null) {
+					registry.restore(slot, template)
+					timer.newTimeout([|
+						registry.release(slot, generation)
+						drain(registry, slot)
+					], delay)
+					return
+				}
+				try {
+					if (send(registry, slot, generation, template, now)) {
+						return
+					}
+				} catch (IOException e) {
+					System.err.println("[" + getClass.getName + "] ERROR: Failed to notify " + registry.endpointID(slot) + ": " + e.getMessage)
+					drop(registry, slot, generation)
+					return
+				}
+				registry.release(slot, generation)
+			}
+		}
+	}
+
+	/**
+	 * Sends a notification to an observer.
+	 *
+	 * @return True if the notification is Confirmable, and so still in flight.
+	 */
+	def private boolean send(ObserverRegistry registry, int slot, int generation, Response template, long now) throws IOException {
+		var comm = registry.getCommunicator
+		if (comm == null) {
+			throw new IOException("No communicator available")
+		}
+		var notification = new Notification(this, registry, slot, generation)
+		template.copyTo(notification)
+		notification.setPeerAddress(registry.getAddress(slot))
+		notification.setToken(registry.getToken(slot), registry.getTokenLength(slot))
+		var confirmable = registry.confirmableDue(slot, now, confirmableInterval)
+		if (confirmable) {
+			notification.setType(MessageType.CONFIRMABLE)
+		} else {
+			notification.setType(MessageType.NON_CONFIRMABLE)
+		}
+		notification.setID(comm.getIdentifierAllocator.nextMessageID)
+		var key = notification.exchangeKey
+		exchanges.put(key, registry)
+		var previous = registry.swapExchangeKey(slot, key)
+		if (previous != 0 && previous != key) {
+			exchanges.remove(previous, registry)
+		}
+		registry.sent(slot, now, template.getFirstOption(Option.OBSERVE).getIntValue)
+		comm.sendMessage(notification)
+		sent.incrementAndGet
+		return confirmable
+	}
+
+	/**
+	 * Notification sent to an observer. The observer is dropped if it is
+	 * Confirmable and never acknowledged.
+	 */
+	private static class Notification extends Response {
+		ObserveNotifier notifier
+		ObserverRegistry registry
+		int slot
+		int generation
+
+		new (ObserveNotifier notifier, ObserverRegistry registry, int slot, int generation) {
+			this.notifier = notifier
+			this.registry = registry
+			this.slot = slot
+			this.generation = generation
+		}
+
+		override void timedOut() {
+			notifier.drop(registry, slot, generation)
+		}
+	}
+
+	/**
+	 * GET request that keeps the first response placed instead of sending it.
+	 */
+	private static class CaptureRequest extends GetRequest {
+		Response response
+
+		override void respond(Response response) {
+			if (this.response == null && response.getRawCode != Code.EMPTY) {
+				this.response = response
+			}
+		}
+	}
+}
\ No newline at end of file
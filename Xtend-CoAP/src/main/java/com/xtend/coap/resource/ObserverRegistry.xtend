@@ -0,0 +1,915 @@
+package com.xtend.coap.resource
+
+import java.net.Inet4Address
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.UnknownHostException
+import java.util.HashMap
+import java.util.Map
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import com.xtend.coap.layers.Communicator
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.utils.MessageType
+import com.xtend.coap.utils.Option
+
+/**
+ * Class that keeps the observers of a resource.
+ *
+ * Only what a notification needs is kept: the packed address of the peer,
+ * the token, the Accept option, the path observed and the state of the
+ * notifications. An observation is identified by its peer and its path:
+ * a resource with a template segment, e.g. /sensors/{id}/value, is reached
+ * by many paths, and one peer may observe several of them. Those paths are
+ * kept once each, with a number per slot; the path of other resources is
+ * their own and is not kept. Each
+ * observer is a slot in chunks of primitive arrays, so the registry holds no
+ * object per observer, except the address of IPv6 peers, which does not fit
+ * in the packed key; as that key may be shared by other IPv6 peers, their
+ * full addresses are compared when looking them up. The first chunk has 16
+ * slots and each next one twice as many, up to 1024, so a resource with a
+ * few observers stays small. Chunks never move, so the state of a slot is read and
+ * updated without locks; only adding and removing observers are serialized.
+ * A slot gets a new generation when its observer is removed, so that late
+ * events of a removed observer are not taken for events of the next one.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ObserverRegistry {
+
+	val public static NO_ACCEPT = -1
+	val static FIRST_CHUNK_BITS = 4
+	val static CHUNK_BITS = 10
+	val static CHUNK_MASK = 1023
+	val static GROWING_CHUNKS = CHUNK_BITS - FIRST_CHUNK_BITS + 1
+	val static GROWING_SLOTS = 1.operator_doubleLessThan(CHUNK_BITS + 1) - 1.operator_doubleLessThan(FIRST_CHUNK_BITS)
+
+	LocalResource resource
+	ReentrantReadWriteLock lock
+	AtomicReference<Chunk[]> chunks
+	Communicator communicator
+	int size
+	int top
+	int[] free
+	int freeCount
+	SlotIndex peerIndex
+	SlotIndex routeIndex
+	Map<Integer, InetSocketAddress> wideAddresses
+	Map<String, ObservedPath> pathsByName
+	Map<Integer, ObservedPath> pathsById
+	int nextPathId
+
+	/**
+	 * Initializes a new empty ObserverRegistry object.
+	 *
+	 * @param resource The resource observed.
+	 */
+	new (LocalResource resource) {
+		this.resource = resource
+		this.lock = new ReentrantReadWriteLock
+		this.chunks = new AtomicReference<Chunk[]>(newArrayOfSize(0))
+		this.free = newIntArrayOfSize(0)
+		this.peerIndex = new SlotIndex
+		this.routeIndex = new SlotIndex
+		this.wideAddresses = new HashMap<Integer, InetSocketAddress>
+		this.pathsByName = new HashMap<String, ObservedPath>
+		this.pathsById = new HashMap<Integer, ObservedPath>
+		this.nextPathId = 1
+	}
+
+	/**
+	 * Registers the remote endpoint of an Observe request, replacing its
+	 * former registration of the same path, if any.
+	 *
+	 * @param request The GET request with the Observe option.
+	 * @return The slot of the observer.
+	 */
+	def int add(GetRequest request) {
+		var address = request.getPeerAddress
+		var acceptOpt = request.getFirstOption(Option.ACCEPT)
+		var accept = if (acceptOpt != null) acceptOpt.getIntValue else NO_ACCEPT
+		if (address != null && address.getAddress instanceof Inet4Address) {
+			address = null
+		}
+		var path = if (resource.isTemplate) pathOf(request) else null
+		return add(request.peerKey, address, path, request.getToken, request.getTokenLength, accept, request.getCommunicator)
+	}
+
+	/**
+	 * Registers a remote endpoint as an observer, replacing its former
+	 * registration of the same path, if any, e.g. as restored from a journal.
+	 *
+	 * @param peerKey The key of the remote endpoint, as returned by Message.peerKey.
+	 * @param address The address of the remote endpoint if it is not IPv4, or null to unpack it from the key.
+	 * @param path The path observed, or null for the path of the resource.
+	 * @param token The token of the registration.
+	 * @param tokenLength The length of the token.
+	 * @param accept The Accept option of the registration, or NO_ACCEPT.
+	 * @param communicator The communicator the notifications are sent through, or null to keep the current one.
+	 * @return The slot of the observer.
+	 */
+	def int add(long peerKey, InetSocketAddress address, String path, long token, int tokenLength, int accept, Communicator communicator) {
+		lock.writeLock.lock
+		try {
+			if (communicator != null) {
+				this.communicator = communicator
+			}
+			var pathId = internPath(path)
+			var slot = indexOf(peerKey, address, pathId)
+			if (slot < 0) {
+				slot = allocate
+				chunk(slot).pathIds.set(offset(slot), pathId)
+				peerIndex.insert(mix(peerKey), peerKey, slot)
+				routeIndex.insert(mix(peerKey, pathId), peerKey, slot)
+				size++
+			} else {
+				releasePath(pathId)
+			}
+			var chunk = chunk(slot)
+			var i = offset(slot)
+			chunk.peers.set(i, peerKey)
+			chunk.tokens.set(i, token)
+			chunk.tokenLengths.set(i, tokenLength)
+			chunk.accepts.set(i, accept)
+			// the response to the registration counts as a confirmed notification
+			chunk.lastConfirmable.set(i, System.currentTimeMillis)
+			if (address != null) {
+				wideAddresses.put(slot, address)
+			} else {
+				wideAddresses.remove(slot)
+			}
+			var journal = journal
+			if (journal != null) {
+				journal.registered(resource, peerKey, address, pathName(pathId), token, tokenLength, accept)
+			}
+			return slot
+		} finally {
+			lock.writeLock.unlock
+		}
+	}
+
+	/**
+	 * Removes the observer of a remote endpoint on the path of the resource.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @return The exchange key of the last notification sent to the observer, 0 if none, or -1 if there was no such observer.
+	 */
+	def long remove(InetSocketAddress peer) {
+		return remove(peer, null as String)
+	}
+
+	/**
+	 * Removes the observer of a remote endpoint on a path.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @param path The path observed, or null for the path of the resource.
+	 * @return The exchange key of the last notification sent to the observer, 0 if none, or -1 if there was no such observer.
+	 */
+	def long remove(InetSocketAddress peer, String path) {
+		lock.writeLock.lock
+		try {
+			var slot = indexOf(Message.packPeer(peer), peer, findPath(path))
+			if (slot < 0) {
+				return -1
+			}
+			return release(slot)
+		} finally {
+			lock.writeLock.unlock
+		}
+	}
+
+	/**
+	 * Removes the observer of a remote endpoint on the path of the resource
+	 * if it registered with a token.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @param token The token of the registration.
+	 * @return The exchange key of the last notification sent to the observer, 0 if none, or -1 if there was no such observer.
+	 */
+	def long remove(InetSocketAddress peer, long token) {
+		return remove(peer, null, token)
+	}
+
+	/**
+	 * Removes the observer of a remote endpoint on a path if it registered with a token.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @param path The path observed, or null for the path of the resource.
+	 * @param token The token of the registration.
+	 * @return The exchange key of the last notification sent to the observer, 0 if none, or -1 if there was no such observer.
+	 */
+	def long remove(InetSocketAddress peer, String path, long token) {
+		lock.writeLock.lock
+		try {
+			var slot = indexOf(Message.packPeer(peer), peer, findPath(path))
+			if (slot < 0 || getToken(slot) != token) {
+				return -1
+			}
+			return release(slot)
+		} finally {
+			lock.writeLock.unlock
+		}
+	}
+
+	/**
+	 * Removes the observer of a slot, unless the slot was given to another observer meanwhile.
+	 *
+	 * @param slot The slot.
+	 * @param generation The generation of the slot when the observer was in it.
+	 * @return The exchange key of the last notification sent to the observer, 0 if none, or -1 if there was no such observer.
+	 */
+	def long remove(int slot, int generation) {
+		lock.writeLock.lock
+		try {
+			if (slot >= top || !isLive(slot) || getGeneration(slot) != generation) {
+				return -1
+			}
+			return release(slot)
+		} finally {
+			lock.writeLock.unlock
+		}
+	}
+
+	def boolean contains(InetSocketAddress peer) {
+		return slotOf(peer) >= 0
+	}
+
+	def boolean contains(InetSocketAddress peer, String path) {
+		return slotOf(peer, path) >= 0
+	}
+
+	/**
+	 * Returns the slot of the observer of a remote endpoint on the path of the resource.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @return The slot, or -1 if the remote endpoint does not observe the resource.
+	 */
+	def int slotOf(InetSocketAddress peer) {
+		return slotOf(peer, null as String)
+	}
+
+	/**
+	 * Returns the slot of the observer of a remote endpoint on a path.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @param path The path observed, or null for the path of the resource.
+	 * @return The slot, or -1 if the remote endpoint does not observe the path.
+	 */
+	def int slotOf(InetSocketAddress peer, String path) {
+		lock.readLock.lock
+		try {
+			return indexOf(Message.packPeer(peer), peer, findPath(path))
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	/**
+	 * Returns the slot of the observer a notification was sent to, from the
+	 * reply of its remote endpoint. Only the observations of that endpoint
+	 * are looked at.
+	 *
+	 * @param peer The address of the remote endpoint.
+	 * @param exchangeKey The exchange key of the notification, as returned by Message.exchangeKey.
+	 * @return The slot, or -1 if the last notification of no observer has that key.
+	 */
+	def int slotOfExchange(InetSocketAddress peer, long exchangeKey) {
+		var peerKey = Message.packPeer(peer)
+		lock.readLock.lock
+		try {
+			var keys = peerIndex.keys
+			var slots = peerIndex.slots
+			var mask = slots.length - 1
+			var index = mix(peerKey).bitwiseAnd(mask)
+			while (slots.get(index) != 0) {
+				var slot = slots.get(index) - 1
+				if (keys.get(index) == peerKey && getExchangeKey(slot) == exchangeKey && Message.samePeer(wideAddresses.get(slot), peer)) {
+					return slot
+				}
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			return -1
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	/**
+	 * Returns the slots of all the observers.
+	 *
+	 * @return The slots, in the order they are kept.
+	 */
+	def int[] slots() {
+		lock.readLock.lock
+		try {
+			var slots = newIntArrayOfSize(size)
+			var n = 0
+			for (var slot = 0; slot < top && n < size; slot++) {
+				if (isLive(slot)) {
+					slots.set(n, slot)
+					n++
+				}
+			}
+			return slots
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	def int size() {
+		lock.readLock.lock
+		try {
+			return size
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	def getResource() {
+		return resource
+	}
+
+	/**
+	 * Returns the communicator the observers registered through.
+	 *
+	 * @return The communicator of the last registration.
+	 */
+	def Communicator getCommunicator() {
+		lock.readLock.lock
+		try {
+			return communicator
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	/**
+	 * Builds a GET request as the one that registered an observer, e.g. to
+	 * run the GET handler for it. It has the Uri-Path options of the path
+	 * observed, so that the values of template segments can be read.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The request.
+	 */
+	def GetRequest toRequest(int slot) {
+		var request = new GetRequest
+		for (segment : getPath(slot).split("/")) {
+			if (!segment.isEmpty) {
+				request.addOption(new Option(segment, Option.URI_PATH))
+			}
+		}
+		request.setPeerAddress(getAddress(slot))
+		request.setType(MessageType.NON_CONFIRMABLE)
+		request.setToken(getToken(slot), getTokenLength(slot))
+		request.setOption(new Option(0, Option.OBSERVE))
+		if (getAccept(slot) != NO_ACCEPT) {
+			request.setOption(new Option(getAccept(slot), Option.ACCEPT))
+		}
+		request.setCommunicator(getCommunicator)
+		return request
+	}
+
+	/**
+	 * Writes all the observers into a journal, as a snapshot.
+	 *
+	 * @param journal The journal.
+	 */
+	def void journal(ObserveJournal journal) {
+		lock.readLock.lock
+		try {
+			for (var slot = 0; slot < top; slot++) {
+				if (isLive(slot)) {
+					var chunk = chunk(slot)
+					var i = offset(slot)
+					journal.registered(resource, chunk.peers.get(i), wideAddresses.get(slot), pathName(chunk.pathIds.get(i)), chunk.tokens.get(i), chunk.tokenLengths.get(i), chunk.accepts.get(i))
+				}
+			}
+		} finally {
+			lock.readLock.unlock
+		}
+	}
+
+	def long getPeerKey(int slot) {
+		return chunk(slot).peers.get(offset(slot))
+	}
+
+	/**
+	 * Returns the address of an observer, unpacked from its key for IPv4 peers.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The address.
+	 */
+	def InetSocketAddress getAddress(int slot) {
+		var peerKey = getPeerKey(slot)
+		lock.readLock.lock
+		try {
+			var wide = wideAddresses.get(slot)
+			if (wide != null) {
+				return wide
+			}
+		} finally {
+			lock.readLock.unlock
+		}
+		var host = peerKey.operator_tripleGreaterThan(16)
+		var bytes = newByteArrayOfSize(4)
+		for (var i = 0; i < 4; i++) {
+			bytes.set(i, host.operator_tripleGreaterThan(24 - i * 8).bitwiseAnd(0xFF) as byte)
+		}
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(bytes), peerKey.bitwiseAnd(0xFFFF) as int)
+		} catch (UnknownHostException e) {
+			return null
+		}
+	}
+
+	def String endpointID(int slot) {
+		var address = getAddress(slot)
+		if (address == null) {
+			return "NULL"
+		}
+		return address.getAddress.getHostAddress + ":" + address.getPort
+	}
+
+	def long getToken(int slot) {
+		return chunk(slot).tokens.get(offset(slot))
+	}
+
+	def int getTokenLength(int slot) {
+		return chunk(slot).tokenLengths.get(offset(slot))
+	}
+
+	def int getAccept(int slot) {
+		return chunk(slot).accepts.get(offset(slot))
+	}
+
+	/**
+	 * Returns the number of the path observed by an observer. Observers with
+	 * the same number observe the same path; 0 is the path of the resource.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The number of the path.
+	 */
+	def int getPathId(int slot) {
+		return chunk(slot).pathIds.get(offset(slot))
+	}
+
+	/**
+	 * Returns the path observed by an observer.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The path, e.g. /sensors/42/value.
+	 */
+	def String getPath(int slot) {
+		var pathId = getPathId(slot)
+		if (pathId != 0) {
+			lock.readLock.lock
+			try {
+				var path = pathsById.get(pathId)
+				if (path != null) {
+					return path.name
+				}
+			} finally {
+				lock.readLock.unlock
+			}
+		}
+		return resource.getResourceIdentifier(true)
+	}
+
+	/**
+	 * Returns the path of a request, from its Uri-Path options.
+	 *
+	 * @param request The request.
+	 * @return The path, e.g. /sensors/42/value.
+	 */
+	def static String pathOf(Message request) {
+		var builder = new StringBuilder
+		var options = request.getOptionIndex
+		var first = options.indexOf(Option.URI_PATH)
+		if (first >= 0) {
+			for (var i = first; i < first + options.count(Option.URI_PATH); i++) {
+				if (options.getLength(i) > 0) {
+					builder.append("/").append(options.getOption(i).getStringValue)
+				}
+			}
+		}
+		return builder.toString
+	}
+
+	def int getGeneration(int slot) {
+		return chunk(slot).generations.get(offset(slot))
+	}
+
+	/**
+	 * Queues a notification for an observer, replacing the one queued before, if any.
+	 *
+	 * @param slot The slot of the observer.
+	 * @param notification The template of the notification.
+	 */
+	def void offer(int slot, Response notification) {
+		chunk(slot).pending.set(offset(slot), notification)
+	}
+
+	/**
+	 * Takes the notification queued for an observer.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The template of the notification, or null if there is none.
+	 */
+	def Response takePending(int slot) {
+		return chunk(slot).pending.getAndSet(offset(slot), null)
+	}
+
+	/**
+	 * Queues again a notification taken, unless a newer one was queued meanwhile.
+	 *
+	 * @param slot The slot of the observer.
+	 * @param notification The template of the notification.
+	 */
+	def void restore(int slot, Response notification) {
+		chunk(slot).pending.compareAndSet(offset(slot), null, notification)
+	}
+
+	def boolean hasPending(int slot) {
+		return chunk(slot).pending.get(offset(slot)) != null
+	}
+
+	/**
+	 * Gets the right to send the next notification to an observer. Only one
+	 * thread holds it at a time, for as long as a notification is in flight
+	 * or waiting for the minimum interval.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return True if the right was got.
+	 */
+	def boolean acquire(int slot) {
+		return chunk(slot).busy.compareAndSet(offset(slot), 0, 1)
+	}
+
+	def void release(int slot, int generation) {
+		var chunk = chunk(slot)
+		var i = offset(slot)
+		if (chunk.generations.get(i) == generation) {
+			chunk.busy.set(i, 0)
+		}
+	}
+
+	def long getLastSent(int slot) {
+		return chunk(slot).lastSent.get(offset(slot))
+	}
+
+	/**
+	 * Records a notification sent to an observer.
+	 *
+	 * @param slot The slot of the observer.
+	 * @param time The time it is sent in milliseconds.
+	 * @param sequence Its Observe option value.
+	 */
+	def void sent(int slot, long time, int sequence) {
+		var chunk = chunk(slot)
+		var i = offset(slot)
+		chunk.lastSent.set(i, time)
+		chunk.sequences.set(i, sequence)
+	}
+
+	/**
+	 * Returns the Observe option value of the last notification sent to an observer.
+	 *
+	 * @param slot The slot of the observer.
+	 * @return The sequence number, or 0 if none was sent.
+	 */
+	def int getSequence(int slot) {
+		return chunk(slot).sequences.get(offset(slot))
+	}
+
+	/**
+	 * Checks whether the next notification to an observer must be Confirmable,
+	 * and if so records that it is sent now.
+	 *
+	 * @param slot The slot of the observer.
+	 * @param now The current time in milliseconds.
+	 * @param interval The maximum time between two Confirmable notifications in milliseconds.
+	 * @return True if the notification must be Confirmable.
+	 */
+	def boolean confirmableDue(int slot, long now, long interval) {
+		var chunk = chunk(slot)
+		var i = offset(slot)
+		var last = chunk.lastConfirmable.get(i)
+		return now - last >= interval && chunk.lastConfirmable.compareAndSet(i, last, now)
+	}
+
+	/**
+	 * Records the exchange of the last notification sent to an observer.
+	 *
+	 * @param slot The slot of the observer.
+	 * @param key The exchange key of the notification, as returned by Message.exchangeKey.
+	 * @return The exchange key of the previous notification, or 0 if there was none.
+	 */
+	def long swapExchangeKey(int slot, long key) {
+		return chunk(slot).exchangeKeys.getAndSet(offset(slot), key)
+	}
+
+	def long getExchangeKey(int slot) {
+		return chunk(slot).exchangeKeys.get(offset(slot))
+	}
+
+	def private Chunk chunk(int slot) {
+		return chunks.get.get(chunkIndex(slot))
+	}
+
+	/**
+	 * Returns the chunk of a slot. Chunk k holds 16 << k slots until they
+	 * reach 1024, and 1024 from then on.
+	 */
+	def private static int chunkIndex(int slot) {
+		if (slot < GROWING_SLOTS) {
+			return 31 - Integer.numberOfLeadingZeros(slot.operator_doubleGreaterThan(FIRST_CHUNK_BITS) + 1)
+		}
+		return GROWING_CHUNKS + (slot - GROWING_SLOTS).operator_doubleGreaterThan(CHUNK_BITS)
+	}
+
+	/**
+	 * Returns the index of a slot within its chunk.
+	 */
+	def private static int offset(int slot) {
+		if (slot < GROWING_SLOTS) {
+			return slot + 1.operator_doubleLessThan(FIRST_CHUNK_BITS) - 1.operator_doubleLessThan(FIRST_CHUNK_BITS + chunkIndex(slot))
+		}
+		return (slot - GROWING_SLOTS).bitwiseAnd(CHUNK_MASK)
+	}
+
+	def private static int chunkSize(int index) {
+		return 1.operator_doubleLessThan(Math.min(FIRST_CHUNK_BITS + index, CHUNK_BITS))
+	}
+
+	/**
+	 * Returns the journal of the notifier of the resource, if any.
+	 */
+	def private ObserveJournal journal() {
+		var notifier = resource.getNotifier
+		if (notifier == null) {
+			return null
+		}
+		return notifier.getJournal
+	}
+
+	def private boolean isLive(int slot) {
+		return chunk(slot).tokenLengths.get(offset(slot)) >= 0
+	}
+
+	def private int allocate() {
+		if (freeCount > 0) {
+			freeCount--
+			return free.get(freeCount)
+		}
+		var slot = top
+		var directory = chunks.get
+		if (chunkIndex(slot) >= directory.length) {
+			var Chunk[] grown = newArrayOfSize(directory.length + 1)
+			System.arraycopy(directory, 0, grown, 0, directory.length)
+			grown.set(directory.length, new Chunk(chunkSize(directory.length)))
+			chunks.set(grown)
+		}
+		top++
+		return slot
+	}
+
+	/**
+	 * Frees a slot. The caller holds the write lock.
+	 */
+	def private long release(int slot) {
+		var chunk = chunk(slot)
+		var i = offset(slot)
+		var peerKey = chunk.peers.get(i)
+		var pathId = chunk.pathIds.get(i)
+		peerIndex.delete(mix(peerKey), peerKey, slot)
+		routeIndex.delete(mix(peerKey, pathId), peerKey, slot)
+		var journal = journal
+		if (journal != null) {
+			journal.removed(resource, peerKey, wideAddresses.get(slot), pathName(pathId))
+		}
+		releasePath(pathId)
+		chunk.pathIds.set(i, 0)
+		chunk.generations.incrementAndGet(i)
+		chunk.tokenLengths.set(i, -1)
+		chunk.pending.set(i, null)
+		chunk.busy.set(i, 0)
+		chunk.lastSent.set(i, 0)
+		chunk.sequences.set(i, 0)
+		wideAddresses.remove(slot)
+		if (freeCount == free.length) {
+			var grown = newIntArrayOfSize(Math.max(8, free.length * 2))
+			System.arraycopy(free, 0, grown, 0, freeCount)
+			free = grown
+		}
+		free.set(freeCount, slot)
+		freeCount++
+		size--
+		return chunk.exchangeKeys.getAndSet(i, 0)
+	}
+
+	/**
+	 * Returns the slot of the observer of a remote endpoint on a path. IPv6
+	 * peers sharing a key are told apart by their address.
+	 */
+	def private int indexOf(long peerKey, InetSocketAddress peer, int pathId) {
+		if (pathId < 0) {
+			return -1
+		}
+		var keys = routeIndex.keys
+		var slots = routeIndex.slots
+		var mask = slots.length - 1
+		var index = mix(peerKey, pathId).bitwiseAnd(mask)
+		while (slots.get(index) != 0) {
+			var slot = slots.get(index) - 1
+			if (keys.get(index) == peerKey && getPathId(slot) == pathId && Message.samePeer(wideAddresses.get(slot), peer)) {
+				return slot
+			}
+			index = (index + 1).bitwiseAnd(mask)
+		}
+		return -1
+	}
+
+	/**
+	 * Returns the number of a path, or -1 if no observer observes it. The caller holds a lock.
+	 */
+	def private int findPath(String path) {
+		if (path == null || !resource.isTemplate) {
+			return 0
+		}
+		var observed = pathsByName.get(path)
+		return if (observed != null) observed.id else -1
+	}
+
+	/**
+	 * Returns the number of a path, taking a reference to it. The caller holds the write lock.
+	 */
+	def private int internPath(String path) {
+		if (path == null || !resource.isTemplate) {
+			return 0
+		}
+		var observed = pathsByName.get(path)
+		if (observed == null) {
+			observed = new ObservedPath
+			observed.name = path
+			observed.id = nextPathId++
+			pathsByName.put(path, observed)
+			pathsById.put(observed.id, observed)
+		}
+		observed.references++
+		return observed.id
+	}
+
+	/**
+	 * Drops a reference to a path, forgetting it with the last one. The caller holds the write lock.
+	 */
+	def private void releasePath(int pathId) {
+		if (pathId != 0) {
+			var observed = pathsById.get(pathId)
+			if (observed != null) {
+				observed.references--
+				if (observed.references == 0) {
+					pathsById.remove(pathId)
+					pathsByName.remove(observed.name)
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the path of a number as journaled, or null for the path of the resource.
+	 */
+	def private String pathName(int pathId) {
+		if (pathId == 0) {
+			return null
+		}
+		var observed = pathsById.get(pathId)
+		return if (observed != null) observed.name else null
+	}
+
+	def private static int mix(long peerKey, int pathId) {
+		return mix(peerKey + pathId * 0xc2b2ae3d27d4eb4f#L)
+	}
+
+	def private static int mix(long key) {
+		var h = key * 0x9e3779b97f4a7c15#L
+		return h.bitwiseXor(h.operator_tripleGreaterThan(32)) as int
+	}
+
+	/**
+	 * Path observed through a template segment, with the number of its observers.
+	 */
+	private static class ObservedPath {
+		String name
+		int id
+		int references
+	}
+
+	/**
+	 * Index from a key to slots, with linear probing. Slots are stored plus
+	 * one, so 0 marks an empty entry; the hash of each entry is kept to move
+	 * the entries back on deletion. Several entries may have the same key.
+	 * Only used while holding a lock of the registry.
+	 */
+	private static class SlotIndex {
+		long[] keys = newLongArrayOfSize(8)
+		int[] hashes = newIntArrayOfSize(8)
+		int[] slots = newIntArrayOfSize(8)
+		int count
+
+		def void insert(int hash, long key, int slot) {
+			if ((count + 1) * 2 > slots.length) {
+				var oldKeys = keys
+				var oldHashes = hashes
+				var oldSlots = slots
+				keys = newLongArrayOfSize(oldSlots.length * 2)
+				hashes = newIntArrayOfSize(oldSlots.length * 2)
+				slots = newIntArrayOfSize(oldSlots.length * 2)
+				count = 0
+				for (var i = 0; i < oldSlots.length; i++) {
+					if (oldSlots.get(i) != 0) {
+						insert(oldHashes.get(i), oldKeys.get(i), oldSlots.get(i) - 1)
+					}
+				}
+			}
+			var mask = slots.length - 1
+			var index = hash.bitwiseAnd(mask)
+			while (slots.get(index) != 0) {
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			keys.set(index, key)
+			hashes.set(index, hash)
+			slots.set(index, slot + 1)
+			count++
+		}
+
+		def void delete(int hash, long key, int slot) {
+			var mask = slots.length - 1
+			var index = hash.bitwiseAnd(mask)
+			while (slots.get(index) != 0 && (slots.get(index) != slot + 1 || keys.get(index) != key)) {
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			if (slots.get(index) == 0) {
+				return
+			}
+			var free = index
+			index = (index + 1).bitwiseAnd(mask)
+			while (slots.get(index) != 0) {
+				var home = hashes.get(index).bitwiseAnd(mask)
+				// moves back the entries whose probe sequence crosses the free entry
+				if ((index - home).bitwiseAnd(mask) >= (index - free).bitwiseAnd(mask)) {
+					keys.set(free, keys.get(index))
+					hashes.set(free, hashes.get(index))
+					slots.set(free, slots.get(index))
+					free = index
+				}
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			slots.set(free, 0)
+			count--
+		}
+	}
+
+	/**
+	 * Block of slots. The arrays written only while holding the write
+	 * lock are atomic too, so that the notifier sees them without locking.
+	 */
+	private static class Chunk {
+		AtomicLongArray peers
+		AtomicLongArray tokens
+		AtomicIntegerArray tokenLengths
+		AtomicIntegerArray accepts
+		AtomicIntegerArray pathIds
+		AtomicIntegerArray generations
+		AtomicIntegerArray busy
+		AtomicIntegerArray sequences
+		AtomicLongArray lastSent
+		AtomicLongArray lastConfirmable
+		AtomicLongArray exchangeKeys
+		AtomicReferenceArray<Response> pending
+
+		new (int size) {
+			this.peers = new AtomicLongArray(size)
+			this.tokens = new AtomicLongArray(size)
+			this.tokenLengths = new AtomicIntegerArray(size)
+			for (var i = 0; i < size; i++) {
+				tokenLengths.set(i, -1)
+			}
+			this.accepts = new AtomicIntegerArray(size)
+			this.pathIds = new AtomicIntegerArray(size)
+			this.generations = new AtomicIntegerArray(size)
+			this.busy = new AtomicIntegerArray(size)
+			this.sequences = new AtomicIntegerArray(size)
+			this.lastSent = new AtomicLongArray(size)
+			this.lastConfirmable = new AtomicLongArray(size)
+			this.exchangeKeys = new AtomicLongArray(size)
+			this.pending = new AtomicReferenceArray<Response>(size)
+		}
+	}
+}
\ No newline at end of file
@@ -1,11 +1,18 @@
 package com.xtend.coap.resource
 
 import java.io.PrintStream
-import java.util.Map
+import java.net.InetSocketAddress
 import java.util.StringTokenizer
-import java.util.TreeMap
 import java.util.ArrayList
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantLock
 
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.Request
 import com.xtend.coap.message.request.RequestHandler
 import com.xtend.coap.message.request.PutRequest
 import com.xtend.coap.message.request.GetRequest
@@ -14,11 +21,17 @@ import com.xtend.coap.message.request.DeleteRequest
 import com.xtend.coap.utils.ContentFormat
 import com.xtend.coap.message.response.Response
 import com.xtend.coap.utils.Code
-import java.util.HashMap
+import com.xtend.coap.utils.Option
  
 /**
  * Class that represents a Resource. 
  *
+ * The tree of resources can be read and changed by many threads at once. The
+ * subresources are kept in a concurrent skip list, so lookups never block
+ * behind a resource being created or removed. Each resource has a lock of its
+ * own for the changes to its subresources, so resources are created under
+ * different parents at once.
+ *
  * @author César Estebas Gómez.
  * @version Xtend-CoAP_v1.0.
  */
@@ -26,8 +39,10 @@ class Resource implements RequestHandler {
 
 
 	protected Resource parent
-	protected Map<String, Resource> subResources
-	int totalSubResourceCount
+	protected ConcurrentMap<String, Resource> subResources
+	AtomicInteger totalSubResourceCount
+	AtomicLong treeVersion
+	ReentrantLock structureLock
 	String resourceIdentifier
 	String resourceName
 	String interfaceDescription
@@ -35,6 +50,8 @@ class Resource implements RequestHandler {
 	int maximumSizeEstimate
 	boolean observable
 	boolean hidden
+	ResourceRouter router
+	ObserveNotifier notifier
 	
 
 	/**
@@ -67,6 +84,10 @@ class Resource implements RequestHandler {
 		this.maximumSizeEstimate = -1
 		this.observable = false
 		this.hidden = hidden
+		this.subResources = new ConcurrentSkipListMap<String, Resource>
+		this.totalSubResourceCount = new AtomicInteger
+		this.treeVersion = new AtomicLong
+		this.structureLock = new ReentrantLock
 	}
 	
 	/**
@@ -102,6 +123,7 @@ class Resource implements RequestHandler {
 	 */
 	def void setResourceIdentifier(String resourceIdentifier) {
 		this.resourceIdentifier = resourceIdentifier
+		linkFormatChanged
 	}
 
 	/**
@@ -111,6 +133,7 @@ class Resource implements RequestHandler {
 	 */
 	def void setResourceName(String resourceName) {
 		this.resourceName = resourceName
+		linkFormatChanged
 	}
 
 	/**
@@ -120,6 +143,7 @@ class Resource implements RequestHandler {
 	 */
 	def void setInterfaceDescription(String interfaceDescription) {
 		this.interfaceDescription = interfaceDescription
+		linkFormatChanged
 	}
 
 	/**
@@ -129,6 +153,7 @@ class Resource implements RequestHandler {
 	 */
 	def void setContentTypeCode(int contentTypeCode) {
 		this.contentTypeCode = contentTypeCode
+		linkFormatChanged
 	}
 
 	/**
@@ -138,6 +163,7 @@ class Resource implements RequestHandler {
 	 */
 	def void setMaximumSizeEstimate(int maximumSizeEstimate) {
 		this.maximumSizeEstimate = maximumSizeEstimate
+		linkFormatChanged
 	}
 
 	/**
@@ -148,6 +174,29 @@ class Resource implements RequestHandler {
 	 */
 	def void setObservable(boolean observable) {
 		this.observable = observable
+		linkFormatChanged
+	}
+	
+	/**
+	 * Returns a number that changes whenever a resource is added to or
+	 * removed from the tree below this resource, or its link format changes.
+	 * 
+	 * @return The version of the tree.
+	 */
+	def long getTreeVersion() {
+		return treeVersion.get
+	}
+	
+	/**
+	 * Changes the version of this resource and of its ancestors, so that the
+	 * link formats cached for them are built again.
+	 */
+	def protected void linkFormatChanged() {
+		var r = this
+		while (r != null) {
+			r.treeVersion.incrementAndGet
+			r = r.parent
+		}
 	}
 	
 	/**
@@ -384,11 +433,11 @@ class Resource implements RequestHandler {
 		if (subResources != null){
 			res = subResources.size
 		}
-		return 0
+		return res
 	}
 	
 	def int totalSubResourceCount() {
-		return totalSubResourceCount
+		return totalSubResourceCount.get
 	}
 	
 	/**
@@ -419,10 +468,14 @@ class Resource implements RequestHandler {
 		
 		if (resource == null && create) {
 			try {
-				resource = getClass.newInstance
+				var created = getClass.newInstance
 				
-				resource.setResourceIdentifier(head)
-				addSubResource(resource)
+				created.setResourceIdentifier(head)
+				// another thread may have created it meanwhile
+				resource = addSubResourceIfAbsent(created)
+				if (resource == null) {
+					resource = created
+				}
 				
 			} catch (InstantiationException e) {
 				e.printStackTrace
@@ -491,33 +544,203 @@ class Resource implements RequestHandler {
 	
 	def void addSubResource(Resource resource) {
 		if (resource != null) {
-			if (subResources == null) {
-				subResources = new TreeMap<String, Resource>
+			var lock = structureLock
+			lock.lock
+			try {
+				var replaced = subResources.put(resource.resourceIdentifier, resource)
+				if (replaced != null && replaced !== resource) {
+					unlinkSubResource(replaced)
+				}
+				if (replaced !== resource) {
+					linkSubResource(resource)
+				}
+			} finally {
+				lock.unlock
 			}
-			subResources.put(resource.resourceIdentifier, resource)
-			
-			resource.parent = this
-			
-			var p = resource.parent
-			while (p != null) {
-				p.totalSubResourceCount++
-				p = p.parent
+		}
+	}
+	
+	/**
+	 * Adds a subresource unless there is already one with the same identifier.
+	 * 
+	 * @param resource The subresource.
+	 * @return The subresource already there, or null if the resource was added.
+	 */
+	def Resource addSubResourceIfAbsent(Resource resource) {
+		var lock = structureLock
+		lock.lock
+		try {
+			var existing = subResources.putIfAbsent(resource.resourceIdentifier, resource)
+			if (existing == null) {
+				linkSubResource(resource)
 			}
+			return existing
+		} finally {
+			lock.unlock
 		}
 	}
 	
 	def void removeSubResource(Resource resource) {
 		if (resource != null) {
-			subResources.remove(resource.resourceIdentifier)
+			var lock = structureLock
+			lock.lock
+			try {
+				if (subResources.remove(resource.resourceIdentifier, resource)) {
+					unlinkSubResource(resource)
+				}
+			} finally {
+				lock.unlock
+			}
+		}
+	}
+	
+	/**
+	 * Links a subresource added under the lock of this resource, and routes
+	 * it. If an ancestor was removed meanwhile, and may have been unrouted
+	 * before the subresource was there, the route is removed again.
+	 */
+	def private void linkSubResource(Resource resource) {
+		resource.parent = this
 		
+		var p = resource.parent
+		var root = this
+		while (p != null) {
+			p.totalSubResourceCount.incrementAndGet
+			p.treeVersion.incrementAndGet
+			root = p
+			p = p.parent
+		}
+		if (root.router != null) {
+			var path = resource.getResourceIdentifier(true)
+			root.router.addTree(path, resource)
+			if (resource.root !== root) {
+				root.router.removeTree(path, resource)
+			}
+		}
+	}
+	
+	/**
+	 * Unlinks a subresource removed under the lock of this resource, and
+	 * removes the routes that still lead to it and to its subresources.
+	 */
+	def private void unlinkSubResource(Resource resource) {
+		if (resource != null) {
+			var path = resource.getResourceIdentifier(true)
 			var p = resource.parent
+			var root = this
 			while (p != null) {
-				p.totalSubResourceCount--
+				p.totalSubResourceCount.decrementAndGet
+				p.treeVersion.incrementAndGet
+				root = p
 				p = p.parent
 			}
 			
 			resource.parent = null
+			if (root.router != null) {
+				root.router.removeTree(path, resource)
+			}
+		}
+	}
+	
+	def private Resource getRoot() {
+		var r = this
+		while (r.parent != null) {
+			r = r.parent
+		}
+		return r
+	}
+	
+	/**
+	 * Makes this resource the root of a router: the router gets a route to
+	 * every resource in the tree, and is kept up to date as resources are
+	 * added and removed.
+	 * 
+	 * @param router The router, or null to stop updating it.
+	 */
+	def void setRouter(ResourceRouter router) {
+		this.router = router
+		if (router != null) {
+			router.addTree(this)
+		}
+	}
+	
+	def getRouter() {
+		return router
+	}
+	
+	/**
+	 * Sets the notifier that sends the notifications of the observed
+	 * resources of the tree below this resource.
+	 * 
+	 * @param notifier The notifier, or null to use the one of the parent.
+	 */
+	def void setNotifier(ObserveNotifier notifier) {
+		this.notifier = notifier
+	}
+	
+	/**
+	 * Returns the notifier of this resource, or else the one of its nearest ancestor that has one.
+	 * 
+	 * @return The notifier, or null if there is none.
+	 */
+	def ObserveNotifier getNotifier() {
+		var r = this
+		while (r != null) {
+			if (r.notifier != null) {
+				return r.notifier
+			}
+			r = r.parent
+		}
+		return null
+	}
+	
+	/**
+	 * Checks whether this resource is reached by several paths, i.e. whether
+	 * its identifier or the one of an ancestor is a template segment.
+	 * 
+	 * @return True if the path of this resource has a template segment.
+	 */
+	def boolean isTemplate() {
+		var r = this
+		while (r != null) {
+			if (r.resourceIdentifier != null && r.resourceIdentifier.startsWith("{") && r.resourceIdentifier.endsWith("}")) {
+				return true
+			}
+			r = r.parent
+		}
+		return false
+	}
+	
+	/**
+	 * Returns the value of a template segment of the path of this resource,
+	 * e.g. the id of /sensors/{id}/value, in the path of a request routed to it.
+	 * 
+	 * @param request The request.
+	 * @param name The name of the template segment, without braces.
+	 * @return The value of the segment in the request, or null if there is no such segment.
+	 */
+	def String getPathParameter(Message request, String name) {
+		var depth = 0
+		var r = this
+		while (r.parent != null) {
+			depth++
+			r = r.parent
+		}
+		var template = "{" + name + "}"
+		r = this
+		while (r.parent != null) {
+			depth--
+			if (template.equals(r.resourceIdentifier)) {
+				var options = request.getOptionIndex
+				var first = options.indexOf(Option.URI_PATH)
+				if (first < 0 || depth >= options.count(Option.URI_PATH)) {
+					return null
+				}
+				return options.getOption(first + depth).getStringValue
+			}
+			r = r.parent
 		}
+		return null
 	}
 	
 	def void remove() {
@@ -527,7 +750,10 @@ class Resource implements RequestHandler {
 	}
 	
 	def void removeSubResource(String resourceIdentifier) {
-		removeSubResource(subResource(resourceIdentifier))
+		var resource = subResource(resourceIdentifier)
+		if (resource != null) {
+			resource.remove
+		}
 	}
 	
 	def static Resource newRoot(String linkFormat) {
@@ -569,21 +795,27 @@ class Resource implements RequestHandler {
  */
 class LocalResource extends Resource {
 
-	Map<String, GetRequest> observeRequests
+	ObserverRegistry observers
+	AtomicInteger observeSequence
+	long minNotificationInterval
+	long maxNotificationInterval
 	
 	new (String resourceIdentifier, boolean hidden) {
 		super(resourceIdentifier, hidden)
+		this.observers = new ObserverRegistry(this)
+		this.observeSequence = new AtomicInteger
 	}
 	new (String resourceIdentifier) {
-		super(resourceIdentifier, false)
+		this(resourceIdentifier, false)
 	}
 
 	def void addObserveRequest(GetRequest request) {
 		if (request != null) {
-			if (observeRequests == null) {
-				observeRequests = new HashMap<String, GetRequest>
+			observers.add(request)
+			var notifier = getNotifier
+			if (notifier != null) {
+				notifier.observerAdded(this)
 			}
-			observeRequests.put(request.endpointID, request)
 			System.out.println("Observation relationship between " 
 				+ request.endpointID + " and " + getResourceIdentifier 
 				+ " established."
@@ -591,32 +823,182 @@ class LocalResource extends Resource {
 		}
 	}
 	
-	def void removeObserveRequest(String endpointID) {
-		
-		if (observeRequests != null) {
-			if (observeRequests.remove(endpointID) != null) {
-				System.out.println("Observation relationship between " 
-					+ endpointID + " and " + getResourceIdentifier 
-					+ " terminated."
-				)
-			}
+	/**
+	 * Removes the observe request of a remote endpoint
+	 * 
+	 * @param peer The address of the remote endpoint
+	 */
+	def void removeObserveRequest(InetSocketAddress peer) {
+		removeObserveRequest(peer, null as String)
+	}
+	
+	/**
+	 * Removes the observe request of a remote endpoint on a path
+	 * 
+	 * @param peer The address of the remote endpoint
+	 * @param path The path observed, or null for the path of this resource
+	 */
+	def void removeObserveRequest(InetSocketAddress peer, String path) {
+		var slot = observers.slotOf(peer, path)
+		if (slot >= 0) {
+			var endpointID = observers.endpointID(slot)
+			terminated(endpointID, observers.remove(peer, path))
 		}
 	}
+	
+	/**
+	 * Removes the observe request of a remote endpoint, if it was registered with a token
+	 * 
+	 * @param peer The address of the remote endpoint
+	 * @param token The token of the observe request
+	 */
+	def void removeObserveRequest(InetSocketAddress peer, long token) {
+		removeObserveRequest(peer, null, token)
+	}
+	
+	/**
+	 * Removes the observe request of a remote endpoint on a path, if it was registered with a token
+	 * 
+	 * @param peer The address of the remote endpoint
+	 * @param path The path observed, or null for the path of this resource
+	 * @param token The token of the observe request
+	 */
+	def void removeObserveRequest(InetSocketAddress peer, String path, long token) {
+		var slot = observers.slotOf(peer, path)
+		if (slot >= 0) {
+			var endpointID = observers.endpointID(slot)
+			terminated(endpointID, observers.remove(peer, path, token))
+		}
+	}
+	
+	/**
+	 * Removes an observer, unless its slot has been given to another observer.
+	 * 
+	 * @param slot The slot of the observer in the registry.
+	 * @param generation The generation of the slot when the observer was in it.
+	 * @return True if the observer was removed.
+	 */
+	def boolean removeObserver(int slot, int generation) {
+		var endpointID = observers.endpointID(slot)
+		var exchangeKey = observers.remove(slot, generation)
+		terminated(endpointID, exchangeKey)
+		return exchangeKey >= 0
+	}
 
-	def isObserved(String endpointID) {
-		return observeRequests != null && observeRequests.containsKey(endpointID)
+	def isObserved(InetSocketAddress peer) {
+		return observers.contains(peer)
+	}
+	
+	def isObserved(InetSocketAddress peer, String path) {
+		return observers.contains(peer, path)
+	}
+	
+	def getObserverRegistry() {
+		return observers
+	}
+	
+	def int observerCount() {
+		return observers.size
+	}
+	
+	/**
+	 * Sets the minimum time between two notifications to an observer, as the
+	 * pmin attribute. Changes within the interval are coalesced, and only the
+	 * latest state is sent when it ends.
+	 * 
+	 * @param minNotificationInterval The interval in milliseconds, 0 for none.
+	 */
+	def void setMinNotificationInterval(long minNotificationInterval) {
+		this.minNotificationInterval = minNotificationInterval
+	}
+	
+	def getMinNotificationInterval() {
+		return minNotificationInterval
+	}
+	
+	/**
+	 * Sets the maximum time without notifications to the observers, as the
+	 * pmax attribute. When it passes, the current state is sent again.
+	 * 
+	 * @param maxNotificationInterval The interval in milliseconds, 0 for none.
+	 */
+	def void setMaxNotificationInterval(long maxNotificationInterval) {
+		this.maxNotificationInterval = maxNotificationInterval
+	}
+	
+	def getMaxNotificationInterval() {
+		return maxNotificationInterval
+	}
+	
+	/**
+	 * Returns the Observe option value of a new notification. Values increase
+	 * with every notification and never fall behind the seconds counter used
+	 * for the response to the registration.
+	 * 
+	 * @return The sequence number, on 24 bits.
+	 */
+	def int nextObserveSequence() {
+		var current = observeSequence.get
+		var next = Math.max(current, Request.observeClock) + 1
+		while (!observeSequence.compareAndSet(current, next)) {
+			current = observeSequence.get
+			next = Math.max(current, Request.observeClock) + 1
+		}
+		return next.bitwiseAnd(0xFFFFFF)
+	}
+	
+	def int getObserveSequence() {
+		return observeSequence.get
+	}
+	
+	/**
+	 * Raises the sequence number to the one restored from a journal, so that
+	 * the clients take the next notifications for newer ones.
+	 * 
+	 * @param sequence The sequence number restored.
+	 */
+	def void restoreObserveSequence(int sequence) {
+		var current = observeSequence.get
+		while (current < sequence && !observeSequence.compareAndSet(current, sequence)) {
+			current = observeSequence.get
+		}
 	}
 	
 	def protected void processObserveRequests() {
-		if (observeRequests != null) {
-			for (GetRequest request : observeRequests.values) {
-				performGet(request)
-			}
+		for (slot : observers.slots) {
+			performGet(observers.toRequest(slot))
 		}
 	}
 	
+	/**
+	 * Notifies the observers that the resource changed. With a notifier, the
+	 * representation is built once for all of them; otherwise performGet is
+	 * invoked for each observer.
+	 */
 	def protected void changed() {
-		processObserveRequests
+		var notifier = getNotifier
+		if (notifier != null) {
+			notifier.notifyObservers(this)
+		} else {
+			processObserveRequests
+		}
+	}
+	
+	/**
+	 * Logs the end of an observation, and lets the notifier forget its last notification.
+	 */
+	def private void terminated(String endpointID, long exchangeKey) {
+		if (exchangeKey < 0) {
+			return
+		}
+		var notifier = getNotifier
+		if (notifier != null) {
+			notifier.forget(observers, exchangeKey)
+		}
+		System.out.println("Observation relationship between " 
+			+ endpointID + " and " + getResourceIdentifier 
+			+ " terminated."
+		)
 	}
 	
 	@Override
@@ -692,6 +1074,7 @@ class DiscoveryResource extends ReadOnlyResource {
 	val public static String DEFAULT_IDENTIFIER = "core"
 	
 	Resource root
+	AtomicReference<LinkFormatCache> cache
 	
 	/**
 	 * Constructor for a new DiscoveryResource
@@ -701,13 +1084,35 @@ class DiscoveryResource extends ReadOnlyResource {
 	new (Resource root) {
 		super(DEFAULT_IDENTIFIER)
 		this.root = root
+		this.cache = new AtomicReference<LinkFormatCache>
 		setContentTypeCode(ContentFormat.LINK_FORMAT)
 	}
 	
+	/**
+	 * Response built for a version of the tree.
+	 */
+	private static class LinkFormatCache {
+		long version
+		Response template
+	}
+	
+	/**
+	 * Responds with the link format of the tree, built again only after the
+	 * tree changed. The version is read before the link format, so a change
+	 * made meanwhile rebuilds it on the next request.
+	 */
 	@Override
 	override void performGet(GetRequest request) {
-		var response = new Response(Code.RESP_CONTENT)
-		response.setPayload(root.toLinkFormat, getContentTypeCode)
-		request.respond(response)
+		var version = root.getTreeVersion
+		var cached = cache.get
+		if (cached == null || cached.version != version) {
+			cached = new LinkFormatCache
+			cached.version = version
+			cached.template = new Response(Code.RESP_CONTENT)
+			cached.template.setPayload(root.toLinkFormat, getContentTypeCode)
+			cached.template.setCacheable(true)
+			cache.set(cached)
+		}
+		request.respond(cached.template.copy)
 	}
 }
\ No newline at end of file
@@ -0,0 +1,457 @@
+package com.xtend.coap.resource
+
+import java.nio.charset.StandardCharsets
+import java.util.ArrayList
+import java.util.List
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantLock
+
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.OptionIndex
+import com.xtend.coap.utils.Option
+
+/**
+ * Class that finds the resource targeted by a request.
+ *
+ * Resources are kept in a trie of path segments. A request is matched by
+ * comparing the raw values of its Uri-Path options against the segments of
+ * each level, looked up in a concurrent hash map through a per-thread probe
+ * key, so no strings are built and nothing is allocated. A segment written as
+ * {name} is a template: it matches any segment for which there is no exact
+ * match, e.g. /sensors/{id}/value.
+ *
+ * Every node is changed in place, so adding a route costs the depth of its
+ * path whatever the number of siblings. Routing takes no locks and never
+ * waits for resources being added or removed. Routes are changed one path at
+ * a time, each node under a lock of its own, so changes to different parts of
+ * the tree do not wait for each other. A route is only removed if it still
+ * leads to the resource removed, and the nodes left empty are pruned; a node
+ * pruned is marked, so that a route being added through it starts again.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ResourceRouter {
+
+	val static ThreadLocal<Segment> PROBE = new ThreadLocal<Segment> {
+		override protected initialValue() {
+			return new Segment
+		}
+	}
+
+	Node root
+	AtomicInteger size
+
+	/**
+	 * Initializes a new empty ResourceRouter object.
+	 */
+	new () {
+		this.root = new Node
+		this.size = new AtomicInteger
+	}
+
+	/**
+	 * Adds a route to a resource.
+	 *
+	 * @param path The path of the resource, e.g. /sensors/{id}/value. The empty path is the root.
+	 * @param resource The resource.
+	 */
+	def void add(String path, Resource resource) {
+		var segments = segments(path)
+		while (!tryAdd(segments, resource)) {
+			// a node of the path was pruned meanwhile
+		}
+	}
+
+	/**
+	 * Adds routes to a resource and to all its subresources, by their absolute identifiers.
+	 *
+	 * @param resource The resource.
+	 */
+	def void addTree(Resource resource) {
+		addTree(resource.getResourceIdentifier(true), resource)
+	}
+
+	/**
+	 * Adds routes to a resource and to all its subresources.
+	 *
+	 * @param path The path of the resource.
+	 * @param resource The resource.
+	 */
+	def void addTree(String path, Resource resource) {
+		add(path, resource)
+		if (resource.subResources != null) {
+			for (sub : resource.subResources.values) {
+				addTree(path + "/" + sub.getResourceIdentifier, sub)
+			}
+		}
+	}
+
+	/**
+	 * Removes the route to a resource together with all the routes below it.
+	 *
+	 * @param path The path of the resource.
+	 * @return True if there was a route.
+	 */
+	def boolean remove(String path) {
+		var segments = segments(path)
+		var nodes = lookup(segments)
+		if (nodes == null) {
+			return false
+		}
+		var node = nodes.get(nodes.size - 1)
+		var removed = node.resource.getAndSet(null) != null
+		if (removed) {
+			size.decrementAndGet
+		}
+		clearBelow(node)
+		prune(nodes, segments)
+		return removed
+	}
+
+	/**
+	 * Removes the route at a path if it still leads to a resource, e.g. one
+	 * that was replaced meanwhile keeps its route.
+	 *
+	 * @param path The path of the resource.
+	 * @param resource The resource.
+	 * @return True if the route was removed.
+	 */
+	def boolean remove(String path, Resource resource) {
+		var segments = segments(path)
+		var nodes = lookup(segments)
+		if (nodes == null || !nodes.get(nodes.size - 1).resource.compareAndSet(resource, null)) {
+			return false
+		}
+		size.decrementAndGet
+		prune(nodes, segments)
+		return true
+	}
+
+	/**
+	 * Removes the routes to a resource and to all its subresources.
+	 *
+	 * @param resource The resource.
+	 */
+	def void removeTree(Resource resource) {
+		removeTree(resource.getResourceIdentifier(true), resource)
+	}
+
+	/**
+	 * Removes the routes to a resource and to all its subresources, where
+	 * they still lead to them.
+	 *
+	 * @param path The path the resource had, which it no longer has once detached from its parent.
+	 * @param resource The resource.
+	 */
+	def void removeTree(String path, Resource resource) {
+		remove(path, resource)
+		if (resource.subResources != null) {
+			for (sub : resource.subResources.values) {
+				removeTree(path + "/" + sub.getResourceIdentifier, sub)
+			}
+		}
+	}
+
+	/**
+	 * Returns the resource targeted by a request, from its Uri-Path options.
+	 * An exact segment is preferred to a template at every level.
+	 *
+	 * @param msg The request.
+	 * @return The resource, or null if no route matches.
+	 */
+	def Resource route(Message msg) {
+		var options = msg.getOptionIndex
+		var first = options.indexOf(Option.URI_PATH)
+		var end = first
+		if (first >= 0) {
+			end = first + options.count(Option.URI_PATH)
+			// a trailing slash is ignored
+			if (options.getLength(end - 1) == 0) {
+				end--
+			}
+		}
+		return match(root, options, first, end)
+	}
+
+	/**
+	 * Returns the resource at a path.
+	 *
+	 * @param path The path, e.g. /sensors/42/value.
+	 * @return The resource, or null if no route matches.
+	 */
+	def Resource route(String path) {
+		var msg = new Message
+		for (segment : path.split("/")) {
+			if (!segment.isEmpty) {
+				msg.addOption(new Option(segment, Option.URI_PATH))
+			}
+		}
+		return route(msg)
+	}
+
+	/**
+	 * Returns the number of routes.
+	 *
+	 * @return The number of resources that can be reached.
+	 */
+	def int size() {
+		return size.get
+	}
+
+	def private static Resource match(Node node, OptionIndex options, int index, int end) {
+		if (index >= end) {
+			return node.resource.get
+		}
+		var child = node.find(options.getValueArray(index), options.getValueOffset(index), options.getLength(index))
+		if (child != null) {
+			var resource = match(child, options, index + 1, end)
+			if (resource != null) {
+				return resource
+			}
+		}
+		var wildcard = node.wildcard.get
+		if (wildcard != null) {
+			return match(wildcard, options, index + 1, end)
+		}
+		return null
+	}
+
+	/**
+	 * Returns the hash of a segment, as FNV-1a.
+	 *
+	 * @param array The array holding the segment.
+	 * @param offset The offset of the segment.
+	 * @param length The length of the segment.
+	 * @return The hash.
+	 */
+	def private static int hash(byte[] array, int offset, int length) {
+		var h = 0x811c9dc5
+		for (var i = offset; i < offset + length; i++) {
+			h = h.bitwiseXor(array.get(i).bitwiseAnd(0xFF)) * 0x01000193
+		}
+		return h
+	}
+
+	def private static boolean isTemplate(String segment) {
+		return segment.startsWith("{") && segment.endsWith("}")
+	}
+
+	def private static List<String> segments(String path) {
+		return path.split("/").filter[!isEmpty].toList
+	}
+
+	/**
+	 * Sets the resource at the end of a path, creating the nodes missing.
+	 * Each node is locked while its child is looked up or added.
+	 *
+	 * @return False if a node was pruned meanwhile, and the path must be walked again.
+	 */
+	def private boolean tryAdd(List<String> segments, Resource resource) {
+		var node = root
+		for (segment : segments) {
+			var parent = node
+			parent.lock.lock
+			try {
+				if (parent.removed) {
+					return false
+				}
+				node = parent.getOrAddChild(segment)
+			} finally {
+				parent.lock.unlock
+			}
+		}
+		node.lock.lock
+		try {
+			if (node.removed) {
+				return false
+			}
+			if (node.resource.getAndSet(resource) == null) {
+				size.incrementAndGet
+			}
+			return true
+		} finally {
+			node.lock.unlock
+		}
+	}
+
+	/**
+	 * Returns the nodes along a path, from the root, or null if the path has no node.
+	 */
+	def private List<Node> lookup(List<String> segments) {
+		var nodes = new ArrayList<Node>(segments.size + 1)
+		var node = root
+		nodes.add(node)
+		for (segment : segments) {
+			node = node.child(segment)
+			if (node == null) {
+				return null
+			}
+			nodes.add(node)
+		}
+		return nodes
+	}
+
+	/**
+	 * Removes the routes below a node, and the nodes left empty.
+	 */
+	def private void clearBelow(Node node) {
+		for (entry : node.children.entrySet) {
+			clearSubtree(entry.getValue)
+			detach(node, entry.getKey, entry.getValue)
+		}
+		var template = node.wildcard.get
+		if (template != null) {
+			clearSubtree(template)
+			detach(node, null, template)
+		}
+	}
+
+	def private void clearSubtree(Node node) {
+		if (node.resource.getAndSet(null) != null) {
+			size.decrementAndGet
+		}
+		clearBelow(node)
+	}
+
+	/**
+	 * Prunes the nodes left empty along a path, from its end.
+	 */
+	def private static void prune(List<Node> nodes, List<String> segments) {
+		var i = segments.size
+		while (i > 0 && detach(nodes.get(i - 1), Node.keyOf(segments.get(i - 1)), nodes.get(i))) {
+			i--
+		}
+	}
+
+	/**
+	 * Removes a child from its node if it is empty, under the locks of both.
+	 *
+	 * @param key The segment of the child, or null for the template child.
+	 * @return True if the child was removed.
+	 */
+	def private static boolean detach(Node parent, Segment key, Node child) {
+		parent.lock.lock
+		try {
+			child.lock.lock
+			try {
+				if (parent.removed || child.removed || !child.isEmpty) {
+					return false
+				}
+				child.removed = if (key == null) parent.wildcard.compareAndSet(child, null) else parent.children.remove(key, child)
+				return child.removed
+			} finally {
+				child.lock.unlock
+			}
+		} finally {
+			parent.lock.unlock
+		}
+	}
+
+	/**
+	 * Key of the children of a node: a range of bytes with its hash. Stored
+	 * keys own their bytes; the probe of each thread points into the options
+	 * of the request being routed.
+	 */
+	private static class Segment {
+		byte[] array
+		int offset
+		int length
+		int hash
+
+		def Segment set(byte[] array, int offset, int length) {
+			this.array = array
+			this.offset = offset
+			this.length = length
+			this.hash = hash(array, offset, length)
+			return this
+		}
+
+		override hashCode() {
+			return hash
+		}
+
+		override equals(Object obj) {
+			if (!(obj instanceof Segment)) {
+				return false
+			}
+			var other = obj as Segment
+			if (other.hash != hash || other.length != length) {
+				return false
+			}
+			for (var i = 0; i < length; i++) {
+				if (array.get(offset + i) != other.array.get(other.offset + i)) {
+					return false
+				}
+			}
+			return true
+		}
+	}
+
+	/**
+	 * Level of the trie. The exact segments are kept in a concurrent map; the
+	 * template segment, if any, apart. The children of a node are only added
+	 * or removed under its lock, and a node is only removed from its parent
+	 * under both locks, once empty.
+	 */
+	private static class Node {
+		ReentrantLock lock = new ReentrantLock
+		boolean removed
+		AtomicReference<Resource> resource = new AtomicReference<Resource>
+		ConcurrentMap<Segment, Node> children = new ConcurrentHashMap<Segment, Node>(4)
+		AtomicReference<Node> wildcard = new AtomicReference<Node>
+
+		def Node find(byte[] array, int offset, int length) {
+			if (children.isEmpty) {
+				return null
+			}
+			var probe = PROBE.get.set(array, offset, length)
+			var child = children.get(probe)
+			probe.array = null
+			return child
+		}
+
+		def Node child(String segment) {
+			if (isTemplate(segment)) {
+				return wildcard.get
+			}
+			var key = segment.getBytes(StandardCharsets.UTF_8)
+			return find(key, 0, key.length)
+		}
+
+		/**
+		 * Returns the key of a segment among the children, or null for a template.
+		 */
+		def static Segment keyOf(String segment) {
+			if (isTemplate(segment)) {
+				return null
+			}
+			var key = segment.getBytes(StandardCharsets.UTF_8)
+			return new Segment().set(key, 0, key.length)
+		}
+
+		def boolean isEmpty() {
+			return resource.get == null && children.isEmpty && wildcard.get == null
+		}
+
+		def Node getOrAddChild(String segment) {
+			if (isTemplate(segment)) {
+				if (wildcard.get == null) {
+					wildcard.set(new Node)
+				}
+				return wildcard.get
+			}
+			var key = segment.getBytes(StandardCharsets.UTF_8)
+			var child = find(key, 0, key.length)
+			if (child == null) {
+				child = new Node
+				children.put(new Segment().set(key, 0, key.length), child)
+			}
+			return child
+		}
+
+	}
+}
\ No newline at end of file
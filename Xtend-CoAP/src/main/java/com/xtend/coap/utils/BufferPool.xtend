@@ -0,0 +1,85 @@
+package com.xtend.coap.utils
+
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Class that keeps a pool of reusable direct buffers of the same size.
+ *
+ * Buffers are allocated on demand and returned to the pool when released,
+ * up to a maximum number of pooled buffers.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class BufferPool {
+
+	val public static DEFAULT_MAX_POOLED = 64
+
+	ConcurrentLinkedQueue<ByteBuffer> buffers
+	AtomicInteger pooled
+	int bufferSize
+	int maxPooled
+
+	/**
+	 * Initializes a new BufferPool object.
+	 *
+	 * @param bufferSize The capacity of the buffers.
+	 */
+	new (int bufferSize) {
+		this(bufferSize, DEFAULT_MAX_POOLED)
+	}
+
+	/**
+	 * Initializes a new BufferPool object.
+	 *
+	 * @param bufferSize The capacity of the buffers.
+	 * @param maxPooled The maximum number of buffers kept in the pool.
+	 */
+	new (int bufferSize, int maxPooled) {
+		this.buffers = new ConcurrentLinkedQueue<ByteBuffer>
+		this.pooled = new AtomicInteger
+		this.bufferSize = bufferSize
+		this.maxPooled = maxPooled
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+	 *
+	 * @return A cleared buffer.
+	 */
+	def ByteBuffer acquire() {
+		var buffer = buffers.poll
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(bufferSize)
+		}
+		pooled.decrementAndGet
+		return buffer
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used after it is released.
+	 *
+	 * @param buffer The buffer to return.
+	 */
+	def void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity != bufferSize) {
+			return
+		}
+		if (pooled.incrementAndGet > maxPooled) {
+			pooled.decrementAndGet
+			return
+		}
+		buffer.clear
+		buffers.offer(buffer)
+	}
+
+	def getBufferSize() {
+		return bufferSize
+	}
+
+	def int size() {
+		return pooled.get
+	}
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.xtend.coap.utils
 
 import com.xtend.coap.message.Message
+import com.xtend.coap.message.MessageFactory
 import com.xtend.coap.message.request.DeleteRequest
 import com.xtend.coap.message.request.GetRequest
 import com.xtend.coap.message.request.PostRequest
@@ -43,6 +44,165 @@ class Code {
 	public static final String RESP_GATEWAY_TIMEOUT           = "5.04"
 	public static final String RESP_PROXYING_NOT_SUPPORTED    = "5.05"
 	
+	public static final int EMPTY                         = 0x00
+	public static final int GET                           = 0x01
+	public static final int POST                          = 0x02
+	public static final int PUT                           = 0x03
+	public static final int DELETE                        = 0x04
+	
+	public static final int CREATED                       = 0x41
+	public static final int DELETED                       = 0x42
+	public static final int VALID                         = 0x43
+	public static final int CHANGED                       = 0x44
+	public static final int CONTENT                       = 0x45
+	public static final int BAD_REQUEST                   = 0x80
+	public static final int UNAUTHORIZED                  = 0x81
+	public static final int BAD_OPTION                    = 0x82
+	public static final int FORBIDDEN                     = 0x83
+	public static final int NOT_FOUND                     = 0x84
+	public static final int METHOD_NOT_ALLOWED            = 0x85
+	public static final int NOT_ACCEPTABLE                = 0x86
+	public static final int PRECONDITION_FAILED           = 0x8C
+	public static final int REQUEST_ENTITY_TOO_LARGE      = 0x8D
+	public static final int UNSUPPORTED_CONTENT_TYPE      = 0x8F
+	public static final int INTERNAL_SERVER_ERROR         = 0xA0
+	public static final int NOT_IMPLEMENTED               = 0xA1
+	public static final int BAD_GATEWAY                   = 0xA2
+	public static final int SERVICE_UNAVAILABLE           = 0xA3
+	public static final int GATEWAY_TIMEOUT               = 0xA4
+	public static final int PROXYING_NOT_SUPPORTED        = 0xA5
+	
+	val static String[] CODES = buildCodes
+	val static boolean[] REQUESTS = buildRequests
+	val static boolean[] RESPONSES = buildResponses
+	val static MessageFactory[] FACTORIES = buildFactories
+	
+	/**
+     * Builds the table of string values of every code.
+     * 
+     * @return String values indexed by code.
+     */
+	def private static String[] buildCodes() {
+		var String[] codes = newArrayOfSize(256)
+		for (var i = 0; i < 256; i++) {
+			codes.set(i, genCode(i.operator_doubleGreaterThan(5), i.bitwiseAnd(0x1F)))
+		}
+		for (String code : #[EMPTY_MESSAGE, METHOD_GET, METHOD_POST, METHOD_PUT, METHOD_DELETE,
+				RESP_CREATED, RESP_DELETED, RESP_VALID, RESP_CHANGED, RESP_CONTENT,
+				RESP_BAD_REQUEST, RESP_UNAUTHORIZED, RESP_BAD_OPTION, RESP_FORBIDDEN, RESP_NOT_FOUND,
+				RESP_METHOD_NOT_ALLOWED, RESP_NOT_ACCEPTABLE, RESP_PRECONDITION_FAILED,
+				RESP_REQUEST_ENTITY_TOO_LARGE, RESP_UNSUPPORTED_CONTENT_TYPE,
+				RESP_INTERNAL_SERVER_ERROR, RESP_NOT_IMPLEMENTED, RESP_BAD_GATEWAY,
+				RESP_SERVICE_UNAVAILABLE, RESP_GATEWAY_TIMEOUT, RESP_PROXYING_NOT_SUPPORTED]) {
+			codes.set(parse(code), code)
+		}
+		return codes
+	}
+	
+	/**
+     * Builds the table of request codes.
+     * 
+     * @return True for each request code.
+     */
+	def private static boolean[] buildRequests() {
+		var boolean[] requests = newBooleanArrayOfSize(256)
+		for (var i = 0; i < 256; i++) {
+			requests.set(i, codeClass(i) == 0 && codeDetail(i) >= 1)
+		}
+		return requests
+	}
+	
+	/**
+     * Builds the table of response codes.
+     * 
+     * @return True for each response code.
+     */
+	def private static boolean[] buildResponses() {
+		var boolean[] responses = newBooleanArrayOfSize(256)
+		for (var i = 0; i < 256; i++) {
+			responses.set(i, codeClass(i) >= 2 && codeClass(i) <= 5)
+		}
+		return responses
+	}
+	
+	/**
+     * Builds the table of message factories.
+     * 
+     * @return The factory creating the message of each code.
+     */
+	def private static MessageFactory[] buildFactories() {
+		val MessageFactory message = [| new Message]
+		val MessageFactory request = [| new Request(METHOD_GET, true)]
+		val MessageFactory response = [| new Response]
+		var MessageFactory[] factories = newArrayOfSize(256)
+		for (var i = 0; i < 256; i++) {
+			if (i == EMPTY || RESPONSES.get(i)) {
+				factories.set(i, response)
+			} else if (REQUESTS.get(i)) {
+				factories.set(i, request)
+			} else {
+				factories.set(i, message)
+			}
+		}
+		factories.set(GET, [| new GetRequest])
+		factories.set(POST, [| new PostRequest])
+		factories.set(PUT, [| new PutRequest])
+		factories.set(DELETE, [| new DeleteRequest])
+		return factories
+	}
+	
+	/**
+     * Parses the string value of a code. 
+     * 
+     * @param code String value of the code, in the form "c.dd".
+     * @return Integer value of the code, or -1 if the string is not a valid code.
+     */
+	def static int parse(String code) {
+		if (code == null || code.length != 4 || code.charAt(1) != ".".charAt(0)) {
+			return -1
+		}
+		var codeClass = Character.digit(code.charAt(0), 10)
+		var tens = Character.digit(code.charAt(2), 10)
+		var units = Character.digit(code.charAt(3), 10)
+		if (codeClass < 0 || codeClass > 7 || tens < 0 || units < 0 || tens * 10 + units > 31) {
+			return -1
+		}
+		return codeClass.operator_doubleLessThan(5).bitwiseOr(tens * 10 + units)
+	}
+	
+	/**
+     * Gets the string value of a code. 
+     * 
+     * @param code Integer value of the code.
+     * @return String value of the code, or null if the code is not valid.
+     */
+	def static String valueOf(int code) {
+		if (isValid(code)) {
+			return CODES.get(code)
+		}
+		return null
+	}
+	
+	/**
+     * Gets the class of a code. 
+     * 
+     * @param code Integer value of the code.
+     * @return Class of the code.
+     */
+	def static int codeClass(int code) {
+		return code.operator_doubleGreaterThan(5).bitwiseAnd(0x07)
+	}
+	
+	/**
+     * Gets the detail of a code. 
+     * 
+     * @param code Integer value of the code.
+     * @return Detail of the code.
+     */
+	def static int codeDetail(int code) {
+		return code.bitwiseAnd(0x1F)
+	}
+	
 	/**
      * Gets the class of a code. 
      * 
@@ -50,8 +210,7 @@ class Code {
      * @return Class of the code.
      */
 	def static int codeClass(String code) {
-		var codeD = Double.parseDouble(code)
-		return Math.floor(codeD).intValue
+		return codeClass(parse(code))
 	}
 	
 	/**
@@ -61,7 +220,7 @@ class Code {
      * @return Detail of the code.
      */
 	def static int codeDetail(String code) {
-		return Integer.valueOf(String.valueOf(code).split("\\.").get(1))
+		return codeDetail(parse(code))
 	}
 	
 	/**
@@ -82,13 +241,41 @@ class Code {
 	/**
      * Function that determines if a the code is a request code. 
      * 
+     * @param code Integer value of the code.
+     * @return True if the code is a request code, false if not.
+     */
+	def static isRequest(int code) {
+		return isValid(code) && REQUESTS.get(code)
+	}
+
+	/**
+     * Function that determines if a the code is a response code. 
+     * 
+     * @param code Integer value of the code.
+     * @return True if the code is a response code, false if not.
+     */
+	def static isResponse(int code) {
+		return isValid(code) && RESPONSES.get(code)
+	}
+
+	/**
+     * Function that determines if a the code is valid.
+     * 
+     * @param code Integer value of the code.
+     * @return True if the code is valid, false if not.
+     */
+	def static isValid(int code) {
+		return code >= 0 && code <= 0xFF
+	}
+
+	/**
+     * Function that determines if a the code is a request code. 
+     * 
      * @param code String value of the code.
      * @return True if the code is a request code, false if not.
      */
 	def static isRequest(String code) {
-		var codeClass = codeClass(code)
-		var codeDetail = codeDetail(code)
-		return (codeClass == 0) && (codeDetail >= 1) && (codeDetail <= 31)
+		return isRequest(parse(code))
 	}
 
 	/**
@@ -98,9 +285,7 @@ class Code {
      * @return True if the code is a response code, false if not.
      */
 	def static isResponse(String code) {
-		var codeClass = codeClass(code)
-		var codeDetail = codeDetail(code)
-		return (codeClass >= 2) && (codeClass <=5) && (codeDetail >= 0) && (codeDetail <= 31)
+		return isResponse(parse(code))
 	}
 
 	/**
@@ -110,9 +295,22 @@ class Code {
      * @return True if the code is valid, false if not.
      */
 	def static isValid(String code) {
-		var codeClass = codeClass(code)
-		var codeDetail = codeDetail(code)
-		return (codeClass >= 0) && (codeClass <= 7) && (codeDetail >= 0) && (codeDetail <= 31)
+		return isValid(parse(code))
+	}
+	
+	/**
+     * Function to create a new message for a code.
+     * 
+     * @param code Integer value of the code.
+     * @return A new message of the type corresponding to the code, or null if the code is not valid.
+     */
+	def static Message newMessage(int code) {
+		if (!isValid(code)) {
+			return null
+		}
+		var msg = FACTORIES.get(code).newMessage
+		msg.setRawCode(code)
+		return msg
 	}
 	
 	/**
@@ -150,6 +348,15 @@ class Code {
      * Function that returns a human-readable string representation of the code.
      * 
      * @return Code represented as string.
+     */
+	def static toString(int code) {
+		return toString(valueOf(code))
+	}
+	
+	/**
+     * Function that returns a human-readable string representation of the code.
+     * 
+     * @return Code represented as string.
      */
 	def static toString(String code) {
 		switch (code) {
@@ -0,0 +1,265 @@
+package com.xtend.coap.utils
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.locks.ReentrantLock
+
+/**
+ * Class that maps primitive long keys to values and can be used by several
+ * threads at the same time.
+ *
+ * The map is split in stripes, each one an open addressing table with linear
+ * probing that is locked independently and grows on its own, so that threads
+ * working on different keys seldom wait for each other. Keys are never boxed.
+ * Null values are not allowed.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class ConcurrentLongMap<V> {
+
+	val public static DEFAULT_STRIPES = 64
+	val static INITIAL_CAPACITY = 16
+
+	Segment[] segments
+	AtomicInteger size
+
+	/**
+	 * Initializes a new ConcurrentLongMap object with the default number of stripes.
+	 */
+	new () {
+		this(DEFAULT_STRIPES)
+	}
+
+	/**
+	 * Initializes a new ConcurrentLongMap object.
+	 *
+	 * @param stripes The number of stripes, rounded up to a power of two.
+	 */
+	new (int stripes) {
+		var n = 1
+		while (n < stripes) {
+			n = n.operator_doubleLessThan(1)
+		}
+		this.segments = newArrayOfSize(n)
+		for (var i = 0; i < n; i++) {
+			segments.set(i, new Segment)
+		}
+		this.size = new AtomicInteger
+	}
+
+	/**
+	 * Returns the value mapped to a key.
+	 *
+	 * @param key The key.
+	 * @return The value, or null if the key is not mapped.
+	 */
+	def V get(long key) {
+		var hash = mix(key)
+		var segment = segmentFor(hash)
+		segment.lock.lock
+		try {
+			var index = segment.find(hash, key)
+			if (index < 0) {
+				return null
+			}
+			return segment.values.get(index) as V
+		} finally {
+			segment.lock.unlock
+		}
+	}
+
+	/**
+	 * Maps a key to a value.
+	 *
+	 * @param key The key.
+	 * @param value The value, not null.
+	 * @return The value previously mapped to the key, or null if there was none.
+	 */
+	def V put(long key, V value) {
+		return put(key, value, false)
+	}
+
+	/**
+	 * Maps a key to a value unless the key is already mapped.
+	 *
+	 * @param key The key.
+	 * @param value The value, not null.
+	 * @return The value mapped to the key, or null if the given value was added.
+	 */
+	def V putIfAbsent(long key, V value) {
+		return put(key, value, true)
+	}
+
+	/**
+	 * Removes the mapping of a key.
+	 *
+	 * @param key The key.
+	 * @return The value that was mapped to the key, or null if there was none.
+	 */
+	def V remove(long key) {
+		var hash = mix(key)
+		var segment = segmentFor(hash)
+		segment.lock.lock
+		try {
+			var index = segment.find(hash, key)
+			if (index < 0) {
+				return null
+			}
+			var old = segment.values.get(index) as V
+			segment.delete(index)
+			size.decrementAndGet
+			return old
+		} finally {
+			segment.lock.unlock
+		}
+	}
+
+	/**
+	 * Removes the mapping of a key only if it is mapped to the given value.
+	 *
+	 * @param key The key.
+	 * @param value The value expected, compared by identity.
+	 * @return True if the mapping was removed.
+	 */
+	def boolean remove(long key, V value) {
+		var hash = mix(key)
+		var segment = segmentFor(hash)
+		segment.lock.lock
+		try {
+			var index = segment.find(hash, key)
+			if (index < 0 || segment.values.get(index) !== value) {
+				return false
+			}
+			segment.delete(index)
+			size.decrementAndGet
+			return true
+		} finally {
+			segment.lock.unlock
+		}
+	}
+
+	def boolean containsKey(long key) {
+		return get(key) != null
+	}
+
+	def int size() {
+		return size.get
+	}
+
+	def boolean isEmpty() {
+		return size.get == 0
+	}
+
+	def private V put(long key, V value, boolean onlyIfAbsent) {
+		if (value == null) {
+			throw new NullPointerException
+		}
+		var hash = mix(key)
+		var segment = segmentFor(hash)
+		segment.lock.lock
+		try {
+			var index = segment.find(hash, key)
+			if (index >= 0) {
+				var old = segment.values.get(index) as V
+				if (!onlyIfAbsent) {
+					segment.values.set(index, value)
+				}
+				return old
+			}
+			segment.insert(hash, key, value)
+			size.incrementAndGet
+			return null
+		} finally {
+			segment.lock.unlock
+		}
+	}
+
+	def private Segment segmentFor(long hash) {
+		return segments.get((hash.operator_tripleGreaterThan(32) as int).bitwiseAnd(segments.length - 1))
+	}
+
+	/**
+	 * Spreads the bits of a key, as the finalizer of MurmurHash3.
+	 *
+	 * @param key The key.
+	 * @return The hash of the key.
+	 */
+	def private static long mix(long key) {
+		var h = key
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		h = h * 0xff51afd7ed558ccd#L
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		h = h * 0xc4ceb9fe1a85ec53#L
+		h = h.bitwiseXor(h.operator_tripleGreaterThan(33))
+		return h
+	}
+
+	/**
+	 * Stripe of the map: a table with linear probing where a null value marks
+	 * a free slot. Deleted slots are filled by shifting back the entries after
+	 * them, so there are no tombstones.
+	 */
+	private static class Segment {
+		ReentrantLock lock = new ReentrantLock
+		long[] keys = newLongArrayOfSize(INITIAL_CAPACITY)
+		Object[] values = newArrayOfSize(INITIAL_CAPACITY)
+		int count
+
+		def int find(long hash, long key) {
+			var mask = keys.length - 1
+			var index = (hash as int).bitwiseAnd(mask)
+			while (values.get(index) != null) {
+				if (keys.get(index) == key) {
+					return index
+				}
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			return -1
+		}
+
+		def void insert(long hash, long key, Object value) {
+			if ((count + 1) * 2 > keys.length) {
+				resize
+			}
+			var mask = keys.length - 1
+			var index = (hash as int).bitwiseAnd(mask)
+			while (values.get(index) != null) {
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			keys.set(index, key)
+			values.set(index, value)
+			count++
+		}
+
+		def void delete(int slot) {
+			var mask = keys.length - 1
+			var free = slot
+			var index = (slot + 1).bitwiseAnd(mask)
+			while (values.get(index) != null) {
+				var home = (mix(keys.get(index)) as int).bitwiseAnd(mask)
+				// moves back the entries whose probe sequence crosses the free slot
+				if ((index - home).bitwiseAnd(mask) >= (index - free).bitwiseAnd(mask)) {
+					keys.set(free, keys.get(index))
+					values.set(free, values.get(index))
+					free = index
+				}
+				index = (index + 1).bitwiseAnd(mask)
+			}
+			values.set(free, null)
+			count--
+		}
+
+		def private void resize() {
+			var oldKeys = keys
+			var oldValues = values
+			keys = newLongArrayOfSize(oldKeys.length * 2)
+			values = newArrayOfSize(oldKeys.length * 2)
+			count = 0
+			for (var i = 0; i < oldKeys.length; i++) {
+				if (oldValues.get(i) != null) {
+					insert(mix(oldKeys.get(i)), oldKeys.get(i), oldValues.get(i))
+				}
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+package com.xtend.coap.utils
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Class that schedules tasks on a hashed timing wheel.
+ *
+ * Scheduling and cancelling a task are O(1). A single worker thread advances
+ * the wheel once per tick and hands the expired tasks to an executor, so slow
+ * tasks do not delay the expiration of the others. Tasks expire up to one
+ * tick after their deadline.
+ *
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class HashedWheelTimer {
+
+	val public static DEFAULT_TICK_DURATION = 10
+	val public static DEFAULT_WHEEL_SIZE = 512
+
+	val static ST_INIT = 0
+	val static ST_CANCELLED = 1
+	val static ST_EXPIRED = 2
+
+	Bucket[] wheel
+	long mask
+	long tickDuration
+	long startTime
+	long tick
+	Executor executor
+	ExecutorService ownedExecutor
+	ConcurrentLinkedQueue<Timeout> pendingTimeouts
+	ConcurrentLinkedQueue<Timeout> cancelledTimeouts
+	AtomicLong size
+	AtomicBoolean running
+	Thread worker
+
+	/**
+	 * Initializes a new HashedWheelTimer object with the default tick duration
+	 * and wheel size, running the expired tasks on a pool of daemon threads
+	 * that is shut down when the timer is stopped.
+	 */
+	new () {
+		this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE,
+			Executors.newFixedThreadPool(Runtime.getRuntime.availableProcessors, new NamedThreadFactory("HashedWheelTimer-task")))
+		this.ownedExecutor = executor as ExecutorService
+	}
+
+	/**
+	 * Initializes a new HashedWheelTimer object.
+	 *
+	 * @param tickDuration The duration of a tick in milliseconds.
+	 * @param wheelSize The number of buckets, rounded up to a power of two.
+	 * @param executor The executor that runs the expired tasks.
+	 */
+	new (long tickDuration, int wheelSize, Executor executor) {
+		var buckets = 1
+		while (buckets < wheelSize) {
+			buckets = buckets.operator_doubleLessThan(1)
+		}
+		this.wheel = newArrayOfSize(buckets)
+		for (var i = 0; i < buckets; i++) {
+			wheel.set(i, new Bucket)
+		}
+		this.mask = buckets - 1
+		this.tickDuration = tickDuration * 1000000
+		this.executor = executor
+		this.pendingTimeouts = new ConcurrentLinkedQueue<Timeout>
+		this.cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>
+		this.size = new AtomicLong
+		this.running = new AtomicBoolean(true)
+		this.startTime = System.nanoTime
+		this.worker = new NamedThreadFactory("HashedWheelTimer").newThread([| work])
+		this.worker.start
+	}
+
+	/**
+	 * Inner class that represents a scheduled task.
+	 *
+	 * @author César Estebas Gómez.
+	 * @version Xtend-CoAP_v1.0.
+	 */
+	static class Timeout {
+
+		HashedWheelTimer timer
+		Runnable task
+		long deadline
+		long remainingRounds
+		AtomicInteger state
+		Timeout next
+		Timeout prev
+		Bucket bucket
+
+		new (HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer
+			this.task = task
+			this.deadline = deadline
+			this.state = new AtomicInteger(ST_INIT)
+		}
+
+		/**
+		 * Cancels the task if it has not expired yet.
+		 *
+		 * @return True if the task was cancelled.
+		 */
+		def boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+				return false
+			}
+			timer.cancelledTimeouts.add(this)
+			return true
+		}
+
+		def isCancelled() {
+			return state.get == ST_CANCELLED
+		}
+
+		def isExpired() {
+			return state.get == ST_EXPIRED
+		}
+	}
+
+	/**
+	 * Inner class that represents a bucket of the wheel, a doubly linked
+	 * list of timeouts only accessed by the worker thread.
+	 *
+	 * @author César Estebas Gómez.
+	 * @version Xtend-CoAP_v1.0.
+	 */
+	static class Bucket {
+
+		Timeout head
+		Timeout tail
+
+		def void add(Timeout timeout) {
+			timeout.bucket = this
+			if (head == null) {
+				head = timeout
+				tail = timeout
+			} else {
+				tail.next = timeout
+				timeout.prev = tail
+				tail = timeout
+			}
+		}
+
+		def void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next
+			} else {
+				head = timeout.next
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev
+			} else {
+				tail = timeout.prev
+			}
+			timeout.next = null
+			timeout.prev = null
+			timeout.bucket = null
+		}
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay.
+	 *
+	 * @param task The task to run.
+	 * @param delay The delay in milliseconds.
+	 * @return The timeout, which can be used to cancel the task.
+	 */
+	def Timeout newTimeout(Runnable task, long delay) {
+		var timeout = new Timeout(this, task, System.nanoTime - startTime + delay * 1000000)
+		size.incrementAndGet
+		pendingTimeouts.add(timeout)
+		return timeout
+	}
+
+	/**
+	 * Returns the number of tasks scheduled and not expired or cancelled yet.
+	 *
+	 * @return The number of pending tasks.
+	 */
+	def long size() {
+		return size.get
+	}
+
+	/**
+	 * Stops the worker thread. Tasks that have not expired yet are not run.
+	 * The executor is shut down if it was created by the timer.
+	 */
+	def void stop() {
+		if (running.compareAndSet(true, false)) {
+			worker.interrupt
+			if (ownedExecutor != null) {
+				ownedExecutor.shutdown()
+			}
+		}
+	}
+
+	/**
+	 * Loop of the worker thread.
+	 */
+	def private void work() {
+		while (running.get) {
+			var deadline = waitForNextTick
+			if (deadline > 0) {
+				processCancelledTimeouts
+				transferPendingTimeouts
+				expireTimeouts(wheel.get(tick.bitwiseAnd(mask) as int), deadline)
+				tick++
+			}
+		}
+	}
+
+	/**
+	 * Sleeps until the start of the next tick.
+	 *
+	 * @return The current time relative to the start time, or -1 if the timer was stopped.
+	 */
+	def private long waitForNextTick() {
+		var deadline = tickDuration * (tick + 1)
+		while (true) {
+			var current = System.nanoTime - startTime
+			var sleepTime = (deadline - current + 999999) / 1000000
+			if (sleepTime <= 0) {
+				return current
+			}
+			try {
+				Thread.sleep(sleepTime)
+			} catch (InterruptedException e) {
+				if (!running.get) {
+					return -1
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the newly scheduled timeouts into their buckets.
+	 */
+	def private void transferPendingTimeouts() {
+		var timeout = pendingTimeouts.poll
+		while (timeout != null) {
+			if (!timeout.isCancelled) {
+				var calculated = timeout.deadline / tickDuration
+				timeout.remainingRounds = (calculated - tick) / wheel.length
+				var ticks = Math.max(calculated, tick)
+				wheel.get(ticks.bitwiseAnd(mask) as int).add(timeout)
+			}
+			timeout = pendingTimeouts.poll
+		}
+	}
+
+	/**
+	 * Removes the cancelled timeouts from their buckets.
+	 */
+	def private void processCancelledTimeouts() {
+		var timeout = cancelledTimeouts.poll
+		while (timeout != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout)
+			}
+			size.decrementAndGet
+			timeout = cancelledTimeouts.poll
+		}
+	}
+
+	/**
+	 * Expires the timeouts of a bucket whose deadline has been reached.
+	 *
+	 * @param bucket The bucket of the current tick.
+	 * @param deadline The current time relative to the start time.
+	 */
+	def private void expireTimeouts(Bucket bucket, long deadline) {
+		var timeout = bucket.head
+		while (timeout != null) {
+			var next = timeout.next
+			if (timeout.remainingRounds <= 0) {
+				bucket.remove(timeout)
+				if (timeout.deadline <= deadline) {
+					expire(timeout)
+				} else {
+					// Not possible unless the clock went backwards, try again next round
+					timeout.remainingRounds = 0
+					wheel.get((tick + 1).bitwiseAnd(mask) as int).add(timeout)
+				}
+			} else if (timeout.isCancelled) {
+				bucket.remove(timeout)
+			} else {
+				timeout.remainingRounds = timeout.remainingRounds - 1
+			}
+			timeout = next
+		}
+	}
+
+	/**
+	 * Hands the task of an expired timeout to the executor.
+	 *
+	 * @param timeout The expired timeout.
+	 */
+	def private void expire(Timeout timeout) {
+		if (!timeout.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+			return
+		}
+		size.decrementAndGet
+		try {
+			executor.execute(timeout.task)
+		} catch (RejectedExecutionException e) {
+			System.err.println("[" + getClass.getName + "] ERROR: Failed to run expired task: " + e.getMessage)
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,32 @@
+package com.xtend.coap.utils
+
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+
+/** 
+ * Class that creates daemon threads named after a common prefix.
+ * 
+ * @author César Estebas Gómez.
+ * @version Xtend-CoAP_v1.0.
+ */
+class NamedThreadFactory implements ThreadFactory {
+	
+	String prefix
+	AtomicInteger count
+	
+	/**
+	 * Initializes a new NamedThreadFactory object.
+	 * 
+	 * @param prefix The prefix of the thread names.
+	 */
+	new (String prefix) {
+		this.prefix = prefix
+		this.count = new AtomicInteger
+	}
+	
+	override newThread(Runnable task) {
+		var thread = new Thread(task, prefix + "-" + count.incrementAndGet)
+		thread.setDaemon(true)
+		return thread
+	}
+}
\ No newline at end of file
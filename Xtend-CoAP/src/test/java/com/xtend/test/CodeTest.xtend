@@ -0,0 +1,46 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.message.request.Request
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.utils.Code
+
+class CodeTest {
+	
+	@Test
+	def void testStringConversion() {
+		assertEquals(Code.CONTENT, Code.parse(Code.RESP_CONTENT))
+		assertEquals(Code.RESP_CONTENT, Code.valueOf(Code.CONTENT))
+		assertSame(Code.RESP_NOT_FOUND, Code.valueOf(Code.NOT_FOUND))
+		assertEquals("7.31", Code.valueOf(0xFF))
+		assertEquals(-1, Code.parse("2.5"))
+		assertEquals(-1, Code.parse("2.32"))
+		assertEquals(2, Code.codeClass(Code.RESP_CONTENT))
+		assertEquals(5, Code.codeDetail(Code.RESP_CONTENT))
+	}
+	
+	@Test
+	def void testClassification() {
+		assertTrue(Code.isRequest(Code.GET))
+		assertFalse(Code.isRequest(Code.EMPTY))
+		assertTrue(Code.isResponse(Code.GATEWAY_TIMEOUT))
+		assertFalse(Code.isResponse(Code.POST))
+		assertTrue(Code.isRequest(Code.METHOD_DELETE))
+		assertFalse(Code.isValid("invalid"))
+	}
+	
+	@Test
+	def void testNewMessage() {
+		assertTrue(Code.newMessage(Code.GET) instanceof GetRequest)
+		assertTrue(Code.newMessage(0x1F) instanceof Request)
+		assertEquals(0x1F, Code.newMessage(0x1F).getRawCode)
+		assertTrue(Code.newMessage(Code.EMPTY) instanceof Response)
+		assertTrue(Code.newMessage(Code.CHANGED) instanceof Response)
+		assertEquals(typeof(Message), Code.newMessage(0x20).getClass)
+		assertNull(Code.newMessage(0x100))
+	}
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.util.HashMap
+import java.util.Random
+
+import com.xtend.coap.utils.ConcurrentLongMap
+
+class ConcurrentLongMapTest {
+
+	@Test
+	def void testPutRemove() {
+		var map = new ConcurrentLongMap<String>(2)
+		var expected = new HashMap<Long, String>
+		var random = new Random(1)
+		for (var i = 0; i < 20000; i++) {
+			var long key = random.nextInt(2000)
+			if (random.nextBoolean) {
+				assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i))
+			} else {
+				assertEquals(expected.remove(key), map.remove(key))
+			}
+		}
+		assertEquals(expected.size, map.size)
+		for (var long key = 0; key < 2000; key++) {
+			assertEquals(expected.get(key), map.get(key))
+		}
+	}
+
+	@Test
+	def void testConditionalRemove() {
+		var map = new ConcurrentLongMap<String>
+		var value = new String("a")
+		assertNull(map.putIfAbsent(-1, value))
+		assertSame(value, map.putIfAbsent(-1, "b"))
+		assertFalse(map.remove(-1, new String("a")))
+		assertTrue(map.remove(-1, value))
+		assertTrue(map.isEmpty)
+	}
+}
\ No newline at end of file
@@ -3,7 +3,15 @@ package com.xtend.test
 import static org.junit.Assert.*
 import org.junit.Test
 
+import java.util.HashSet
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+import com.xtend.coap.layers.DatagramChannelLayer
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
 import com.xtend.coap.utils.DatagramUtils
+import com.xtend.coap.utils.MessageType
 
 class DatagramTest {
 
@@ -55,4 +63,56 @@ class DatagramTest {
 		assertEquals(codeIn, codeOut)
 		assertEquals(msgIdIn, msgIdOut)
 	}
+	
+	@Test
+	def testChannelLayer() {
+		val received = new LinkedBlockingQueue<Message>
+		var sender = new DatagramChannelLayer(0, true)
+		var receiver = new DatagramChannelLayer(0, true)
+		receiver.registerReceiver([msg | received.add(msg)])
+		try {
+			var request = new GetRequest
+			request.setType(MessageType.NON_CONFIRMABLE)
+			request.setID(5)
+			request.setURI("coap://127.0.0.1:" + receiver.getPort + "/sensors/temp")
+			sender.sendMessage(request)
+			var msg = received.poll(5, TimeUnit.SECONDS)
+			assertNotNull(msg)
+			assertEquals(5, msg.getID)
+			assertEquals(2, msg.getOptionCount)
+			assertEquals(sender.getPort, msg.getURI.getPort)
+		} finally {
+			sender.close
+			receiver.close
+		}
+	}
+	
+	@Test
+	def testChannelLayerReceivers() {
+		val received = new LinkedBlockingQueue<Message>
+		var sender = new DatagramChannelLayer(0, true)
+		var receiver = new DatagramChannelLayer(0, true, DatagramChannelLayer.DEFAULT_MAX_MESSAGE_SIZE, 4)
+		receiver.registerReceiver([msg | received.add(msg)])
+		try {
+			assertEquals(4, receiver.getReceiverCount)
+			for (var i = 0; i < 20; i++) {
+				var request = new GetRequest
+				request.setType(MessageType.NON_CONFIRMABLE)
+				request.setID(i)
+				request.setURI("coap://127.0.0.1:" + receiver.getPort + "/sensors/temp")
+				sender.sendMessage(request)
+			}
+			var ids = new HashSet<Integer>
+			for (var i = 0; i < 20; i++) {
+				var msg = received.poll(5, TimeUnit.SECONDS)
+				assertNotNull(msg)
+				ids.add(msg.getID)
+			}
+			assertEquals(20, ids.size)
+			assertEquals(20, receiver.getNumMessagesReceived)
+		} finally {
+			sender.close
+			receiver.close
+		}
+	}
 }
\ No newline at end of file
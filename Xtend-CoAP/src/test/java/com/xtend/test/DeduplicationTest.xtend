@@ -0,0 +1,63 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.net.InetAddress
+import java.net.InetSocketAddress
+
+import com.xtend.coap.layers.DeduplicationStore
+import com.xtend.coap.message.Message
+
+class DeduplicationTest {
+
+	@Test
+	def void testDuplicateAndReply() {
+		var store = new DeduplicationStore(1024, 60000, true)
+		var key = DeduplicationStore.keyOf(InetAddress.getByName("192.168.1.2"), 5683, 0x1234)
+		assertEquals(0xC0A801021633#L.operator_doubleLessThan(16).bitwiseOr(0x1234), key)
+		assertFalse(store.checkAndAdd(key))
+		assertTrue(store.checkAndAdd(key))
+		assertNull(store.getReply(key))
+		var reply = new Message
+		store.putReply(key, reply)
+		assertSame(reply, store.getReply(key))
+		assertFalse(store.checkAndAdd(key + 1))
+	}
+
+	@Test
+	def void testCollidingPeers() {
+		var store = new DeduplicationStore
+		// both addresses fold into the same key
+		var first = new InetSocketAddress("::1f", 5683)
+		var second = new InetSocketAddress("::100", 5683)
+		var key = DeduplicationStore.keyOf(first.getAddress, 5683, 7)
+		assertEquals(key, DeduplicationStore.keyOf(second.getAddress, 5683, 7))
+		assertFalse(store.checkAndAdd(key, first))
+		var reply = new Message
+		store.putReply(key, first, reply)
+		assertFalse(store.checkAndAdd(key, second))
+		assertNull(store.getReply(key, second))
+		assertTrue(store.checkAndAdd(key, first))
+		assertSame(reply, store.getReply(key, first))
+	}
+
+	@Test
+	def void testExpiration() {
+		var store = new DeduplicationStore(1024, 20, false)
+		var key = DeduplicationStore.keyOf(InetAddress.getByName("10.0.0.1"), 5683, 1)
+		assertFalse(store.checkAndAdd(key))
+		Thread.sleep(50)
+		assertFalse(store.checkAndAdd(key))
+	}
+
+	@Test
+	def void testEviction() {
+		var store = new DeduplicationStore(1, 60000, false)
+		var address = InetAddress.getByName("10.0.0.1")
+		for (var i = 0; i < store.getCapacity * 2; i++) {
+			store.checkAndAdd(DeduplicationStore.keyOf(address, 5683, i))
+		}
+		assertTrue(store.getEvictions > 0)
+	}
+}
\ No newline at end of file
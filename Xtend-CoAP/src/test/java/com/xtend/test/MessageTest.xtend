@@ -3,8 +3,14 @@ package com.xtend.test
 import static org.junit.Assert.*
 import org.junit.Test
 
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+
 import com.xtend.coap.message.Message
+import com.xtend.coap.message.response.Response
 import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.ContentFormat
 import com.xtend.coap.utils.MessageType
 import com.xtend.coap.utils.Option
 
@@ -58,6 +64,118 @@ class MessageTest {
 		assertEquals(msg.getOptionCount, convMsg.getOptionCount)
 	}
 	
+	@Test
+	def void testLongOptionMessage() {
+		var msg = new Message
+		msg.setCode(Code.METHOD_POST)
+		msg.setType(MessageType.NON_CONFIRMABLE)
+		msg.setID(4321)
+		msg.setToken(0x0102030405#L, 5)
+		msg.addOption(new Option("a-long-uri-path-segment", Option.URI_PATH))
+		msg.addOption(new Option(newByteArrayOfSize(300), 2100))
+		msg.setPayload("payload".getBytes)
+		var data = msg.toByteArray
+		var convMsg = Message.fromByteArray(data)
+		assertEquals(msg.getToken, convMsg.getToken)
+		assertEquals(5, convMsg.getTokenLength)
+		assertEquals("a-long-uri-path-segment", convMsg.getFirstOption(Option.URI_PATH).getStringValue)
+		assertEquals(300, convMsg.getFirstOption(2100).getLength)
+		assertArrayEquals(msg.getPayload, convMsg.getPayload)
+	}
+	
+	@Test
+	def void testDirectBufferMessage() {
+		var msg = new Message
+		msg.setCode(Code.METHOD_GET)
+		msg.setType(MessageType.CONFIRMABLE)
+		msg.setID(54321)
+		msg.setPayload("no options".getBytes)
+		var buffer = ByteBuffer.allocateDirect(64)
+		var length = msg.writeTo(buffer)
+		assertEquals(msg.toByteArray.length, length)
+		buffer.flip
+		var convMsg = Message.fromByteBuffer(buffer)
+		assertEquals(msg.getID, convMsg.getID)
+		assertEquals(0, convMsg.getOptionCount)
+		assertArrayEquals(msg.getPayload, convMsg.getPayload)
+	}
+	
+	@Test
+	def void testLazyOptionMessage() {
+		var msg = new Message
+		msg.setCode(Code.METHOD_GET)
+		msg.setType(MessageType.CONFIRMABLE)
+		msg.setID(2)
+		msg.setURI("coap://localhost/sensors/temp")
+		msg.setOption(new Option(1, Option.OBSERVE))
+		var data = msg.toByteArray
+		var convMsg = Message.fromByteBuffer(ByteBuffer.wrap(data), true)
+		data.set(data.length - 1, "x".getBytes.get(0))
+		assertEquals(2, convMsg.getOptions(Option.URI_PATH).size)
+		assertEquals("temx", convMsg.getOptions(Option.URI_PATH).get(1).getStringValue)
+		convMsg.addOption(new Option("more", Option.URI_PATH))
+		assertEquals(3, convMsg.getOptions(Option.URI_PATH).size)
+		assertEquals(4, convMsg.getOptionCount)
+	}
+	
+	@Test
+	def void testOptionOrder() {
+		var msg = new Message
+		msg.setCode(Code.METHOD_PUT)
+		msg.setType(MessageType.CONFIRMABLE)
+		msg.setID(3)
+		msg.addOption(new Option("b", Option.URI_QUERY))
+		msg.addOption(new Option("a", Option.URI_PATH))
+		msg.addOption(new Option(0, Option.CONTENT_FORMAT))
+		msg.addOption(new Option("c", Option.URI_PATH))
+		var list = msg.getOptionList
+		assertEquals(4, list.size)
+		assertEquals(Option.URI_PATH, list.get(0).getOptionNumber)
+		assertEquals("c", list.get(1).getStringValue)
+		assertEquals(Option.URI_QUERY, list.get(3).getOptionNumber)
+		msg.setOptions(Option.URI_PATH, null)
+		assertNull(msg.getOptions(Option.URI_PATH))
+		var convMsg = Message.fromByteArray(msg.toByteArray)
+		assertEquals(2, convMsg.getOptionCount)
+		assertEquals("b", convMsg.getFirstOption(Option.URI_QUERY).getStringValue)
+	}
+	
+	@Test
+	def void testResponseTemplate() {
+		var template = new Response(Code.RESP_CONTENT)
+		template.setPayload("hello", ContentFormat.PLAIN)
+		var response = template.copy
+		response.setType(MessageType.ACKNOWLEDGMENT)
+		response.setID(7)
+		response.setToken(0x1234, 2)
+		var expected = new Response(Code.RESP_CONTENT)
+		expected.setPayload("hello", ContentFormat.PLAIN)
+		expected.setType(MessageType.ACKNOWLEDGMENT)
+		expected.setID(7)
+		expected.setToken(0x1234, 2)
+		assertArrayEquals(expected.toByteArray, response.toByteArray)
+		response.setOption(new Option(60, Option.MAX_AGE))
+		assertEquals(2, Message.fromByteArray(response.toByteArray).getOptionCount)
+		assertFalse(template.hasOption(Option.MAX_AGE))
+		assertSame(template.getEncodedBody, template.copy.getEncodedBody)
+	}
+	
+	@Test
+	def void testExchangeKey() {
+		var peer = new InetSocketAddress(InetAddress.getByName("192.168.1.2"), 5683)
+		var msg = new Message
+		msg.setID(0x1234)
+		msg.setPeerAddress(peer)
+		assertEquals(0xC0A801021633#L, msg.peerKey)
+		assertEquals(0xC0A8010216331234#L, msg.exchangeKey)
+		var other = new Message
+		other.setURI("coap://192.168.1.2:5683/test")
+		other.setID(0x1234)
+		assertEquals(msg.exchangeKey, other.exchangeKey)
+		other.setID(0x1235)
+		assertFalse(msg.exchangeKey == other.exchangeKey)
+	}
+	
 	def static String getHexString(byte[] b) throws Exception {
 		var result = ""
 		for (var i=0 ; i < b.length ; i++) {
@@ -0,0 +1,403 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.io.File
+import java.net.InetSocketAddress
+import java.nio.file.Files
+import java.util.ArrayList
+import java.util.List
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.xtend.coap.endpoint.EndPoint
+import com.xtend.coap.layers.Communicator
+import com.xtend.coap.layers.DatagramChannelLayer
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.resource.LocalResource
+import com.xtend.coap.resource.ObserveJournal
+import com.xtend.coap.resource.ObserveNotifier
+import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.Option
+
+class ObserveTest {
+
+	static class CounterResource extends LocalResource {
+		AtomicInteger gets = new AtomicInteger
+
+		new () {
+			super("counter")
+			setObservable(true)
+		}
+
+		override void performGet(GetRequest request) {
+			request.respond(Code.RESP_CONTENT, "value " + gets.incrementAndGet)
+		}
+	}
+
+	List<DatagramChannelLayer> layers
+	List<Communicator> communicators
+	Communicator server
+	EndPoint endPoint
+	ObserveNotifier notifier
+	ConcurrentLinkedQueue<Message> received
+
+	@Before
+	def void setUp() throws Exception {
+		layers = new ArrayList<DatagramChannelLayer>
+		communicators = new ArrayList<Communicator>
+		server = communicator
+		endPoint = new EndPoint(server)
+		notifier = new ObserveNotifier(null, server.getTimer)
+		endPoint.setObserveNotifier(notifier)
+		received = new ConcurrentLinkedQueue<Message>
+	}
+
+	@After
+	def void tearDown() {
+		notifier.shutdown
+		for (layer : layers) {
+			layer.close
+		}
+		for (communicator : communicators) {
+			communicator.getTimer.stop
+		}
+	}
+
+	@Test
+	def void testNotifyObservers() throws Exception {
+		val resource = new CounterResource
+		endPoint.addResource(resource)
+		for (var i = 0; i < 3; i++) {
+			var request = observeRequest(client)
+			request.setToken(0x100 + i, 2)
+			resource.addObserveRequest(request)
+		}
+		assertEquals(3, resource.observerCount)
+
+		assertEquals(3, notifier.notifyObservers(resource))
+		waitFor([| received.size == 3])
+		assertEquals(1, resource.gets.get)
+		var tokens = 0
+		for (msg : received) {
+			assertTrue(msg.isNonConfirmable)
+			assertTrue(msg.hasOption(Option.OBSERVE))
+			assertEquals("value 1", msg.getPayloadString)
+			tokens += msg.getToken as int
+		}
+		assertEquals(0x100 + 0x101 + 0x102, tokens)
+		assertEquals(3, notifier.getSent)
+
+		// the clients do not know the tokens, so they reset the confirmable notifications
+		notifier.setConfirmableInterval(0)
+		notifier.notifyObservers(resource)
+		waitFor([| resource.observerCount == 0])
+		assertEquals(3, notifier.getDropped)
+		assertEquals(2, resource.gets.get)
+	}
+
+	@Test
+	def void testAcceptGroups() throws Exception {
+		val gets = new AtomicInteger
+		val resource = new LocalResource("formats") {
+			override void performGet(GetRequest request) {
+				gets.incrementAndGet
+				var accept = request.getFirstOption(Option.ACCEPT)
+				request.respond(Code.RESP_CONTENT, "format " + if (accept != null) accept.getIntValue else -1)
+			}
+		}
+		resource.setObservable(true)
+		endPoint.addResource(resource)
+		for (var i = 0; i < 4; i++) {
+			var request = observeRequest(client)
+			request.setToken(0x200 + i, 2)
+			if (i % 2 == 1) {
+				request.setOption(new Option(50, Option.ACCEPT))
+			}
+			resource.addObserveRequest(request)
+		}
+
+		assertEquals(4, notifier.notifyObservers(resource))
+		waitFor([| received.size == 4])
+		// one representation per content format asked for
+		assertEquals(2, gets.get)
+		for (msg : received) {
+			var expected = if (msg.getToken % 2 == 1) "format 50" else "format -1"
+			assertEquals(expected, msg.getPayloadString)
+		}
+	}
+
+	@Test
+	def void testTemplatePaths() throws Exception {
+		var sensors = new LocalResource("sensors")
+		val device = new LocalResource("{id}") {
+			override void performGet(GetRequest request) {
+				request.respond(Code.RESP_CONTENT, "device " + getPathParameter(request, "id"))
+			}
+		}
+		device.setObservable(true)
+		sensors.addSubResource(device)
+		endPoint.addResource(sensors)
+		var observer = client
+		var peer = new InetSocketAddress("127.0.0.1", observer.port)
+		for (id : #[7, 8]) {
+			var request = new GetRequest
+			request.setURI("coap://127.0.0.1:" + observer.port + "/sensors/" + id)
+			request.setPeerAddress(peer)
+			request.setToken(id, 1)
+			request.setCommunicator(server)
+			assertSame(device, endPoint.getResource(request))
+			device.addObserveRequest(request)
+		}
+		// one client observes both devices through the same resource
+		assertEquals(2, device.observerCount)
+		assertTrue(device.isObserved(peer, "/sensors/7"))
+		assertFalse(device.isObserved(peer, "/sensors/9"))
+
+		assertEquals(2, notifier.notifyObservers(device))
+		waitFor([| received.size == 2])
+		for (msg : received) {
+			assertEquals("device " + msg.getToken, msg.getPayloadString)
+		}
+
+		device.removeObserveRequest(peer, "/sensors/7")
+		assertEquals(1, device.observerCount)
+		assertTrue(device.isObserved(peer, "/sensors/8"))
+		var registry = device.getObserverRegistry
+		assertEquals("/sensors/8", registry.getPath(registry.slotOf(peer, "/sensors/8")))
+	}
+
+	@Test
+	def void testCoalescing() throws Exception {
+		val resource = new CounterResource
+		resource.setMinNotificationInterval(300)
+		endPoint.addResource(resource)
+		var request = observeRequest(client)
+		request.setToken(0x42, 1)
+		resource.addObserveRequest(request)
+
+		for (var i = 0; i < 5; i++) {
+			notifier.notifyObservers(resource)
+		}
+		waitFor([| received.size == 2])
+		Thread.sleep(400)
+		// the changes within the interval are sent as the latest state only
+		assertEquals(2, received.size)
+		assertEquals("value 1", received.poll.getPayloadString)
+		assertEquals("value 5", received.poll.getPayloadString)
+		assertEquals(2, notifier.getSent)
+	}
+
+	@Test
+	def void testRefresh() throws Exception {
+		val resource = new CounterResource
+		resource.setMaxNotificationInterval(200)
+		endPoint.addResource(resource)
+		var request = observeRequest(client)
+		request.setToken(0x43, 1)
+		resource.addObserveRequest(request)
+
+		// the resource never changes, yet its state is sent again
+		waitFor([| received.size >= 2])
+		assertEquals("value 1", received.poll.getPayloadString)
+		assertEquals("value 2", received.poll.getPayloadString)
+	}
+
+	@Test
+	def void testRegistry() throws Exception {
+		var resource = new CounterResource
+		var registry = resource.getObserverRegistry
+		for (var i = 0; i < 3000; i++) {
+			var request = new GetRequest
+			request.setPeerAddress(new InetSocketAddress("10.0." + (i / 256) + "." + (i % 256), 5683))
+			request.setToken(i, 2)
+			registry.add(request)
+		}
+		assertEquals(3000, registry.size)
+		// slots across the growing chunks and the full ones keep their own state
+		for (var i = 0; i < 3000; i++) {
+			var address = new InetSocketAddress("10.0." + (i / 256) + "." + (i % 256), 5683)
+			assertEquals(i, registry.getToken(registry.slotOf(address)))
+		}
+		var slot = registry.slotOf(new InetSocketAddress("10.0.11.183", 5683))
+		assertEquals(2999, registry.getToken(slot))
+		assertEquals(new InetSocketAddress("10.0.11.183", 5683), registry.getAddress(slot))
+
+		var peer = registry.getAddress(slot)
+		var generation = registry.getGeneration(slot)
+		assertEquals(-1, registry.remove(peer, 7))
+		assertTrue(registry.remove(peer, 2999) >= 0)
+		assertFalse(registry.contains(peer))
+		assertEquals(2999, registry.slots.length)
+
+		// the freed slot is reused with a new generation
+		var request = new GetRequest
+		request.setPeerAddress(new InetSocketAddress("::1", 5684))
+		request.setToken(0x77, 1)
+		request.addOption(new Option(41, Option.ACCEPT))
+		assertEquals(slot, registry.add(request))
+		assertEquals(-1, registry.remove(slot, generation))
+		assertEquals(new InetSocketAddress("::1", 5684), registry.getAddress(slot))
+		assertEquals(41, registry.getAccept(slot))
+		assertTrue(resource.isObserved(request.getPeerAddress))
+		resource.removeObserveRequest(request.getPeerAddress)
+		assertEquals(2999, resource.observerCount)
+
+		// IPv6 peers whose keys collide are kept apart
+		var first = new InetSocketAddress("::1f", 5683)
+		var second = new InetSocketAddress("::100", 5683)
+		for (address : #[first, second]) {
+			var registration = new GetRequest
+			registration.setPeerAddress(address)
+			registration.setToken(0x10, 1)
+			registry.add(registration)
+		}
+		assertEquals(3001, registry.size)
+		assertEquals(first, registry.getAddress(registry.slotOf(first)))
+		assertTrue(registry.remove(second) >= 0)
+		assertTrue(registry.contains(first))
+		assertFalse(registry.contains(second))
+	}
+
+	@Test
+	def void testJournal() throws Exception {
+		var directory = Files.createTempDirectory("observe").toFile
+		var journals = new ArrayList<ObserveJournal>
+		try {
+			var endPoint = new EndPoint(communicator)
+			var resource = new CounterResource
+			endPoint.addResource(resource)
+			var journal = journal(journals, directory, 4096)
+			assertEquals(0, endPoint.setObserveJournal(journal))
+			for (var i = 0; i < 3; i++) {
+				var request = new GetRequest
+				request.setPeerAddress(new InetSocketAddress("127.0.0.1", 40000 + i))
+				request.setToken(0x200 + i, 2)
+				resource.addObserveRequest(request)
+			}
+			var wide = new InetSocketAddress("::1", 5684)
+			var request = new GetRequest
+			request.setPeerAddress(wide)
+			request.setToken(0x77, 1)
+			request.addOption(new Option(41, Option.ACCEPT))
+			resource.addObserveRequest(request)
+			resource.removeObserveRequest(new InetSocketAddress("127.0.0.1", 40001))
+			var sequence = resource.nextObserveSequence
+			journal.sequence(resource, sequence)
+
+			// the endpoint restarts without closing the journal
+			var restarted = new EndPoint(communicator)
+			var restored = new CounterResource
+			restarted.addResource(restored)
+			val reopened = journal(journals, directory, 4096)
+			assertEquals(3, restarted.setObserveJournal(reopened))
+			assertTrue(restored.isObserved(new InetSocketAddress("127.0.0.1", 40002)))
+			assertFalse(restored.isObserved(new InetSocketAddress("127.0.0.1", 40001)))
+			var registry = restored.getObserverRegistry
+			var slot = registry.slotOf(wide)
+			assertEquals(wide, registry.getAddress(slot))
+			assertEquals(0x77, registry.getToken(slot))
+			assertEquals(41, registry.getAccept(slot))
+			assertNotNull(registry.getCommunicator)
+			assertTrue(restored.nextObserveSequence > sequence)
+
+			// a full file is compacted, and the observers survive
+			for (var i = 0; reopened.getLost == 0; i++) {
+				reopened.sequence(restored, i)
+			}
+			waitFor([| !reopened.isCompacting])
+			var again = new EndPoint(communicator)
+			again.addResource(new CounterResource)
+			assertEquals(3, again.setObserveJournal(journal(journals, directory, 4096)))
+		} finally {
+			close(journals, directory)
+		}
+	}
+
+	@Test
+	def void testJournalGrowth() throws Exception {
+		var directory = Files.createTempDirectory("observe").toFile
+		var journals = new ArrayList<ObserveJournal>
+		try {
+			var endPoint = new EndPoint(communicator)
+			var resource = new CounterResource
+			endPoint.addResource(resource)
+			val journal = journal(journals, directory, 1024)
+			endPoint.setObserveJournal(journal)
+			for (var i = 0; i < 100; i++) {
+				var request = new GetRequest
+				request.setPeerAddress(new InetSocketAddress("127.0.0.1", 40000 + i))
+				request.setToken(0x300 + i, 2)
+				resource.addObserveRequest(request)
+			}
+			// the snapshot of the observers does not fit in a file of the initial size
+			waitFor([| !journal.isCompacting])
+			assertTrue(journal.compact)
+			assertTrue(journal.getCapacity > 1024)
+
+			var restarted = new EndPoint(communicator)
+			restarted.addResource(new CounterResource)
+			var reopened = journal(journals, directory, 1024)
+			assertEquals(100, restarted.setObserveJournal(reopened))
+			assertTrue(reopened.getCapacity > 1024)
+		} finally {
+			close(journals, directory)
+		}
+	}
+
+	def private Communicator communicator() {
+		var layer = new DatagramChannelLayer(0, true)
+		layers.add(layer)
+		var communicator = new Communicator(layer)
+		communicators.add(communicator)
+		return communicator
+	}
+
+	/**
+	 * Returns a new client whose messages are received in the queue of the test.
+	 */
+	def private Communicator client() {
+		var client = communicator
+		client.registerReceiver([msg | received.add(msg)])
+		return client
+	}
+
+	/**
+	 * Returns an observe request from a client, as received by the server.
+	 */
+	def private GetRequest observeRequest(Communicator client) {
+		var request = new GetRequest
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", client.port))
+		request.setCommunicator(server)
+		return request
+	}
+
+	def private static ObserveJournal journal(List<ObserveJournal> journals, File directory, int capacity) {
+		var journal = new ObserveJournal(directory, capacity)
+		journals.add(journal)
+		return journal
+	}
+
+	def private void close(List<ObserveJournal> journals, File directory) {
+		for (journal : journals) {
+			waitFor([| !journal.isCompacting])
+			journal.close
+		}
+		for (file : directory.listFiles) {
+			file.delete
+		}
+		directory.delete
+	}
+
+	def private void waitFor(() => boolean condition) {
+		var deadline = System.currentTimeMillis + 5000
+		while (!condition.apply) {
+			assertTrue(System.currentTimeMillis < deadline)
+			Thread.sleep(10)
+		}
+	}
+}
\ No newline at end of file
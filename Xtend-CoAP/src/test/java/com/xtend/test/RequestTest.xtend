@@ -5,9 +5,27 @@ import org.junit.Test
 import java.util.Timer
 import java.util.TimerTask
 
+import java.util.ArrayList
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.xtend.coap.endpoint.OverloadPolicy
+import com.xtend.coap.endpoint.RequestDispatcher
+import com.xtend.coap.layers.Communicator
+import com.xtend.coap.layers.DatagramChannelLayer
+import com.xtend.coap.message.MessageHandler
 import com.xtend.coap.message.response.Response
+import com.xtend.coap.message.response.ResponseCallback
+import com.xtend.coap.message.request.BatchCallback
 import com.xtend.coap.message.request.Request
+import com.xtend.coap.message.request.RequestBatch
 import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.Option
 
 
 
@@ -51,5 +69,178 @@ class RequestTest {
 		timer.schedule(new RespondTask(request, response), 500)
 		var receivedResponse = request.receiveResponse
 		assertSame(response, receivedResponse)
-	} 
+	}
+	
+	@Test
+	def void testDispatcherOverload() throws InterruptedException {
+		val tasks = new ArrayList<Runnable>
+		val handled = new ArrayList<Request>
+		var dispatcher = new RequestDispatcher([task | tasks.add(task)], 1, OverloadPolicy.SERVICE_UNAVAILABLE)
+		var handler = new MessageHandler {
+			override handleRequest(Request request) {
+				handled.add(request)
+			}
+			override handleResponse(Response response) { }
+		}
+		var first = new GetRequest
+		var second = new GetRequest
+		second.enableResponseQueue(true)
+		assertTrue(dispatcher.submit(first, handler))
+		assertFalse(dispatcher.submit(second, handler))
+		var response = second.receiveResponse
+		assertEquals(Code.RESP_SERVICE_UNAVAILABLE, response.getCode)
+		assertNotNull(response.getFirstOption(Option.MAX_AGE))
+		tasks.get(0).run
+		assertSame(first, handled.get(0))
+		assertEquals(0, dispatcher.getPending)
+		assertEquals(1, dispatcher.getRejected)
+	}
+	
+	@Test
+	def void testVirtualThreadDispatcher() throws InterruptedException {
+		val handled = new CountDownLatch(2)
+		var dispatcher = RequestDispatcher.withVirtualThreads(2, OverloadPolicy.DROP)
+		var handler = new MessageHandler {
+			override handleRequest(Request request) {
+				request.readPayload(3)
+				handled.countDown
+			}
+			override handleResponse(Response response) { }
+		}
+		var first = new GetRequest
+		var second = new GetRequest
+		assertTrue(dispatcher.submit(first, handler))
+		assertTrue(dispatcher.submit(second, handler))
+		assertFalse(dispatcher.submit(new GetRequest, handler))
+		first.appendPayload("abcd".getBytes)
+		second.setComplete(true)
+		assertTrue(handled.await(5, TimeUnit.SECONDS))
+		dispatcher.shutdown()
+	}
+	
+	@Test
+	def void testExecuteAsync() throws Exception {
+		var serverLayer = new DatagramChannelLayer(0, true)
+		var server = new Communicator(serverLayer)
+		server.registerReceiver([msg | if (msg instanceof Request) (msg as Request).respond(Code.RESP_CONTENT, "ok")])
+		var clientLayer = new DatagramChannelLayer(0, true)
+		var client = new Communicator(clientLayer)
+		var silent = new DatagramChannelLayer(0, true)
+		try {
+			var request = new GetRequest
+			request.setURI("coap://127.0.0.1:" + server.port + "/sensors/temp")
+			request.setCommunicator(client)
+			val callbacks = new ArrayList<Response>
+			var future = request.executeAsync(5000).addCallback(new ResponseCallback {
+				override completed(Response response) {
+					callbacks.add(response)
+				}
+				override failed(Throwable cause) { }
+			})
+			var response = future.get(5, TimeUnit.SECONDS)
+			assertEquals("ok", response.getPayloadString)
+			assertSame(response, callbacks.get(0))
+			
+			var lost = new GetRequest
+			lost.setURI("coap://127.0.0.1:" + silent.getPort + "/sensors/temp")
+			lost.setCommunicator(client)
+			try {
+				lost.executeAsync(100).get(5, TimeUnit.SECONDS)
+				fail
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause instanceof TimeoutException)
+			}
+			assertEquals(0, client.getMessageLayer.getPendingTransmissions)
+			var cancelled = new GetRequest
+			cancelled.setURI("coap://127.0.0.1:" + silent.getPort + "/sensors/temp")
+			cancelled.setCommunicator(client)
+			var pending = cancelled.executeAsync
+			var tokenStore = client.getTransactionLayer.getTokenStore
+			var transmissions = client.getMessageLayer.getPendingTransmissions
+			assertTrue(tokenStore.contains(cancelled.destinationKey, cancelled.getToken))
+			assertTrue(pending.cancel(false))
+			assertTrue(pending.isCancelled)
+			// the retransmissions and the token of the request are released
+			assertEquals(transmissions - 1, client.getMessageLayer.getPendingTransmissions)
+			assertFalse(tokenStore.contains(cancelled.destinationKey, cancelled.getToken))
+		} finally {
+			silent.close
+			clientLayer.close
+			serverLayer.close
+			client.getTimer.stop
+			server.getTimer.stop
+		}
+	}
+	
+	@Test
+	def void testRequestBatch() throws Exception {
+		var serverLayer = new DatagramChannelLayer(0, true)
+		var server = new Communicator(serverLayer)
+		server.registerReceiver([msg | if (msg instanceof Request) (msg as Request).respond(Code.RESP_CONTENT, "ok")])
+		var silent = new DatagramChannelLayer(0, true)
+		var clientLayer = new DatagramChannelLayer(0, true)
+		var client = new Communicator(clientLayer)
+		try {
+			var batch = new RequestBatch(client, 500, 4)
+			for (var i = 0; i < 20; i++) {
+				batch.add("coap://127.0.0.1:" + server.port + "/sensors/" + i)
+			}
+			batch.add("coap://127.0.0.1:" + silent.getPort + "/sensors/temp")
+			val answered = new AtomicInteger
+			batch.execute(new BatchCallback {
+				override completed(Request request, Response response) {
+					answered.incrementAndGet
+				}
+				override failed(Request request, Throwable cause) { }
+				override finished(RequestBatch batch) { }
+			})
+			assertTrue(batch.await(10, TimeUnit.SECONDS))
+			assertEquals(20, answered.get)
+			assertEquals(20, batch.getSucceeded)
+			assertEquals(1, batch.getFailed)
+			assertTrue(batch.getMaxRTT >= batch.getMeanRTT && batch.getMeanRTT >= batch.getMinRTT)
+			assertTrue(batch.getElapsed > 0)
+		} finally {
+			silent.close
+			clientLayer.close
+			serverLayer.close
+			client.getTimer.stop
+			server.getTimer.stop
+		}
+	}
+	
+	@Test
+	def void testRequestBatchSinglePeer() throws Exception {
+		var serverLayer = new DatagramChannelLayer(0, true)
+		var server = new Communicator(serverLayer)
+		server.registerReceiver([msg | if (msg instanceof Request) (msg as Request).respond(Code.RESP_CONTENT, "ok")])
+		var clientLayer = new DatagramChannelLayer(0, true)
+		var client = new Communicator(clientLayer)
+		try {
+			// more than NSTART plus the queue of the message layer, all to one peer
+			var batch = new RequestBatch(client, 2000)
+			for (var i = 0; i < 300; i++) {
+				batch.add("coap://127.0.0.1:" + server.port + "/sensors/" + i)
+			}
+			batch.add("coap://[::1/sensors/temp")
+			val causes = new ConcurrentLinkedQueue<Throwable>
+			batch.execute(new BatchCallback {
+				override completed(Request request, Response response) { }
+				override failed(Request request, Throwable cause) {
+					causes.add(cause)
+				}
+				override finished(RequestBatch batch) { }
+			})
+			assertTrue(batch.await(30, TimeUnit.SECONDS))
+			assertEquals(300, batch.getSucceeded)
+			assertEquals(1, batch.getFailed)
+			assertEquals(301, batch.size)
+			assertTrue(causes.poll instanceof IllegalArgumentException)
+		} finally {
+			clientLayer.close
+			serverLayer.close
+			client.getTimer.stop
+			server.getTimer.stop
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,167 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.resource.LocalResource
+import com.xtend.coap.resource.Resource
+import com.xtend.coap.resource.ResourceRouter
+
+class ResourceRouterTest {
+
+	@Test
+	def void testRoute() {
+		var root = new Resource("")
+		var router = new ResourceRouter
+		root.setRouter(router)
+		var sensors = new LocalResource("sensors")
+		var temp = new LocalResource("temp")
+		var device = new LocalResource("{id}")
+		var value = new LocalResource("value")
+		sensors.addSubResource(temp)
+		root.addSubResource(sensors)
+		sensors.addSubResource(device)
+		device.addSubResource(value)
+		assertEquals(5, router.size)
+		assertSame(root, router.route(new GetRequest))
+		assertSame(temp, router.route("/sensors/temp"))
+		assertSame(device, router.route("/sensors/42"))
+		assertSame(value, router.route("/sensors/42/value"))
+		assertSame(value, router.route("/sensors/temp/value"))
+		assertNull(router.route("/sensors/42/other"))
+		var request = new GetRequest
+		request.setURI("coap://127.0.0.1/sensors/dev-7/value")
+		var received = Message.fromByteArray(request.toByteArray)
+		assertSame(value, router.route(received))
+		assertEquals("dev-7", value.getPathParameter(received, "id"))
+		sensors.removeSubResource(device)
+		assertNull(router.route("/sensors/42/value"))
+		assertEquals(3, router.size)
+	}
+
+	@Test
+	def void testConcurrentCreate() {
+		val root = new Resource("")
+		val router = new ResourceRouter
+		root.setRouter(router)
+		val devices = root.subResource("devices", true)
+		val threads = 4
+		val perThread = 500
+		val start = new CountDownLatch(1)
+		val done = new CountDownLatch(threads + 1)
+		val misses = new AtomicInteger
+		for (var t = 0; t < threads; t++) {
+			val base = t * perThread / 2
+			new Thread([|
+				start.await
+				// half of the identifiers are also created by the next thread
+				for (var i = base; i < base + perThread; i++) {
+					devices.subResource("dev" + i, true)
+				}
+				done.countDown
+			]).start
+		}
+		new Thread([|
+			start.await
+			for (var i = 0; i < 10000; i++) {
+				if (router.route("/devices") !== devices) {
+					misses.incrementAndGet
+				}
+			}
+			done.countDown
+		]).start
+		start.countDown
+		assertTrue(done.await(10, TimeUnit.SECONDS))
+		var expected = (threads + 1) * perThread / 2
+		assertEquals(0, misses.get)
+		assertEquals(expected, devices.subResourceCount)
+		assertEquals(expected + 1, root.totalSubResourceCount)
+		assertEquals(expected + 2, router.size)
+		assertNotNull(router.route("/devices/dev" + (expected - 1)))
+	}
+
+	@Test
+	def void testRemoveParentRacingAdd() {
+		val root = new Resource("")
+		val router = new ResourceRouter
+		root.setRouter(router)
+		val threads = 4
+		val start = new CountDownLatch(1)
+		val done = new CountDownLatch(threads + 1)
+		for (var t = 0; t < threads; t++) {
+			val group = "group" + t
+			new Thread([|
+				start.await
+				// each thread creates below its own parent
+				for (var i = 0; i < 500; i++) {
+					root.subResource(group, true).subResource("dev" + i, true)
+				}
+				done.countDown
+			]).start
+		}
+		new Thread([|
+			start.await
+			for (var i = 0; i < 2000; i++) {
+				var group = root.subResource("group" + (i % threads), false)
+				if (group != null) {
+					root.removeSubResource(group)
+				}
+			}
+			done.countDown
+		]).start
+		start.countDown
+		assertTrue(done.await(10, TimeUnit.SECONDS))
+		// no route is left to a resource that was removed with its parent
+		var routes = 1
+		for (var t = 0; t < threads; t++) {
+			var group = root.subResource("group" + t, false)
+			assertSame(group, router.route("/group" + t))
+			for (var i = 0; i < 500; i++) {
+				var device = group?.subResource("dev" + i, false)
+				assertSame(device, router.route("/group" + t + "/dev" + i))
+				routes += if (device != null) 1 else 0
+			}
+			routes += if (group != null) 1 else 0
+		}
+		assertEquals(routes, router.size)
+	}
+
+	@Test
+	def void testRemoveRacingAdd() {
+		val root = new Resource("")
+		val router = new ResourceRouter
+		root.setRouter(router)
+		val devices = root.subResource("devices", true)
+		val start = new CountDownLatch(1)
+		val done = new CountDownLatch(2)
+		new Thread([|
+			start.await
+			for (var i = 0; i < 2000; i++) {
+				var device = devices.subResource("dev", false)
+				if (device != null) {
+					devices.removeSubResource(device)
+				}
+			}
+			done.countDown
+		]).start
+		new Thread([|
+			start.await
+			for (var i = 0; i < 2000; i++) {
+				devices.subResource("dev", true)
+			}
+			done.countDown
+		]).start
+		start.countDown
+		assertTrue(done.await(10, TimeUnit.SECONDS))
+		// the route always follows the subresource that is left
+		assertSame(devices.subResource("dev", false), router.route("/devices/dev"))
+		var expected = if (devices.subResource("dev", false) != null) 3 else 2
+		assertEquals(expected, router.size)
+	}
+}
\ No newline at end of file
@@ -0,0 +1,211 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.util.ArrayList
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import com.xtend.coap.layers.CoCoARetransmissionPolicy
+import com.xtend.coap.layers.DefaultRetransmissionPolicy
+import com.xtend.coap.layers.Layer
+import com.xtend.coap.layers.MessageLayer
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.utils.MessageType
+import com.xtend.coap.utils.Option
+
+class RetransmissionTest {
+
+	@Test
+	def void testDefaultPolicy() {
+		var policy = new DefaultRetransmissionPolicy
+		var request = new GetRequest
+		request.setURI("coap://127.0.0.1:5683/sensors/temp")
+		var timeout = policy.initialTimeout(request)
+		assertTrue(timeout >= 2000 && timeout <= 3000)
+		assertEquals(timeout * 2, policy.nextTimeout(request, timeout, 1))
+	}
+
+	@Test
+	def void testCoCoAPolicy() {
+		var policy = new CoCoARetransmissionPolicy
+		var lan = new GetRequest
+		lan.setURI("coap://127.0.0.1:5683/sensors/temp")
+		var other = new GetRequest
+		other.setURI("coap://127.0.0.2:5683/sensors/temp")
+		for (var i = 0; i < 20; i++) {
+			policy.replyReceived(lan, 5, 0)
+		}
+		var timeout = policy.initialTimeout(lan)
+		assertTrue(timeout < 100)
+		assertEquals(timeout * 3, policy.nextTimeout(lan, timeout, 1))
+		assertEquals(CoCoARetransmissionPolicy.DEFAULT_RTO, policy.getRTO(other.getPeerAddress), 0)
+		// Replies after more than two retransmissions are not measured
+		policy.replyReceived(other, 50000, 3)
+		assertEquals(CoCoARetransmissionPolicy.DEFAULT_RTO, policy.getRTO(other.getPeerAddress), 0)
+		assertEquals(2, policy.peerCount)
+		assertEquals(0, policy.removeIdlePeers(CoCoARetransmissionPolicy.IDLE_TIME))
+		Thread.sleep(5)
+		assertEquals(2, policy.removeIdlePeers(0))
+		assertEquals(0, policy.peerCount)
+	}
+	
+	@Test
+	def void testNSTART() {
+		val sent = new ArrayList<Message>
+		var lower = new Layer {
+			override protected doSendMessage(Message msg) {
+				sent.add(msg)
+			}
+			override protected doReceiveMessage(Message msg) {
+				deliverMessage(msg)
+			}
+		}
+		var layer = new MessageLayer
+		layer.setLowerLayer(lower)
+		layer.setMaxQueued(1)
+		for (var i = 1; i <= 2; i++) {
+			var request = new GetRequest
+			request.setType(MessageType.CONFIRMABLE)
+			request.setID(i)
+			request.setURI("coap://127.0.0.1:5683/sensors/temp")
+			layer.sendMessage(request)
+		}
+		assertEquals(1, sent.size)
+		assertEquals(1, layer.getQueuedMessages)
+		var rejected = new GetRequest
+		rejected.setType(MessageType.CONFIRMABLE)
+		rejected.setID(3)
+		rejected.setURI("coap://127.0.0.1:5683/sensors/temp")
+		try {
+			layer.sendMessage(rejected)
+			fail
+		} catch (IOException e) {
+			assertEquals(1, layer.getNumMessagesRejected)
+		}
+		var ack = sent.get(0).newReply(true)
+		lower.receiveMessage(ack)
+		assertEquals(2, sent.size)
+		assertEquals(2, sent.get(1).getID)
+		assertEquals(0, layer.getQueuedMessages)
+		assertEquals(1, layer.getOutstanding(sent.get(1).getPeerAddress))
+		layer.getTimer.stop
+	}
+	
+	@Test
+	def void testConcurrentPeers() {
+		val sent = new ConcurrentLinkedQueue<Message>
+		val lower = new Layer {
+			override protected doSendMessage(Message msg) {
+				sent.add(msg)
+			}
+			override protected doReceiveMessage(Message msg) {
+				deliverMessage(msg)
+			}
+		}
+		val layer = new MessageLayer
+		layer.setLowerLayer(lower)
+		var threads = new ArrayList<Thread>
+		for (var t = 0; t < 4; t++) {
+			val host = "127.0.0." + (t + 1)
+			threads.add(new Thread([|
+				for (var i = 1; i <= 50; i++) {
+					var request = new GetRequest
+					request.setType(MessageType.CONFIRMABLE)
+					request.setID(i)
+					request.setURI("coap://" + host + ":5683/sensors/temp")
+					layer.sendMessage(request)
+				}
+			]))
+		}
+		for (thread : threads) {
+			thread.start
+		}
+		for (thread : threads) {
+			thread.join
+		}
+		assertEquals(4 * 49, layer.getQueuedMessages)
+		// every reply releases the slot of its peer to the next message queued
+		var acked = 0
+		while (acked < 4 * 50) {
+			var msg = sent.poll
+			assertNotNull(msg)
+			lower.receiveMessage(msg.newReply(true))
+			acked++
+		}
+		assertEquals(0, layer.getQueuedMessages)
+		assertEquals(0, layer.getPendingTransmissions)
+		assertEquals(0, layer.getOutstanding(new InetSocketAddress("127.0.0.1", 5683)))
+		layer.getTimer.stop
+	}
+	
+	@Test
+	def void testExchangesPerPeer() {
+		val sent = new ArrayList<Message>
+		var lower = new Layer {
+			override protected doSendMessage(Message msg) {
+				sent.add(msg)
+			}
+			override protected doReceiveMessage(Message msg) {
+				deliverMessage(msg)
+			}
+		}
+		var layer = new MessageLayer
+		layer.setLowerLayer(lower)
+		for (host : #["127.0.0.1", "127.0.0.2"]) {
+			var request = new GetRequest
+			request.setType(MessageType.CONFIRMABLE)
+			request.setID(42)
+			request.setURI("coap://" + host + ":5683/sensors/temp")
+			layer.sendMessage(request)
+		}
+		assertEquals(2, layer.getPendingTransmissions)
+		lower.receiveMessage(sent.get(1).newReply(true))
+		assertEquals(1, layer.getPendingTransmissions)
+		assertEquals(0, layer.getOutstanding(sent.get(1).getPeerAddress))
+		assertEquals(1, layer.getOutstanding(sent.get(0).getPeerAddress))
+		lower.receiveMessage(sent.get(1).newReply(true))
+		assertEquals(1, layer.getPendingTransmissions)
+		lower.receiveMessage(sent.get(0).newReply(true))
+		assertEquals(0, layer.getPendingTransmissions)
+		layer.getTimer.stop
+	}
+	
+	@Test
+	def void testProxyExchange() {
+		val sent = new ArrayList<Message>
+		var lower = new Layer {
+			override protected doSendMessage(Message msg) {
+				sent.add(msg)
+			}
+			override protected doReceiveMessage(Message msg) {
+				deliverMessage(msg)
+			}
+		}
+		var layer = new MessageLayer
+		layer.setLowerLayer(lower)
+		var request = new GetRequest
+		request.setType(MessageType.CONFIRMABLE)
+		request.setID(7)
+		request.setURI("coap://127.0.0.1:5683/sensors/temp")
+		request.setOption(new Option("coap://127.0.0.9:5683/sensors/temp", Option.PROXY_URI))
+		layer.sendMessage(request)
+		var proxy = new InetSocketAddress("127.0.0.9", 5683)
+		assertEquals(proxy, request.getDestination)
+		assertEquals(1, layer.getOutstanding(proxy))
+		// the host of the URI is not where the request went
+		var stray = request.newReply(true)
+		stray.setPeerAddress(request.getPeerAddress)
+		lower.receiveMessage(stray)
+		assertEquals(1, layer.getPendingTransmissions)
+		var ack = request.newReply(true)
+		ack.setPeerAddress(proxy)
+		lower.receiveMessage(ack)
+		assertEquals(0, layer.getPendingTransmissions)
+		assertEquals(0, layer.getOutstanding(proxy))
+		layer.getTimer.stop
+	}
+}
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.xtend.coap.utils.HashedWheelTimer
+
+class TimerTest {
+
+	@Test
+	def void testExpireAndCancel() {
+		var timer = new HashedWheelTimer(5, 8, Executors.newSingleThreadExecutor)
+		val latch = new CountDownLatch(2)
+		val cancelledRun = new AtomicBoolean
+		try {
+			timer.newTimeout([| latch.countDown], 20)
+			// Longer than one round of the wheel
+			timer.newTimeout([| latch.countDown], 100)
+			var cancelled = timer.newTimeout([| cancelledRun.set(true)], 30)
+			assertTrue(cancelled.cancel)
+			assertFalse(cancelled.cancel)
+			assertTrue(latch.await(5, TimeUnit.SECONDS))
+			Thread.sleep(50)
+			assertFalse(cancelledRun.get)
+			assertTrue(cancelled.isCancelled)
+			assertEquals(0, timer.size)
+		} finally {
+			timer.stop
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+package com.xtend.test
+
+import static org.junit.Assert.*
+import org.junit.Test
+
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.util.HashSet
+
+import com.xtend.coap.layers.IdentifierAllocator
+import com.xtend.coap.layers.TokenStore
+import com.xtend.coap.message.Message
+import com.xtend.coap.message.request.GetRequest
+import com.xtend.coap.message.response.Response
+import com.xtend.coap.utils.Code
+import com.xtend.coap.utils.HashedWheelTimer
+import com.xtend.coap.utils.Option
+
+class TokenStoreTest {
+
+	@Test
+	def void testFinalResponse() {
+		var timer = new HashedWheelTimer
+		var store = new TokenStore(timer, 2, 60000, 60000)
+		var request = new GetRequest
+		request.setURI("coap://127.0.0.1:5683/sensors/temp")
+		request.setToken(0xCAFE, 2)
+		assertTrue(store.add(request))
+		var other = new Response(Code.RESP_CONTENT)
+		other.setToken(0xCAFE, 2)
+		other.setPeerAddress(new InetSocketAddress("127.0.0.2", 5683))
+		assertNull(store.get(other))
+		var response = new Response(Code.RESP_CONTENT)
+		response.setToken(0xCAFE, 2)
+		response.setPeerAddress(request.getPeerAddress)
+		assertSame(request, store.get(response))
+		store.responseReceived(request, response)
+		assertEquals(0, store.size)
+		timer.stop
+	}
+
+	@Test
+	def void testObserveAndExpiry() {
+		var timer = new HashedWheelTimer
+		var store = new TokenStore(timer, 2, 50, 50)
+		var observe = new GetRequest
+		observe.setURI("coap://127.0.0.1:5683/sensors/temp")
+		observe.setToken(1, 1)
+		observe.setOption(new Option(0, Option.OBSERVE))
+		var request = new GetRequest
+		request.setURI("coap://127.0.0.1:5683/sensors/light")
+		request.setToken(2, 1)
+		assertTrue(store.add(observe))
+		assertTrue(store.add(request))
+		assertFalse(store.add(new GetRequest))
+		var notification = new Response(Code.RESP_CONTENT)
+		notification.setOption(new Option(1, Option.OBSERVE))
+		store.responseReceived(observe, notification)
+		assertEquals(2, store.size)
+		Thread.sleep(300)
+		assertEquals(0, store.size)
+		assertEquals(2, store.getExpirations)
+		timer.stop
+	}
+	
+	@Test
+	def void testCollidingPeers() {
+		var timer = new HashedWheelTimer
+		var store = new TokenStore(timer)
+		// both addresses fold into the same key
+		var first = new InetSocketAddress("::1f", 5683)
+		var second = new InetSocketAddress("::100", 5683)
+		assertEquals(Message.packPeer(first), Message.packPeer(second))
+		assertFalse(Message.samePeer(first, second))
+		var request = new GetRequest
+		request.setPeerAddress(first)
+		request.setToken(0x42, 1)
+		assertTrue(store.add(request))
+		var other = new GetRequest
+		other.setPeerAddress(second)
+		other.setToken(0x42, 1)
+		assertFalse(store.add(other))
+		var response = new Response(Code.RESP_CONTENT)
+		response.setToken(0x42, 1)
+		response.setPeerAddress(second)
+		assertNull(store.get(response))
+		response.setPeerAddress(first)
+		assertSame(request, store.get(response))
+		timer.stop
+	}
+
+	@Test
+	def void testAllocator() {
+		var timer = new HashedWheelTimer
+		var store = new TokenStore(timer)
+		var allocator = new IdentifierAllocator(store, 1)
+		var first = allocator.nextMessageID
+		assertEquals((first + 1).bitwiseAnd(Message.MAX_ID), allocator.nextMessageID)
+		var tokens = new HashSet<Long>
+		for (var i = 0; i < 255; i++) {
+			var request = new GetRequest
+			request.setURI("coap://127.0.0.1:5683/sensors/temp")
+			allocator.assign(request)
+			assertTrue(request.getID >= 0)
+			assertEquals(1, request.getTokenLength)
+			assertTrue(request.getToken > 0 && request.getToken <= 0xFF)
+			// a token still waiting for a response is never handed out again
+			assertTrue(tokens.add(request.getToken))
+			assertTrue(store.add(request))
+		}
+		var exhausted = new GetRequest
+		exhausted.setURI("coap://127.0.0.1:5683/sensors/temp")
+		try {
+			allocator.assign(exhausted)
+			fail
+		} catch (IOException e) {
+			assertEquals(0, exhausted.getTokenLength)
+		}
+		var other = new GetRequest
+		other.setURI("coap://127.0.0.2:5683/sensors/temp")
+		allocator.assign(other)
+		assertEquals(1, other.getTokenLength)
+		timer.stop
+	}
+}
\ No newline at end of file